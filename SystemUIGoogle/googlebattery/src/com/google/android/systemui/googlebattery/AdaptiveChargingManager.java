@@ -18,22 +18,22 @@
 package com.google.android.systemui.googlebattery;
 
 import android.content.Context;
-import android.os.Binder;
 import android.os.IBinder;
 import android.os.LocaleList;
 import android.os.ParcelFormatException;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.provider.DeviceConfig;
 import android.provider.Settings;
 import android.text.format.DateFormat;
 import android.util.Log;
 
+import java.io.PrintWriter;
 import java.util.Locale;
-import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
 
 import vendor.google.google_battery.ChargingStage;
-import vendor.google.google_battery.IGoogleBattery;
 
 public class AdaptiveChargingManager {
 
@@ -42,6 +42,8 @@ public class AdaptiveChargingManager {
 
     private Context mContext;
     private boolean mHasSystemFeature = false;
+    private final GoogleBatterySession mSession = GoogleBatterySession.getInstance();
+    private volatile boolean mServiceAvailable;
 
     public AdaptiveChargingManager(Context context) {
         mContext = context;
@@ -68,9 +70,14 @@ public class AdaptiveChargingManager {
     }
 
     private boolean isGoogleBatteryServiceAvailable() {
+        // The service is declared statically, so once found it does not have to be looked up again.
+        if (mServiceAvailable) {
+            return true;
+        }
         try {
             IBinder binder = ServiceManager.getService("vendor.google.google_battery.IGoogleBattery");
-            return binder != null;
+            mServiceAvailable = binder != null;
+            return mServiceAvailable;
         } catch (SecurityException e) {
             return false;
         }
@@ -109,57 +116,52 @@ public class AdaptiveChargingManager {
     }
 
     public boolean setAdaptiveChargingDeadline(int secondsFromNow) {
-        IBinder.DeathRecipient deathRecipient = new IBinder.DeathRecipient() {
-           @Override
-            public final void binderDied() {
-                if (DEBUG) {
-                    Log.d("AdaptiveChargingManager", "serviceDied");
-                }
-            }
-        };
-        IGoogleBattery initHalInterface = null;
-        if(mHasSystemFeature) {
-            initHalInterface = GoogleBatteryManager.initHalInterface(deathRecipient);
-        }
-        if (initHalInterface == null) {
+        if (!mHasSystemFeature) {
             return false;
         }
-        boolean result = false;
+        mSession.acquire();
         try {
-            initHalInterface.setChargingDeadline(secondsFromNow);
-            result = true;
+            return mSession.setChargingDeadline(secondsFromNow);
         } catch (RemoteException e) {
             Log.e(TAG, "setChargingDeadline() failed");
+            return false;
+        } finally {
+            mSession.release();
         }
-        GoogleBatteryManager.destroyHalInterface(initHalInterface, deathRecipient);
-        return result;
+    }
+
+    /** Makes the next {@link #queryStatus} ask the HAL, e.g. after the deadline changed elsewhere. */
+    public void invalidateStatus() {
+        mSession.invalidateChargingStage();
     }
 
     public void queryStatus(final AdaptiveChargingStatusReceiver adaptiveChargingStatusReceiver) {
-        IBinder.DeathRecipient deathRecipient = new IBinder.DeathRecipient() {
-           @Override
-            public final void binderDied() {
-                if (DEBUG) {
-                    Log.d("AdaptiveChargingManager", "serviceDied");
-                }
-                adaptiveChargingStatusReceiver.onDestroyInterface();
-            }
-        };
-        IGoogleBattery initHalInterface = null;
-        if(mHasSystemFeature) {
-            initHalInterface = GoogleBatteryManager.initHalInterface(deathRecipient);
-        }
-        if (initHalInterface == null) {
+        if (!mHasSystemFeature) {
             adaptiveChargingStatusReceiver.onDestroyInterface();
             return;
         }
+        mSession.acquire();
         try {
-            ChargingStage stage = initHalInterface.getChargingStageAndDeadline();
-            adaptiveChargingStatusReceiver.onReceiveStatus(stage.deadlineSecs, stage.stage);
+            long[] fetchedAtMs = new long[1];
+            ChargingStage stage = mSession.getChargingStage(fetchedAtMs);
+            if (stage != null) {
+                int seconds = stage.deadlineSecs;
+                if (seconds > 0) {
+                    // A shared result may be a few seconds old.
+                    long ageSecs = TimeUnit.MILLISECONDS.toSeconds(SystemClock.elapsedRealtime() - fetchedAtMs[0]);
+                    seconds = (int) Math.max(seconds - ageSecs, 1);
+                }
+                adaptiveChargingStatusReceiver.onReceiveStatus(seconds, stage.stage);
+            }
         } catch (RemoteException | ParcelFormatException e) {
             Log.e("AdaptiveChargingManager", "Failed to get Adaptive Charging status: ", e);
+        } finally {
+            mSession.release();
         }
-        GoogleBatteryManager.destroyHalInterface(initHalInterface, deathRecipient);
         adaptiveChargingStatusReceiver.onDestroyInterface();
     }
+
+    public void dump(PrintWriter pw) {
+        mSession.dump(pw);
+    }
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2022 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.systemui.googlebattery;
+
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+import vendor.google.google_battery.ChargingStage;
+import vendor.google.google_battery.IGoogleBattery;
+
+/**
+ * Process-wide connection to the Google Battery HAL. Instead of connecting and linking to death
+ * for every call, users {@link #acquire} the session while they need it; the connection is kept
+ * until it has been unused for {@link #IDLE_TIMEOUT_MS}, and is made again on the next call if the
+ * HAL dies. Charging stage results are shared between all users for {@link #STAGE_TTL_MS}.
+ */
+public final class GoogleBatterySession implements IBinder.DeathRecipient {
+    private static final String TAG = "GoogleBatterySession";
+    private static final long IDLE_TIMEOUT_MS = 60000;
+    private static final long STAGE_TTL_MS = 5000;
+
+    private static GoogleBatterySession sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mDisconnectRunnable = this::disconnectIfIdle;
+
+    private IGoogleBattery mGoogleBattery;
+    private int mRefCount;
+    private ChargingStage mStage;
+    private long mStageFetchedMs;
+
+    private long mConnects;
+    private long mDeaths;
+    private long mTransactions;
+    private long mStageQueries;
+    private long mStageCacheHits;
+
+    private GoogleBatterySession() {
+    }
+
+    public static synchronized GoogleBatterySession getInstance() {
+        if (sInstance == null) {
+            sInstance = new GoogleBatterySession();
+        }
+        return sInstance;
+    }
+
+    public synchronized void acquire() {
+        mRefCount++;
+        mHandler.removeCallbacks(mDisconnectRunnable);
+    }
+
+    public synchronized void release() {
+        if (mRefCount > 0 && --mRefCount == 0) {
+            mHandler.postDelayed(mDisconnectRunnable, IDLE_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Returns the current charging stage, or null if the HAL is not available. The result may be
+     * up to {@link #STAGE_TTL_MS} old; {@code fetchedAtMs}, if given, receives its
+     * {@link SystemClock#elapsedRealtime} so callers can age the deadline.
+     */
+    public synchronized ChargingStage getChargingStage(long[] fetchedAtMs) throws RemoteException {
+        mStageQueries++;
+        long now = SystemClock.elapsedRealtime();
+        if (mStage == null || now - mStageFetchedMs > STAGE_TTL_MS) {
+            IGoogleBattery googleBattery = getInterface();
+            if (googleBattery == null) {
+                return null;
+            }
+            mTransactions++;
+            mStage = googleBattery.getChargingStageAndDeadline();
+            mStageFetchedMs = now;
+        } else {
+            mStageCacheHits++;
+        }
+        if (fetchedAtMs != null) {
+            fetchedAtMs[0] = mStageFetchedMs;
+        }
+        return mStage;
+    }
+
+    /** Returns false if the HAL is not available. */
+    public synchronized boolean setChargingDeadline(int secondsFromNow) throws RemoteException {
+        IGoogleBattery googleBattery = getInterface();
+        if (googleBattery == null) {
+            return false;
+        }
+        invalidateChargingStage();
+        mTransactions++;
+        googleBattery.setChargingDeadline(secondsFromNow);
+        return true;
+    }
+
+    /** Makes the next {@link #getChargingStage} call ask the HAL again. */
+    public synchronized void invalidateChargingStage() {
+        mStage = null;
+    }
+
+    private IGoogleBattery getInterface() {
+        if (mGoogleBattery == null) {
+            mGoogleBattery = GoogleBatteryManager.initHalInterface(this);
+            if (mGoogleBattery != null) {
+                mConnects++;
+            }
+        }
+        return mGoogleBattery;
+    }
+
+    private synchronized void disconnectIfIdle() {
+        if (mRefCount == 0 && mGoogleBattery != null) {
+            GoogleBatteryManager.destroyHalInterface(mGoogleBattery, this);
+            mGoogleBattery = null;
+        }
+    }
+
+    @Override
+    public synchronized void binderDied() {
+        Log.i(TAG, "serviceDied");
+        mDeaths++;
+        mGoogleBattery = null;
+        mStage = null;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("  GoogleBatterySession: connected=" + (mGoogleBattery != null) + ", refCount=" + mRefCount
+                + ", connects=" + mConnects + ", deaths=" + mDeaths);
+        pw.println("    transactions=" + mTransactions + ", stageQueries=" + mStageQueries + ", stageCacheHits=" + mStageCacheHits);
+    }
+}
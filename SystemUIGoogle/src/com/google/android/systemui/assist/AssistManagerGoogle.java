@@ -22,8 +22,9 @@ import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.RemoteException;
-import android.provider.Settings;
+import android.os.Trace;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.IWindowManager;
 
 import com.android.internal.app.AssistUtils;
@@ -63,6 +64,7 @@ public class AssistManagerGoogle extends AssistManager {
     private final NgaMessageHandler mNgaMessageHandler;
     private final NgaUiController mNgaUiController;
     private final OpaEnabledReceiver mOpaEnabledReceiver;
+    private final OpaEnabledSettings mOpaEnabledSettings;
     private final Handler mUiHandler;
     private final IWindowManager mWindowManagerService;
     private final Runnable mOnProcessBundle;
@@ -72,6 +74,18 @@ public class AssistManagerGoogle extends AssistManager {
     private boolean mNgaIsAssistant;
     private boolean mSqueezeSetUp;
     private AssistManager.UiController mUiController;
+    private Choreographer mChoreographer;
+    private final Choreographer.FrameCallback mProgressFrameCallback = this::onProgressFrame;
+    private boolean mProgressFramePending;
+    private int mProgressType;
+    private float mTargetProgress;
+    // Set while a presence lookup is in flight; progress is held so it reaches the right controller.
+    private boolean mPresencePending;
+    private final Runnable mOnPresenceResolved = this::onPresenceResolved;
+    private int mHeldType;
+    private boolean mHeldStart;
+    private float mHeldProgress = -1.0f;
+    private float mHeldCompletion = Float.NaN;
 
     @Inject
     public AssistManagerGoogle(DeviceProvisionedController controller,
@@ -88,6 +102,7 @@ public class AssistManagerGoogle extends AssistManager {
                                BroadcastDispatcher broadcastDispatcher,
                                OpaEnabledDispatcher opaEnabledDispatcher,
                                OpaEnabledReceiver opaEnabledReceiver,
+                               OpaEnabledSettings opaEnabledSettings,
                                KeyguardUpdateMonitor keyguardUpdateMonitor,
                                NavigationModeController navigationModeController,
                                AssistantPresenceHandler assistantPresenceHandler,
@@ -108,6 +123,7 @@ public class AssistManagerGoogle extends AssistManager {
         mNgaUiController = ngaUiController;
         mWindowManagerService = iWindowManager;
         mOpaEnabledReceiver = opaEnabledReceiver;
+        mOpaEnabledSettings = opaEnabledSettings;
         addOpaEnabledListener(opaEnabledDispatcher);
         keyguardUpdateMonitor.registerCallback(new KeyguardUpdateMonitorCallback() {
             @Override
@@ -206,18 +222,106 @@ public class AssistManagerGoogle extends AssistManager {
             }
         }
         if (mCheckAssistantStatus) {
-            mAssistantPresenceHandler.requestAssistantPresenceUpdate();
+            mPresencePending = true;
+            mAssistantPresenceHandler.requestAssistantPresenceUpdateAsync(mOnPresenceResolved);
             mCheckAssistantStatus = false;
         }
         if (i != 2 || mSqueezeSetUp) {
+            if (mPresencePending) {
+                mHeldType = i;
+                if (f == 0.0f) {
+                    mHeldStart = true;
+                    mHeldProgress = -1.0f;
+                } else {
+                    mHeldProgress = f;
+                }
+                return;
+            }
+            deliverInvocationProgress(i, f);
+        }
+    }
+
+    /**
+     * Delivers what was held while the presence lookup was in flight, now that the UI controller
+     * matches the current assistant.
+     */
+    private void onPresenceResolved() {
+        mPresencePending = false;
+        if (mHeldStart) {
+            mHeldStart = false;
+            deliverInvocationProgress(mHeldType, 0.0f);
+        }
+        if (mHeldProgress >= 0.0f) {
+            float progress = mHeldProgress;
+            mHeldProgress = -1.0f;
+            deliverInvocationProgress(mHeldType, progress);
+        }
+        if (!Float.isNaN(mHeldCompletion)) {
+            float velocity = mHeldCompletion;
+            mHeldCompletion = Float.NaN;
+            mUiController.onGestureCompletion(velocity);
+        }
+    }
+
+    private void deliverInvocationProgress(int i, float f) {
+        if (f == 0.0f || f == 1.0f) {
+            // Start and end of an invocation are delivered right away.
+            cancelProgressFrame();
             mUiController.onInvocationProgress(i, f);
+            return;
         }
+        if (mProgressFramePending && i != mProgressType) {
+            // A pending sample must not be delivered under the new type; flush it and deliver now.
+            cancelProgressFrame();
+            mUiController.onInvocationProgress(mProgressType, mTargetProgress);
+            mProgressType = i;
+            mUiController.onInvocationProgress(i, f);
+            return;
+        }
+        mProgressType = i;
+        mTargetProgress = f;
+        scheduleProgressFrame();
+    }
+
+    /**
+     * Touch samples can arrive several times per frame; the UI is only updated once per frame, with
+     * the latest sample, so it neither lags the finger nor keeps redrawing after the last one.
+     */
+    private void scheduleProgressFrame() {
+        if (mProgressFramePending) {
+            return;
+        }
+        if (mChoreographer == null) {
+            mChoreographer = Choreographer.getInstance();
+        }
+        mProgressFramePending = true;
+        mChoreographer.postFrameCallback(mProgressFrameCallback);
+    }
+
+    private void cancelProgressFrame() {
+        if (mProgressFramePending) {
+            mProgressFramePending = false;
+            mChoreographer.removeFrameCallback(mProgressFrameCallback);
+        }
+    }
+
+    private void onProgressFrame(long frameTimeNanos) {
+        mProgressFramePending = false;
+        Trace.beginSection("AssistManagerGoogle.onProgressFrame");
+        mUiController.onInvocationProgress(mProgressType, mTargetProgress);
+        Trace.endSection();
     }
 
     @Override
     public void onGestureCompletion(float f) {
+        cancelProgressFrame();
         mCheckAssistantStatus = true;
-        mUiController.onGestureCompletion(f / mContext.getResources().getDisplayMetrics().density);
+        float velocity = f / mContext.getResources().getDisplayMetrics().density;
+        if (mPresencePending) {
+            mHeldCompletion = velocity;
+            return;
+        }
+        mUiController.onGestureCompletion(velocity);
     }
 
     public void addOpaEnabledListener(OpaEnabledListener opaEnabledListener) {
@@ -233,7 +337,6 @@ public class AssistManagerGoogle extends AssistManager {
     }
 
     private void checkSqueezeGestureStatus() {
-        boolean z = Settings.Secure.getInt(mContext.getContentResolver(), "assist_gesture_setup_complete", 0) == 1;
-        mSqueezeSetUp = z;
+        mSqueezeSetUp = mOpaEnabledSettings.isAssistGestureSetupComplete();
     }
 }
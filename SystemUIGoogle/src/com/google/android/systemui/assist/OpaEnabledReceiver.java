@@ -17,15 +17,10 @@
 package com.google.android.systemui.assist;
 
 import android.content.BroadcastReceiver;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.database.ContentObserver;
-import android.net.Uri;
-import android.os.Handler;
 import android.os.UserHandle;
-import android.provider.Settings;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -45,8 +40,6 @@ import javax.inject.Inject;
 public class OpaEnabledReceiver {
     private final Executor mBgExecutor;
     private final BroadcastDispatcher mBroadcastDispatcher;
-    private final ContentObserver mContentObserver;
-    private final ContentResolver mContentResolver;
     private final Context mContext;
     private final Executor mFgExecutor;
     private final OpaEnabledSettings mOpaEnabledSettings;
@@ -60,14 +53,12 @@ public class OpaEnabledReceiver {
     @Inject
     public OpaEnabledReceiver(Context context, BroadcastDispatcher broadcastDispatcher, @Main Executor fgExecutor, @Background Executor bgExecutor, OpaEnabledSettings opaEnabledSettings) {
         mContext = context;
-        mContentResolver = context.getContentResolver();
-        mContentObserver = new AssistantContentObserver(context);
         mBroadcastDispatcher = broadcastDispatcher;
         mFgExecutor = fgExecutor;
         mBgExecutor = bgExecutor;
         mOpaEnabledSettings = opaEnabledSettings;
         updateOpaEnabledState(false);
-        registerContentObserver();
+        mOpaEnabledSettings.addOnChangedListener(() -> updateOpaEnabledState(true));
         registerEnabledReceiver(-2);
     }
 
@@ -77,9 +68,8 @@ public class OpaEnabledReceiver {
     }
 
     public void onUserSwitching(int i) {
-        updateOpaEnabledState(true);
-        mContentResolver.unregisterContentObserver(mContentObserver);
-        registerContentObserver();
+        // Dispatches once the settings of the new user are loaded.
+        mOpaEnabledSettings.onUserSwitching(i);
         mBroadcastDispatcher.unregisterReceiver(mBroadcastReceiver);
         registerEnabledReceiver(i);
     }
@@ -114,11 +104,6 @@ public class OpaEnabledReceiver {
         }
     }
 
-    private void registerContentObserver() {
-        mContentResolver.registerContentObserver(Settings.Secure.getUriFor("assistant"), false, mContentObserver, -2);
-        mContentResolver.registerContentObserver(Settings.Secure.getUriFor("assist_long_press_home_enabled"), false, mContentObserver, -2);
-    }
-
     private void registerEnabledReceiver(int i) {
         mBroadcastDispatcher.registerReceiver(mBroadcastReceiver, new IntentFilter("com.google.android.systemui.OPA_ENABLED"), mBgExecutor, new UserHandle(i));
         mBroadcastDispatcher.registerReceiver(mBroadcastReceiver, new IntentFilter("com.google.android.systemui.OPA_USER_ENABLED"), mBgExecutor, new UserHandle(i));
@@ -129,17 +114,6 @@ public class OpaEnabledReceiver {
         return mBroadcastReceiver;
     }
 
-    private class AssistantContentObserver extends ContentObserver {
-        public AssistantContentObserver(Context context) {
-            super(new Handler(context.getMainLooper()));
-        }
-
-        @Override
-        public void onChange(boolean z, Uri uri) {
-            updateOpaEnabledState(true);
-        }
-    }
-
     private class OpaEnabledBroadcastReceiver extends BroadcastReceiver {
         private OpaEnabledBroadcastReceiver() {
         }
@@ -17,64 +17,252 @@
 package com.google.android.systemui.assist;
 
 import android.app.ActivityManager;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.UserHandle;
 import android.provider.Settings;
 import android.util.Log;
 
 import com.android.internal.widget.ILockSettings;
 import com.android.systemui.dagger.SysUISingleton;
+import com.android.systemui.dagger.qualifiers.Background;
 import com.android.systemui.util.Assert;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import javax.inject.Inject;
 
+/**
+ * Assistant related settings of the current user. Values are kept in an immutable {@link Snapshot}
+ * that is loaded once per user and then updated one key at a time from content observers, so
+ * reads are lock-free and make no provider or binder calls. Until the first load has landed the
+ * main thread reads defaults and listeners are told once it does. Writes go through to the
+ * providers.
+ */
 @SysUISingleton
 public class OpaEnabledSettings {
+    private static final String OPA_ELIGIBLE = "systemui.google.opa_enabled";
+    private static final String OPA_USER_ENABLED = "systemui.google.opa_user_enabled";
+    private static final String ASSISTANT = "assistant";
+    private static final String LONG_PRESS_HOME_ENABLED = "assist_long_press_home_enabled";
+    private static final String GESTURE_SETUP_COMPLETE = "assist_gesture_setup_complete";
+
     private final Context mContext;
+    private final ContentResolver mContentResolver;
+    private final Handler mBgHandler;
     private final ILockSettings mLockSettings = ILockSettings.Stub.asInterface(ServiceManager.getService("lock_settings"));
+    private final CopyOnWriteArrayList<Runnable> mListeners = new CopyOnWriteArrayList<>();
+    private final ContentObserver mContentObserver;
+    private final Snapshot mDefaultSnapshot;
+    private volatile Snapshot mSnapshot;
+
+    static final class Snapshot {
+        final int mUserId;
+        final boolean mOpaEligible;
+        final boolean mOpaEnabled;
+        final boolean mAgsaAssistant;
+        final boolean mLongPressHomeEnabled;
+        final boolean mGestureSetupComplete;
+
+        Snapshot(int userId, boolean opaEligible, boolean opaEnabled, boolean agsaAssistant, boolean longPressHomeEnabled,
+                boolean gestureSetupComplete) {
+            mUserId = userId;
+            mOpaEligible = opaEligible;
+            mOpaEnabled = opaEnabled;
+            mAgsaAssistant = agsaAssistant;
+            mLongPressHomeEnabled = longPressHomeEnabled;
+            mGestureSetupComplete = gestureSetupComplete;
+        }
+    }
 
     @Inject
-    public OpaEnabledSettings(Context context) {
+    public OpaEnabledSettings(Context context, @Background Handler bgHandler) {
         mContext = context;
+        mContentResolver = context.getContentResolver();
+        mBgHandler = bgHandler;
+        mContentObserver = new ContentObserver(bgHandler) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                onSettingChanged(uri);
+            }
+        };
+        mDefaultSnapshot = new Snapshot(UserHandle.USER_CURRENT, false, false, false,
+                context.getResources().getBoolean(com.android.internal.R.bool.config_assistLongPressHomeEnabledDefault), false);
+        registerContentObservers();
+        mBgHandler.post(this::loadInitialSnapshot);
+    }
+
+    /** Adds a listener that is called on the background thread after the snapshot changed. */
+    public void addOnChangedListener(Runnable listener) {
+        mListeners.add(listener);
+    }
+
+    /** Observes the new user and reloads the snapshot for it. */
+    public void onUserSwitching(int userId) {
+        mBgHandler.post(() -> {
+            mContentResolver.unregisterContentObserver(mContentObserver);
+            registerContentObservers();
+            synchronized (this) {
+                mSnapshot = load(userId);
+            }
+            notifyListeners();
+        });
     }
 
     public boolean isOpaEligible() {
-        Assert.isNotMainThread();
-        return Settings.Secure.getIntForUser(mContext.getContentResolver(), "systemui.google.opa_enabled", 0, ActivityManager.getCurrentUser()) != 0;
+        return getSnapshot().mOpaEligible;
     }
 
     public void setOpaEligible(boolean z) {
         Assert.isNotMainThread();
-        Settings.Secure.putIntForUser(mContext.getContentResolver(), "systemui.google.opa_enabled", z ? 1 : 0, ActivityManager.getCurrentUser());
+        int userId = getSnapshot().mUserId;
+        Settings.Secure.putIntForUser(mContentResolver, OPA_ELIGIBLE, z ? 1 : 0, userId);
+        // Readers right after the write should not wait for the observer.
+        synchronized (this) {
+            Snapshot snapshot = getSnapshot();
+            if (snapshot.mUserId == userId) {
+                mSnapshot = new Snapshot(userId, z, snapshot.mOpaEnabled, snapshot.mAgsaAssistant, snapshot.mLongPressHomeEnabled,
+                        snapshot.mGestureSetupComplete);
+            }
+        }
     }
 
     public boolean isOpaEnabled() {
-        Assert.isNotMainThread();
-        try {
-            return mLockSettings.getBoolean("systemui.google.opa_user_enabled", false, ActivityManager.getCurrentUser());
-        } catch (RemoteException e) {
-            Log.e("OpaEnabledSettings", "isOpaEnabled RemoteException", e);
-            return false;
-        }
+        return getSnapshot().mOpaEnabled;
     }
 
     public void setOpaEnabled(boolean z) {
         Assert.isNotMainThread();
+        int userId = getSnapshot().mUserId;
         try {
-            mLockSettings.setBoolean("systemui.google.opa_user_enabled", z, ActivityManager.getCurrentUser());
+            mLockSettings.setBoolean(OPA_USER_ENABLED, z, userId);
         } catch (RemoteException e) {
             Log.e("OpaEnabledSettings", "RemoteException on OPA_USER_ENABLED", e);
+            return;
+        }
+        // Lock settings have no content URI to observe.
+        synchronized (this) {
+            Snapshot snapshot = getSnapshot();
+            if (snapshot.mUserId == userId) {
+                mSnapshot = new Snapshot(userId, snapshot.mOpaEligible, z, snapshot.mAgsaAssistant, snapshot.mLongPressHomeEnabled,
+                        snapshot.mGestureSetupComplete);
+            }
         }
     }
 
     public boolean isAgsaAssistant() {
-        Assert.isNotMainThread();
-        return OpaUtils.isAGSACurrentAssistant(mContext);
+        return getSnapshot().mAgsaAssistant;
     }
 
     public boolean isLongPressHomeEnabled() {
+        return getSnapshot().mLongPressHomeEnabled;
+    }
+
+    public boolean isAssistGestureSetupComplete() {
+        return getSnapshot().mGestureSetupComplete;
+    }
+
+    /**
+     * Returns the current snapshot. Before the first load has landed the main thread gets the
+     * defaults, while background callers load it themselves.
+     */
+    private Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        if (Looper.getMainLooper().isCurrentThread()) {
+            return mDefaultSnapshot;
+        }
+        return loadSnapshotIfNeeded();
+    }
+
+    private synchronized Snapshot loadSnapshotIfNeeded() {
         Assert.isNotMainThread();
-        return Settings.Secure.getInt(mContext.getContentResolver(), "assist_long_press_home_enabled", mContext.getResources().getBoolean(com.android.internal.R.bool.config_assistLongPressHomeEnabledDefault) ? 1 : 0) != 0;
+        if (mSnapshot == null) {
+            mSnapshot = load(ActivityManager.getCurrentUser());
+        }
+        return mSnapshot;
+    }
+
+    private void loadInitialSnapshot() {
+        if (mSnapshot == null) {
+            loadSnapshotIfNeeded();
+            // Readers on the main thread may have acted on the defaults.
+            notifyListeners();
+        }
+    }
+
+    private void registerContentObservers() {
+        for (String key : new String[] {OPA_ELIGIBLE, ASSISTANT, LONG_PRESS_HOME_ENABLED, GESTURE_SETUP_COMPLETE}) {
+            mContentResolver.registerContentObserver(Settings.Secure.getUriFor(key), false, mContentObserver, -2);
+        }
+    }
+
+    private void onSettingChanged(Uri uri) {
+        String key = uri != null ? uri.getLastPathSegment() : null;
+        synchronized (this) {
+            Snapshot snapshot = getSnapshot();
+            int userId = snapshot.mUserId;
+            boolean opaEligible = snapshot.mOpaEligible;
+            boolean agsaAssistant = snapshot.mAgsaAssistant;
+            boolean longPressHomeEnabled = snapshot.mLongPressHomeEnabled;
+            boolean gestureSetupComplete = snapshot.mGestureSetupComplete;
+            if (OPA_ELIGIBLE.equals(key)) {
+                opaEligible = readOpaEligible(userId);
+            } else if (ASSISTANT.equals(key)) {
+                agsaAssistant = OpaUtils.isAGSACurrentAssistant(mContext);
+            } else if (LONG_PRESS_HOME_ENABLED.equals(key)) {
+                longPressHomeEnabled = readLongPressHomeEnabled(userId);
+            } else if (GESTURE_SETUP_COMPLETE.equals(key)) {
+                gestureSetupComplete = readGestureSetupComplete(userId);
+            } else {
+                mSnapshot = load(userId);
+                snapshot = null;
+            }
+            if (snapshot != null) {
+                mSnapshot = new Snapshot(userId, opaEligible, snapshot.mOpaEnabled, agsaAssistant, longPressHomeEnabled,
+                        gestureSetupComplete);
+            }
+        }
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        for (Runnable listener : mListeners) {
+            listener.run();
+        }
+    }
+
+    private Snapshot load(int userId) {
+        return new Snapshot(userId, readOpaEligible(userId), readOpaEnabled(userId), OpaUtils.isAGSACurrentAssistant(mContext),
+                readLongPressHomeEnabled(userId), readGestureSetupComplete(userId));
+    }
+
+    private boolean readOpaEligible(int userId) {
+        return Settings.Secure.getIntForUser(mContentResolver, OPA_ELIGIBLE, 0, userId) != 0;
+    }
+
+    private boolean readOpaEnabled(int userId) {
+        try {
+            return mLockSettings.getBoolean(OPA_USER_ENABLED, false, userId);
+        } catch (RemoteException e) {
+            Log.e("OpaEnabledSettings", "isOpaEnabled RemoteException", e);
+            return false;
+        }
+    }
+
+    private boolean readLongPressHomeEnabled(int userId) {
+        return Settings.Secure.getIntForUser(mContentResolver, LONG_PRESS_HOME_ENABLED, mContext.getResources().getBoolean(com.android.internal.R.bool.config_assistLongPressHomeEnabledDefault) ? 1 : 0, userId) != 0;
+    }
+
+    private boolean readGestureSetupComplete(int userId) {
+        return Settings.Secure.getIntForUser(mContentResolver, GESTURE_SETUP_COMPLETE, 0, userId) == 1;
     }
 }
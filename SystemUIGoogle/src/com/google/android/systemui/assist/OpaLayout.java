@@ -30,12 +30,11 @@ import android.graphics.PorterDuffXfermode;
 import android.graphics.drawable.Drawable;
 import android.os.SystemClock;
 import android.os.Trace;
-import android.util.ArraySet;
 import android.util.AttributeSet;
 import android.util.Log;
-import android.util.Property;
 import android.view.ContextThemeWrapper;
 import android.view.MotionEvent;
+import android.view.RenderNodeAnimator;
 import android.view.View;
 import android.view.ViewConfiguration;
 import android.view.animation.Interpolator;
@@ -57,16 +56,42 @@ import com.google.android.systemui.elmyra.sensors.GestureSensor;
 
 import java.util.ArrayList;
 
-
+/**
+ * Home button with the Assistant dots. The press animations are built once per orientation and
+ * only retargeted per press, so the UI-thread path does not allocate. When hardware accelerated
+ * they run on the RenderThread instead, which needs one new RenderNodeAnimator per track for every
+ * press.
+ */
 public class OpaLayout extends FrameLayout implements ButtonInterface, FeedbackEffect {
+    private static final int PHASE_DIAMOND = 0;
+    private static final int PHASE_RETRACT = 1;
+    private static final int PHASE_LINE = 2;
+    private static final int PHASE_COLLAPSE = 3;
+
+    private static final int PROPERTY_X = 0;
+    private static final int PROPERTY_Y = 1;
+    private static final int PROPERTY_TRANSLATION_X = 2;
+    private static final int PROPERTY_TRANSLATION_Y = 3;
+    private static final int PROPERTY_SCALE_X = 4;
+    private static final int PROPERTY_SCALE_Y = 5;
+    private static final int PROPERTY_ALPHA = 6;
+
     private final Interpolator HOME_DISAPPEAR_INTERPOLATOR;
     private final ArrayList<View> mAnimatedViews;
-    private final ArraySet<Animator> mCurrentAnimators;
+    // Press animations, built once per orientation (index 1 when vertical).
+    private final Phase[][] mPhases = new Phase[2][];
+    // Phase from a dropped orientation set that was still running; its animators must be finished too.
+    private final ArrayList<Phase> mRetiredPhases = new ArrayList<>();
+    private Phase mCurrentPhase;
     private final Runnable mDiamondAnimation;
     private final Interpolator mDiamondInterpolator;
     private final OverviewProxyService.OverviewProxyListener mOverviewProxyListener;
     private final Runnable mRetract;
     private int mAnimationState;
+    private float mDiamondTranslation;
+    private float mLineXTransBg;
+    private float mLineXTransRy;
+    private float mLineYTranslation;
     private View mBlue;
     private View mBottom;
     private boolean mDelayTouchFeedback;
@@ -109,7 +134,6 @@ public class OpaLayout extends FrameLayout implements ButtonInterface, FeedbackE
         super(context, attributeSet, i, i2);
         HOME_DISAPPEAR_INTERPOLATOR = new PathInterpolator(0.65f, 0.0f, 1.0f, 1.0f);
         mDiamondInterpolator = new PathInterpolator(0.2f, 0.0f, 0.2f, 1.0f);
-        mCurrentAnimators = new ArraySet<>();
         mAnimatedViews = new ArrayList<>();
         mAnimationState = 0;
         mGestureState = 0;
@@ -124,7 +148,7 @@ public class OpaLayout extends FrameLayout implements ButtonInterface, FeedbackE
             }
         };
         mDiamondAnimation = () -> {
-            if (mCurrentAnimators.isEmpty()) {
+            if (mCurrentPhase == null) {
                 startDiamondAnimation();
             }
         };
@@ -148,6 +172,7 @@ public class OpaLayout extends FrameLayout implements ButtonInterface, FeedbackE
         mHome = (KeyButtonView) findViewById(R.id.home_button);
         mHalo.setImageDrawable(KeyButtonDrawable.create(new ContextThemeWrapper(getContext(), R.style.DualToneLightTheme), new ContextThemeWrapper(getContext(), R.style.DualToneDarkTheme), R.drawable.halo, true, null));
         mHomeDiameter = mResources.getDimensionPixelSize(R.dimen.opa_disabled_home_diameter);
+        loadDimens();
         Paint paint = new Paint();
         paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
         mWhiteCutout.setLayerType(2, paint);
@@ -196,7 +221,7 @@ public class OpaLayout extends FrameLayout implements ButtonInterface, FeedbackE
             if (action == 0) {
                 mTouchDownX = (int) motionEvent.getRawX();
                 mTouchDownY = (int) motionEvent.getRawY();
-                if (mCurrentAnimators.isEmpty()) {
+                if (mCurrentPhase == null) {
                     z = false;
                 } else if (mAnimationState != 2) {
                     return false;
@@ -275,9 +300,31 @@ public class OpaLayout extends FrameLayout implements ButtonInterface, FeedbackE
     @Override
     protected void onConfigurationChanged(Configuration configuration) {
         super.onConfigurationChanged(configuration);
+        loadDimens();
         updateOpaLayout();
     }
 
+    private void loadDimens() {
+        mDiamondTranslation = OpaUtils.getPxVal(mResources, R.dimen.opa_diamond_translation);
+        mLineXTransBg = OpaUtils.getPxVal(mResources, R.dimen.opa_line_x_trans_bg);
+        mLineXTransRy = OpaUtils.getPxVal(mResources, R.dimen.opa_line_x_trans_ry);
+        mLineYTranslation = OpaUtils.getPxVal(mResources, R.dimen.opa_line_y_translation);
+        // The running phase keeps its targets; later presses use the new values.
+        for (Phase[] phases : mPhases) {
+            if (phases != null) {
+                for (Phase phase : phases) {
+                    if (phase == mCurrentPhase) {
+                        mRetiredPhases.add(phase);
+                    } else {
+                        phase.finishRenderThreadAnimators();
+                    }
+                }
+            }
+        }
+        mPhases[0] = null;
+        mPhases[1] = null;
+    }
+
     @Override
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
@@ -294,11 +341,8 @@ public class OpaLayout extends FrameLayout implements ButtonInterface, FeedbackE
 
     private void startDiamondAnimation() {
         if (allowAnimations()) {
-            mCurrentAnimators.clear();
             setDotsVisible();
-            mCurrentAnimators.addAll((ArraySet<? extends Animator>) getDiamondAnimatorSet());
-            mAnimationState = 1;
-            startAll(mCurrentAnimators);
+            startPhase(PHASE_DIAMOND, 1);
             return;
         }
         skipToStartingValue();
@@ -306,10 +350,7 @@ public class OpaLayout extends FrameLayout implements ButtonInterface, FeedbackE
 
     private void startRetractAnimation() {
         if (allowAnimations()) {
-            mCurrentAnimators.clear();
-            mCurrentAnimators.addAll((ArraySet<? extends Animator>) getRetractAnimatorSet());
-            mAnimationState = 2;
-            startAll(mCurrentAnimators);
+            startPhase(PHASE_RETRACT, 2);
             return;
         }
         skipToStartingValue();
@@ -317,10 +358,7 @@ public class OpaLayout extends FrameLayout implements ButtonInterface, FeedbackE
 
     private void startLineAnimation() {
         if (allowAnimations()) {
-            mCurrentAnimators.clear();
-            mCurrentAnimators.addAll((ArraySet<? extends Animator>) getLineAnimatorSet());
-            mAnimationState = 3;
-            startAll(mCurrentAnimators);
+            startPhase(PHASE_LINE, 3);
             return;
         }
         skipToStartingValue();
@@ -328,21 +366,35 @@ public class OpaLayout extends FrameLayout implements ButtonInterface, FeedbackE
 
     private void startCollapseAnimation() {
         if (allowAnimations()) {
-            mCurrentAnimators.clear();
-            mCurrentAnimators.addAll((ArraySet<? extends Animator>) getCollapseAnimatorSet());
-            mAnimationState = 3;
-            startAll(mCurrentAnimators);
+            startPhase(PHASE_COLLAPSE, 3);
             return;
         }
         skipToStartingValue();
     }
 
-    private void startAll(ArraySet<Animator> arraySet) {
-        for (int size = arraySet.size() - 1; size >= 0; size--) {
-            arraySet.valueAt(size).start();
+    private void startPhase(int phaseId, int animationState) {
+        Phase[] phases = mPhases[mIsVertical ? 1 : 0];
+        if (phases == null) {
+            phases = buildPhases();
+            mPhases[mIsVertical ? 1 : 0] = phases;
+        }
+        Phase next = phases[phaseId];
+        // A detached animator that outlives the new one on the same property would write last.
+        for (Phase[] oldPhases : mPhases) {
+            if (oldPhases != null) {
+                for (Phase phase : oldPhases) {
+                    phase.endRenderThreadAnimatorsSupersededBy(next);
+                }
+            }
+        }
+        for (int i = mRetiredPhases.size() - 1; i >= 0; i--) {
+            mRetiredPhases.get(i).endRenderThreadAnimatorsSupersededBy(next);
         }
-        for (int size2 = mAnimatedViews.size() - 1; size2 >= 0; size2--) {
-            mAnimatedViews.get(size2).invalidate();
+        mCurrentPhase = next;
+        mAnimationState = animationState;
+        mCurrentPhase.start();
+        for (int size = mAnimatedViews.size() - 1; size >= 0; size--) {
+            mAnimatedViews.get(size).invalidate();
         }
     }
 
@@ -350,235 +402,113 @@ public class OpaLayout extends FrameLayout implements ButtonInterface, FeedbackE
         return isAttachedToWindow() && mWindowVisible;
     }
 
-    private ArraySet<Animator> getDiamondAnimatorSet() {
-        ArraySet<Animator> arraySet = new ArraySet<>();
-        arraySet.add(getPropertyAnimator(mTop, View.Y, (-OpaUtils.getPxVal(mResources, R.dimen.opa_diamond_translation)) + mTop.getY(), 200, mDiamondInterpolator));
+    /** Builds the press animations for the current orientation; positions are relative to where the dots are at start. */
+    private Phase[] buildPhases() {
+        Phase[] phases = new Phase[4];
         Interpolator interpolator = Interpolators.FAST_OUT_SLOW_IN;
-        arraySet.add(getPropertyAnimator(mTop, FrameLayout.SCALE_X, 0.8f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mTop, FrameLayout.SCALE_Y, 0.8f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mBottom, View.Y, mBottom.getY() + OpaUtils.getPxVal(mResources, R.dimen.opa_diamond_translation), 200, mDiamondInterpolator));
-        arraySet.add(getPropertyAnimator(mBottom, FrameLayout.SCALE_X, 0.8f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mBottom, FrameLayout.SCALE_Y, 0.8f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mLeft, View.X, mLeft.getX() + (-OpaUtils.getPxVal(mResources, R.dimen.opa_diamond_translation)), 200, mDiamondInterpolator));
-        arraySet.add(getPropertyAnimator(mLeft, FrameLayout.SCALE_X, 0.8f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mLeft, FrameLayout.SCALE_Y, 0.8f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mRight, View.X, mRight.getX() + OpaUtils.getPxVal(mResources, R.dimen.opa_diamond_translation), 200, mDiamondInterpolator));
-        arraySet.add(getPropertyAnimator(mRight, FrameLayout.SCALE_X, 0.8f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mRight, FrameLayout.SCALE_Y, 0.8f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mWhite, FrameLayout.SCALE_X, 0.625f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mWhite, FrameLayout.SCALE_Y, 0.625f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mWhiteCutout, FrameLayout.SCALE_X, 0.625f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mWhiteCutout, FrameLayout.SCALE_Y, 0.625f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mHalo, FrameLayout.SCALE_X, 0.47619048f, 100, interpolator));
-        arraySet.add(getPropertyAnimator(mHalo, FrameLayout.SCALE_Y, 0.47619048f, 100, interpolator));
-        arraySet.add(getPropertyAnimator(mHalo, View.ALPHA, 0.0f, 100, interpolator));
-        getLongestAnim(arraySet).addListener(new AnimatorListenerAdapter() {
-            @Override
-            public void onAnimationStart(Animator animator) {
-                Trace.beginSection("OpaLayout.start.diamond");
-                Trace.endSection();
-            }
 
-            @Override
-            public void onAnimationCancel(Animator animator) {
-                Trace.beginSection("OpaLayout.cancel.diamond");
-                Trace.endSection();
-                mCurrentAnimators.clear();
-            }
+        Phase diamond = new Phase(PHASE_DIAMOND, "diamond");
+        diamond.add(mTop, PROPERTY_Y, -mDiamondTranslation, true, 200, mDiamondInterpolator);
+        diamond.add(mTop, PROPERTY_SCALE_X, 0.8f, false, 200, interpolator);
+        diamond.add(mTop, PROPERTY_SCALE_Y, 0.8f, false, 200, interpolator);
+        diamond.add(mBottom, PROPERTY_Y, mDiamondTranslation, true, 200, mDiamondInterpolator);
+        diamond.add(mBottom, PROPERTY_SCALE_X, 0.8f, false, 200, interpolator);
+        diamond.add(mBottom, PROPERTY_SCALE_Y, 0.8f, false, 200, interpolator);
+        diamond.add(mLeft, PROPERTY_X, -mDiamondTranslation, true, 200, mDiamondInterpolator);
+        diamond.add(mLeft, PROPERTY_SCALE_X, 0.8f, false, 200, interpolator);
+        diamond.add(mLeft, PROPERTY_SCALE_Y, 0.8f, false, 200, interpolator);
+        diamond.add(mRight, PROPERTY_X, mDiamondTranslation, true, 200, mDiamondInterpolator);
+        diamond.add(mRight, PROPERTY_SCALE_X, 0.8f, false, 200, interpolator);
+        diamond.add(mRight, PROPERTY_SCALE_Y, 0.8f, false, 200, interpolator);
+        diamond.add(mWhite, PROPERTY_SCALE_X, 0.625f, false, 200, interpolator);
+        diamond.add(mWhite, PROPERTY_SCALE_Y, 0.625f, false, 200, interpolator);
+        diamond.add(mWhiteCutout, PROPERTY_SCALE_X, 0.625f, false, 200, interpolator);
+        diamond.add(mWhiteCutout, PROPERTY_SCALE_Y, 0.625f, false, 200, interpolator);
+        diamond.add(mHalo, PROPERTY_SCALE_X, 0.47619048f, false, 100, interpolator);
+        diamond.add(mHalo, PROPERTY_SCALE_Y, 0.47619048f, false, 100, interpolator);
+        diamond.add(mHalo, PROPERTY_ALPHA, 0.0f, false, 100, interpolator);
+        phases[PHASE_DIAMOND] = diamond;
 
-            @Override
-            public void onAnimationEnd(Animator animator) {
-                Trace.beginSection("OpaLayout.end.diamond");
-                Trace.endSection();
-                startLineAnimation();
-            }
-        });
-        return arraySet;
-    }
-
-    private ArraySet<Animator> getRetractAnimatorSet() {
-        ArraySet<Animator> arraySet = new ArraySet<>();
-        Interpolator interpolator = OpaUtils.INTERPOLATOR_40_OUT;
-        arraySet.add(getPropertyAnimator(mRed, FrameLayout.TRANSLATION_X, 0.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mRed, FrameLayout.TRANSLATION_Y, 0.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mRed, FrameLayout.SCALE_X, 1.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mRed, FrameLayout.SCALE_Y, 1.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mBlue, FrameLayout.TRANSLATION_X, 0.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mBlue, FrameLayout.TRANSLATION_Y, 0.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mBlue, FrameLayout.SCALE_X, 1.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mBlue, FrameLayout.SCALE_Y, 1.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mGreen, FrameLayout.TRANSLATION_X, 0.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mGreen, FrameLayout.TRANSLATION_Y, 0.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mGreen, FrameLayout.SCALE_X, 1.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mGreen, FrameLayout.SCALE_Y, 1.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mYellow, FrameLayout.TRANSLATION_X, 0.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mYellow, FrameLayout.TRANSLATION_Y, 0.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mYellow, FrameLayout.SCALE_X, 1.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mYellow, FrameLayout.SCALE_Y, 1.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mWhite, FrameLayout.SCALE_X, 1.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mWhite, FrameLayout.SCALE_Y, 1.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mWhiteCutout, FrameLayout.SCALE_X, 1.0f, 190, interpolator));
-        arraySet.add(getPropertyAnimator(mWhiteCutout, FrameLayout.SCALE_Y, 1.0f, 190, interpolator));
-        Interpolator interpolator2 = Interpolators.FAST_OUT_SLOW_IN;
-        arraySet.add(getPropertyAnimator(mHalo, FrameLayout.SCALE_X, 1.0f, 190, interpolator2));
-        arraySet.add(getPropertyAnimator(mHalo, FrameLayout.SCALE_Y, 1.0f, 190, interpolator2));
-        arraySet.add(getPropertyAnimator(mHalo, FrameLayout.ALPHA, 1.0f, 190, interpolator2));
-        getLongestAnim(arraySet).addListener(new AnimatorListenerAdapter() {
-            @Override
-            public void onAnimationStart(Animator animator) {
-                Trace.beginSection("OpaLayout.start.retract");
-                Trace.endSection();
-            }
-
-            @Override
-            public void onAnimationCancel(Animator animator) {
-                Trace.beginSection("OpaLayout.cancel.retract");
-                Trace.endSection();
-            }
-
-            @Override
-            public void onAnimationEnd(Animator animator) {
-                Trace.beginSection("OpaLayout.end.retract");
-                Trace.endSection();
-                mCurrentAnimators.clear();
-                skipToStartingValue();
-            }
-        });
-        return arraySet;
-    }
-
-    private ArraySet<Animator> getCollapseAnimatorSet() {
-        Animator propertyAnimator;
-        Animator propertyAnimator2;
-        Animator propertyAnimator3;
-        Animator propertyAnimator4;
-        ArraySet<Animator> arraySet = new ArraySet<>();
-        if (mIsVertical) {
-            propertyAnimator = getPropertyAnimator(mRed, FrameLayout.TRANSLATION_Y, 0.0f, 133, OpaUtils.INTERPOLATOR_40_OUT);
-        } else {
-            propertyAnimator = getPropertyAnimator(mRed, FrameLayout.TRANSLATION_X, 0.0f, 133, OpaUtils.INTERPOLATOR_40_OUT);
+        Phase retract = new Phase(PHASE_RETRACT, "retract");
+        for (View view : new View[] {mRed, mBlue, mGreen, mYellow}) {
+            retract.add(view, PROPERTY_TRANSLATION_X, 0.0f, false, 190, OpaUtils.INTERPOLATOR_40_OUT);
+            retract.add(view, PROPERTY_TRANSLATION_Y, 0.0f, false, 190, OpaUtils.INTERPOLATOR_40_OUT);
+            retract.add(view, PROPERTY_SCALE_X, 1.0f, false, 190, OpaUtils.INTERPOLATOR_40_OUT);
+            retract.add(view, PROPERTY_SCALE_Y, 1.0f, false, 190, OpaUtils.INTERPOLATOR_40_OUT);
         }
-        arraySet.add(propertyAnimator);
-        Interpolator interpolator = OpaUtils.INTERPOLATOR_40_OUT;
-        arraySet.add(getPropertyAnimator(mRed, FrameLayout.SCALE_X, 1.0f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mRed, FrameLayout.SCALE_Y, 1.0f, 200, interpolator));
+        retract.add(mWhite, PROPERTY_SCALE_X, 1.0f, false, 190, OpaUtils.INTERPOLATOR_40_OUT);
+        retract.add(mWhite, PROPERTY_SCALE_Y, 1.0f, false, 190, OpaUtils.INTERPOLATOR_40_OUT);
+        retract.add(mWhiteCutout, PROPERTY_SCALE_X, 1.0f, false, 190, OpaUtils.INTERPOLATOR_40_OUT);
+        retract.add(mWhiteCutout, PROPERTY_SCALE_Y, 1.0f, false, 190, OpaUtils.INTERPOLATOR_40_OUT);
+        retract.add(mHalo, PROPERTY_SCALE_X, 1.0f, false, 190, interpolator);
+        retract.add(mHalo, PROPERTY_SCALE_Y, 1.0f, false, 190, interpolator);
+        retract.add(mHalo, PROPERTY_ALPHA, 1.0f, false, 190, interpolator);
+        phases[PHASE_RETRACT] = retract;
+
+        Phase line = new Phase(PHASE_LINE, "line");
         if (mIsVertical) {
-            propertyAnimator2 = getPropertyAnimator(mBlue, FrameLayout.TRANSLATION_Y, 0.0f, 150, interpolator);
+            line.add(mRed, PROPERTY_Y, mLineXTransRy, true, 225, interpolator);
+            line.add(mRed, PROPERTY_X, mLineYTranslation, true, 133, interpolator);
+            line.add(mBlue, PROPERTY_Y, mLineXTransBg, true, 225, interpolator);
+            line.add(mYellow, PROPERTY_Y, -mLineXTransRy, true, 225, interpolator);
+            line.add(mYellow, PROPERTY_X, -mLineYTranslation, true, 133, interpolator);
+            line.add(mGreen, PROPERTY_Y, -mLineXTransBg, true, 225, interpolator);
         } else {
-            propertyAnimator2 = getPropertyAnimator(mBlue, FrameLayout.TRANSLATION_X, 0.0f, 150, interpolator);
+            line.add(mRed, PROPERTY_X, -mLineXTransRy, true, 225, interpolator);
+            line.add(mRed, PROPERTY_Y, mLineYTranslation, true, 133, interpolator);
+            line.add(mBlue, PROPERTY_X, -mLineXTransBg, true, 225, interpolator);
+            line.add(mYellow, PROPERTY_X, mLineXTransRy, true, 225, interpolator);
+            line.add(mYellow, PROPERTY_Y, -mLineYTranslation, true, 133, interpolator);
+            line.add(mGreen, PROPERTY_X, mLineXTransBg, true, 225, interpolator);
         }
-        arraySet.add(propertyAnimator2);
-        arraySet.add(getPropertyAnimator(mBlue, FrameLayout.SCALE_X, 1.0f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mBlue, FrameLayout.SCALE_Y, 1.0f, 200, interpolator));
-        if (mIsVertical) {
-            propertyAnimator3 = getPropertyAnimator(mYellow, FrameLayout.TRANSLATION_Y, 0.0f, 133, interpolator);
-        } else {
-            propertyAnimator3 = getPropertyAnimator(mYellow, FrameLayout.TRANSLATION_X, 0.0f, 133, interpolator);
+        for (View view : new View[] {mWhite, mWhiteCutout, mHalo}) {
+            line.add(view, PROPERTY_SCALE_X, 0.0f, false, 83, HOME_DISAPPEAR_INTERPOLATOR);
+            line.add(view, PROPERTY_SCALE_Y, 0.0f, false, 83, HOME_DISAPPEAR_INTERPOLATOR);
         }
-        arraySet.add(propertyAnimator3);
-        arraySet.add(getPropertyAnimator(mYellow, FrameLayout.SCALE_X, 1.0f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mYellow, FrameLayout.SCALE_Y, 1.0f, 200, interpolator));
-        if (mIsVertical) {
-            propertyAnimator4 = getPropertyAnimator(mGreen, FrameLayout.TRANSLATION_Y, 0.0f, 150, interpolator);
-        } else {
-            propertyAnimator4 = getPropertyAnimator(mGreen, FrameLayout.TRANSLATION_X, 0.0f, 150, interpolator);
-        }
-        arraySet.add(propertyAnimator4);
-        arraySet.add(getPropertyAnimator(mGreen, FrameLayout.SCALE_X, 1.0f, 200, interpolator));
-        arraySet.add(getPropertyAnimator(mGreen, FrameLayout.SCALE_Y, 1.0f, 200, interpolator));
-        Interpolator interpolator2 = Interpolators.FAST_OUT_SLOW_IN;
-        Animator propertyAnimator5 = getPropertyAnimator(mWhite, FrameLayout.SCALE_X, 1.0f, 150, interpolator2);
-        Animator propertyAnimator6 = getPropertyAnimator(mWhite, FrameLayout.SCALE_Y, 1.0f, 150, interpolator2);
-        Animator propertyAnimator7 = getPropertyAnimator(mWhiteCutout, FrameLayout.SCALE_X, 1.0f, 150, interpolator2);
-        Animator propertyAnimator8 = getPropertyAnimator(mWhiteCutout, FrameLayout.SCALE_Y, 1.0f, 150, interpolator2);
-        Animator propertyAnimator9 = getPropertyAnimator(mHalo, FrameLayout.SCALE_X, 1.0f, 150, interpolator2);
-        Animator propertyAnimator10 = getPropertyAnimator(mHalo, FrameLayout.SCALE_Y, 1.0f, 150, interpolator2);
-        Animator propertyAnimator11 = getPropertyAnimator(mHalo, FrameLayout.ALPHA, 1.0f, 150, interpolator2);
-        propertyAnimator5.setStartDelay(33L);
-        propertyAnimator6.setStartDelay(33L);
-        propertyAnimator7.setStartDelay(33L);
-        propertyAnimator8.setStartDelay(33L);
-        propertyAnimator9.setStartDelay(33L);
-        propertyAnimator10.setStartDelay(33L);
-        propertyAnimator11.setStartDelay(33L);
-        arraySet.add(propertyAnimator5);
-        arraySet.add(propertyAnimator6);
-        arraySet.add(propertyAnimator7);
-        arraySet.add(propertyAnimator8);
-        arraySet.add(propertyAnimator9);
-        arraySet.add(propertyAnimator10);
-        arraySet.add(propertyAnimator11);
-        getLongestAnim(arraySet).addListener(new AnimatorListenerAdapter() {
-            @Override
-            public void onAnimationStart(Animator animator) {
-                Trace.beginSection("OpaLayout.start.collapse");
-                Trace.endSection();
-            }
-
-            @Override
-            public void onAnimationCancel(Animator animator) {
-                Trace.beginSection("OpaLayout.cancel.collapse");
-                Trace.endSection();
-            }
+        phases[PHASE_LINE] = line;
 
-            @Override
-            public void onAnimationEnd(Animator animator) {
-                Trace.beginSection("OpaLayout.end.collapse");
-                Trace.endSection();
-                mCurrentAnimators.clear();
-                skipToStartingValue();
-            }
-        });
-        return arraySet;
+        Phase collapse = new Phase(PHASE_COLLAPSE, "collapse");
+        int translation = mIsVertical ? PROPERTY_TRANSLATION_Y : PROPERTY_TRANSLATION_X;
+        collapse.add(mRed, translation, 0.0f, false, 133, OpaUtils.INTERPOLATOR_40_OUT);
+        collapse.add(mRed, PROPERTY_SCALE_X, 1.0f, false, 200, OpaUtils.INTERPOLATOR_40_OUT);
+        collapse.add(mRed, PROPERTY_SCALE_Y, 1.0f, false, 200, OpaUtils.INTERPOLATOR_40_OUT);
+        collapse.add(mBlue, translation, 0.0f, false, 150, OpaUtils.INTERPOLATOR_40_OUT);
+        collapse.add(mBlue, PROPERTY_SCALE_X, 1.0f, false, 200, OpaUtils.INTERPOLATOR_40_OUT);
+        collapse.add(mBlue, PROPERTY_SCALE_Y, 1.0f, false, 200, OpaUtils.INTERPOLATOR_40_OUT);
+        collapse.add(mYellow, translation, 0.0f, false, 133, OpaUtils.INTERPOLATOR_40_OUT);
+        collapse.add(mYellow, PROPERTY_SCALE_X, 1.0f, false, 200, OpaUtils.INTERPOLATOR_40_OUT);
+        collapse.add(mYellow, PROPERTY_SCALE_Y, 1.0f, false, 200, OpaUtils.INTERPOLATOR_40_OUT);
+        collapse.add(mGreen, translation, 0.0f, false, 150, OpaUtils.INTERPOLATOR_40_OUT);
+        collapse.add(mGreen, PROPERTY_SCALE_X, 1.0f, false, 200, OpaUtils.INTERPOLATOR_40_OUT);
+        collapse.add(mGreen, PROPERTY_SCALE_Y, 1.0f, false, 200, OpaUtils.INTERPOLATOR_40_OUT);
+        for (View view : new View[] {mWhite, mWhiteCutout, mHalo}) {
+            collapse.add(view, PROPERTY_SCALE_X, 1.0f, false, 150, interpolator).mStartDelay = 33;
+            collapse.add(view, PROPERTY_SCALE_Y, 1.0f, false, 150, interpolator).mStartDelay = 33;
+        }
+        collapse.add(mHalo, PROPERTY_ALPHA, 1.0f, false, 150, interpolator).mStartDelay = 33;
+        phases[PHASE_COLLAPSE] = collapse;
+        return phases;
     }
 
-    private ArraySet<Animator> getLineAnimatorSet() {
-        ArraySet<Animator> arraySet = new ArraySet<>();
-        if (mIsVertical) {
-            Interpolator interpolator = Interpolators.FAST_OUT_SLOW_IN;
-            arraySet.add(getPropertyAnimator(mRed, View.Y, mRed.getY() + OpaUtils.getPxVal(mResources, R.dimen.opa_line_x_trans_ry), 225, interpolator));
-            arraySet.add(getPropertyAnimator(mRed, View.X, mRed.getX() + OpaUtils.getPxVal(mResources, R.dimen.opa_line_y_translation), 133, interpolator));
-            arraySet.add(getPropertyAnimator(mBlue, View.Y, mBlue.getY() + OpaUtils.getPxVal(mResources, R.dimen.opa_line_x_trans_bg), 225, interpolator));
-            arraySet.add(getPropertyAnimator(mYellow, View.Y, mYellow.getY() + (-OpaUtils.getPxVal(mResources, R.dimen.opa_line_x_trans_ry)), 225, interpolator));
-            arraySet.add(getPropertyAnimator(mYellow, View.X, mYellow.getX() + (-OpaUtils.getPxVal(mResources, R.dimen.opa_line_y_translation)), 133, interpolator));
-            arraySet.add(getPropertyAnimator(mGreen, View.Y, mGreen.getY() + (-OpaUtils.getPxVal(mResources, R.dimen.opa_line_x_trans_bg)), 225, interpolator));
-        } else {
-            Interpolator interpolator = Interpolators.FAST_OUT_SLOW_IN;
-            arraySet.add(getPropertyAnimator(mRed, View.X, mRed.getX() + (-OpaUtils.getPxVal(mResources, R.dimen.opa_line_x_trans_ry)), 225, interpolator));
-            arraySet.add(getPropertyAnimator(mRed, View.Y, mRed.getY() + OpaUtils.getPxVal(mResources, R.dimen.opa_line_y_translation), 133, interpolator));
-            arraySet.add(getPropertyAnimator(mBlue, View.X, mBlue.getX() + (-OpaUtils.getPxVal(mResources, R.dimen.opa_line_x_trans_bg)), 225, interpolator));
-            arraySet.add(getPropertyAnimator(mYellow, View.X, mYellow.getX() + OpaUtils.getPxVal(mResources, R.dimen.opa_line_x_trans_ry), 225, interpolator));
-            arraySet.add(getPropertyAnimator(mYellow, View.Y, mYellow.getY() + (-OpaUtils.getPxVal(mResources, R.dimen.opa_line_y_translation)), 133, interpolator));
-            arraySet.add(getPropertyAnimator(mGreen, View.X, mGreen.getX() + OpaUtils.getPxVal(mResources, R.dimen.opa_line_x_trans_bg), 225, interpolator));
-        }
-        arraySet.add(getPropertyAnimator(mWhite, FrameLayout.SCALE_X, 0.0f, 83, HOME_DISAPPEAR_INTERPOLATOR));
-        arraySet.add(getPropertyAnimator(mWhite, FrameLayout.SCALE_Y, 0.0f, 83, HOME_DISAPPEAR_INTERPOLATOR));
-        arraySet.add(getPropertyAnimator(mWhiteCutout, FrameLayout.SCALE_X, 0.0f, 83, HOME_DISAPPEAR_INTERPOLATOR));
-        arraySet.add(getPropertyAnimator(mWhiteCutout, FrameLayout.SCALE_Y, 0.0f, 83, HOME_DISAPPEAR_INTERPOLATOR));
-        arraySet.add(getPropertyAnimator(mHalo, FrameLayout.SCALE_X, 0.0f, 83, HOME_DISAPPEAR_INTERPOLATOR));
-        arraySet.add(getPropertyAnimator(mHalo, FrameLayout.SCALE_Y, 0.0f, 83, HOME_DISAPPEAR_INTERPOLATOR));
-        getLongestAnim(arraySet).addListener(new AnimatorListenerAdapter() {
-            @Override
-            public void onAnimationStart(Animator animator) {
-                Trace.beginSection("OpaLayout.start.line");
-                Trace.endSection();
-            }
-
-            @Override
-            public void onAnimationCancel(Animator animator) {
-                Trace.beginSection("OpaLayout.cancel.line");
-                Trace.endSection();
-                mCurrentAnimators.clear();
-            }
+    private void onPhaseCancel(Phase phase) {
+        if (phase.mId == PHASE_DIAMOND || phase.mId == PHASE_LINE) {
+            mCurrentPhase = null;
+        }
+    }
 
-            @Override
-            public void onAnimationEnd(Animator animator) {
-                Trace.beginSection("OpaLayout.end.line");
-                Trace.endSection();
+    private void onPhaseEnd(Phase phase) {
+        mCurrentPhase = null;
+        switch (phase.mId) {
+            case PHASE_DIAMOND:
+                startLineAnimation();
+                break;
+            case PHASE_LINE:
                 startCollapseAnimation();
-            }
-        });
-        return arraySet;
+                break;
+            default:
+                skipToStartingValue();
+                break;
+        }
     }
 
     public boolean getOpaEnabled() {
@@ -618,15 +548,14 @@ public class OpaLayout extends FrameLayout implements ButtonInterface, FeedbackE
     }
 
     private void cancelCurrentAnimation(String str) {
-        Trace.beginSection("OpaLayout.cancelCurrentAnimation: reason=" + str);
-        Trace.endSection();
-        if (!mCurrentAnimators.isEmpty()) {
-            for (int size = mCurrentAnimators.size() - 1; size >= 0; size--) {
-                Animator valueAt = mCurrentAnimators.valueAt(size);
-                valueAt.removeAllListeners();
-                valueAt.cancel();
-            }
-            mCurrentAnimators.clear();
+        if (Trace.isEnabled()) {
+            Trace.beginSection("OpaLayout.cancelCurrentAnimation: reason=" + str);
+            Trace.endSection();
+        }
+        if (mCurrentPhase != null) {
+            Phase phase = mCurrentPhase;
+            mCurrentPhase = null;
+            phase.cancel();
             mAnimationState = 0;
         }
         if (mGestureAnimatorSet != null) {
@@ -636,29 +565,16 @@ public class OpaLayout extends FrameLayout implements ButtonInterface, FeedbackE
     }
 
     private void endCurrentAnimation(String str) {
-        Trace.beginSection("OpaLayout.endCurrentAnimation: reason=" + str);
-        if (!mCurrentAnimators.isEmpty()) {
-            for (int size = mCurrentAnimators.size() - 1; size >= 0; size--) {
-                Animator valueAt = mCurrentAnimators.valueAt(size);
-                valueAt.removeAllListeners();
-                valueAt.end();
-            }
-            mCurrentAnimators.clear();
+        if (Trace.isEnabled()) {
+            Trace.beginSection("OpaLayout.endCurrentAnimation: reason=" + str);
+            Trace.endSection();
         }
-        mAnimationState = 0;
-    }
-
-    private Animator getLongestAnim(ArraySet<Animator> arraySet) {
-        long j = Long.MIN_VALUE;
-        Animator animator = null;
-        for (int size = arraySet.size() - 1; size >= 0; size--) {
-            Animator valueAt = arraySet.valueAt(size);
-            if (valueAt.getTotalDuration() > j) {
-                j = valueAt.getTotalDuration();
-                animator = valueAt;
-            }
+        if (mCurrentPhase != null) {
+            Phase phase = mCurrentPhase;
+            mCurrentPhase = null;
+            phase.end();
         }
-        return animator;
+        mAnimationState = 0;
     }
 
     private void setDotsVisible() {
@@ -669,6 +585,24 @@ public class OpaLayout extends FrameLayout implements ButtonInterface, FeedbackE
     }
 
     private void skipToStartingValue() {
+        // Phases that were taken over may still run on the RenderThread; finish them first so the
+        // start values below are not compared against, or overridden by, their end values.
+        for (Phase[] phases : mPhases) {
+            if (phases != null) {
+                for (Phase phase : phases) {
+                    if (phase != mCurrentPhase) {
+                        phase.finishRenderThreadAnimators();
+                    }
+                }
+            }
+        }
+        for (int i = mRetiredPhases.size() - 1; i >= 0; i--) {
+            Phase phase = mRetiredPhases.get(i);
+            if (phase != mCurrentPhase) {
+                phase.finishRenderThreadAnimators();
+                mRetiredPhases.remove(i);
+            }
+        }
         int size = mAnimatedViews.size();
         for (int i = 0; i < size; i++) {
             View view = mAnimatedViews.get(i);
@@ -813,10 +747,311 @@ public class OpaLayout extends FrameLayout implements ButtonInterface, FeedbackE
         return mGestureLineSet;
     }
 
-    private Animator getPropertyAnimator(View view, Property<View, Float> property, float f, int i, Interpolator interpolator) {
-        ObjectAnimator ofFloat = ObjectAnimator.ofFloat(view, property, f);
-        ofFloat.setDuration(i);
-        ofFloat.setInterpolator(interpolator);
-        return ofFloat;
+    /**
+     * One step of the press animation: a fixed set of {@link Track}s that a press only has to
+     * retarget. When the layout is hardware accelerated the tracks run as RenderNodeAnimators, so
+     * they keep moving while the main thread is busy; otherwise a single driver animator moves them
+     * on the UI thread.
+     */
+    private final class Phase extends AnimatorListenerAdapter implements ValueAnimator.AnimatorUpdateListener {
+        final int mId;
+        private final ArrayList<Track> mTracks = new ArrayList<>();
+        private final ValueAnimator mDriver = ValueAnimator.ofFloat(0.0f, 1.0f);
+        private final String mStartSection;
+        private final String mCancelSection;
+        private final String mEndSection;
+        private long mDuration;
+        private boolean mNotify;
+        private Animator[] mRenderThreadAnimators;
+        private boolean mOnRenderThread;
+
+        Phase(int id, String name) {
+            mId = id;
+            mStartSection = "OpaLayout.start." + name;
+            mCancelSection = "OpaLayout.cancel." + name;
+            mEndSection = "OpaLayout.end." + name;
+            mDriver.setInterpolator(Interpolators.LINEAR);
+            mDriver.addUpdateListener(this);
+            mDriver.addListener(this);
+        }
+
+        Track add(View view, int property, float value, boolean relative, int duration, Interpolator interpolator) {
+            Track track = new Track(view, property, value, relative, duration, interpolator);
+            mTracks.add(track);
+            return track;
+        }
+
+        void start() {
+            mNotify = false;
+            detachRenderThreadAnimators();
+            mDuration = 0;
+            for (int i = mTracks.size() - 1; i >= 0; i--) {
+                Track track = mTracks.get(i);
+                track.retarget();
+                mDuration = Math.max(mDuration, track.mStartDelay + track.mDuration);
+            }
+            mNotify = true;
+            mOnRenderThread = isHardwareAccelerated();
+            if (mOnRenderThread) {
+                startOnRenderThread();
+                return;
+            }
+            mDriver.setDuration(mDuration);
+            mDriver.start();
+        }
+
+        /** RenderNodeAnimators can only run once, so one is made per track; the longest one reports back. */
+        private void startOnRenderThread() {
+            if (mRenderThreadAnimators == null) {
+                mRenderThreadAnimators = new Animator[mTracks.size()];
+            }
+            boolean listening = false;
+            for (int i = 0; i < mRenderThreadAnimators.length; i++) {
+                Track track = mTracks.get(i);
+                Animator animator = track.createRenderNodeAnimator();
+                if (!listening && track.mStartDelay + track.mDuration == mDuration) {
+                    animator.addListener(this);
+                    listening = true;
+                }
+                mRenderThreadAnimators[i] = animator;
+            }
+            for (Animator animator : mRenderThreadAnimators) {
+                animator.start();
+            }
+        }
+
+        /**
+         * Stops listening to the RenderThread animators but lets them run. Cancelling one would
+         * snap its view to the end value, which RenderNodeAnimator already wrote to the UI-side
+         * RenderNode at start; they are ended once the next phase claims their properties.
+         */
+        private void detachRenderThreadAnimators() {
+            if (mRenderThreadAnimators == null) {
+                return;
+            }
+            for (Animator animator : mRenderThreadAnimators) {
+                if (animator != null) {
+                    animator.removeListener(this);
+                }
+            }
+        }
+
+        /**
+         * Ends, rather than cancels, this phase's RenderThread animators on properties that
+         * {@code next} is about to animate, so they cannot outlive and overwrite its animators.
+         */
+        void endRenderThreadAnimatorsSupersededBy(Phase next) {
+            if (mRenderThreadAnimators == null) {
+                return;
+            }
+            for (int i = 0; i < mRenderThreadAnimators.length; i++) {
+                Animator animator = mRenderThreadAnimators[i];
+                if (animator != null && next.animates(mTracks.get(i))) {
+                    animator.removeListener(this);
+                    animator.end();
+                    mRenderThreadAnimators[i] = null;
+                }
+            }
+        }
+
+        private boolean animates(Track other) {
+            for (int i = mTracks.size() - 1; i >= 0; i--) {
+                Track track = mTracks.get(i);
+                if (track.mView == other.mView && track.getRenderProperty() == other.getRenderProperty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Jumps the RenderThread animators to their end values, keeping both threads in sync. */
+        void finishRenderThreadAnimators() {
+            if (mRenderThreadAnimators == null) {
+                return;
+            }
+            mNotify = false;
+            for (int i = 0; i < mRenderThreadAnimators.length; i++) {
+                Animator animator = mRenderThreadAnimators[i];
+                if (animator != null) {
+                    animator.end();
+                    mRenderThreadAnimators[i] = null;
+                }
+            }
+        }
+
+        /**
+         * Stops without running the follow-up phase. On the UI thread the views stay where they
+         * are; on the RenderThread they keep moving until the caller starts the next phase or
+         * resets them.
+         */
+        void cancel() {
+            mNotify = false;
+            if (mOnRenderThread) {
+                detachRenderThreadAnimators();
+            } else {
+                mDriver.cancel();
+            }
+        }
+
+        /** Jumps to the end values without running the follow-up phase. */
+        void end() {
+            mNotify = false;
+            if (mOnRenderThread) {
+                finishRenderThreadAnimators();
+            } else {
+                mDriver.end();
+            }
+        }
+
+        @Override
+        public void onAnimationUpdate(ValueAnimator valueAnimator) {
+            float playTime = valueAnimator.getAnimatedFraction() * mDuration;
+            for (int i = mTracks.size() - 1; i >= 0; i--) {
+                mTracks.get(i).update(playTime);
+            }
+        }
+
+        @Override
+        public void onAnimationStart(Animator animator) {
+            Trace.beginSection(mStartSection);
+            Trace.endSection();
+        }
+
+        @Override
+        public void onAnimationCancel(Animator animator) {
+            if (mNotify) {
+                mNotify = false;
+                Trace.beginSection(mCancelSection);
+                Trace.endSection();
+                onPhaseCancel(this);
+            }
+        }
+
+        @Override
+        public void onAnimationEnd(Animator animator) {
+            if (mNotify) {
+                mNotify = false;
+                Trace.beginSection(mEndSection);
+                Trace.endSection();
+                onPhaseEnd(this);
+            }
+        }
+    }
+
+    /** Animates one property of one view from its value at phase start to a fixed or relative target. */
+    private static final class Track {
+        final View mView;
+        final int mProperty;
+        final float mValue;
+        final boolean mRelative;
+        final int mDuration;
+        final Interpolator mInterpolator;
+        long mStartDelay;
+        private float mFrom;
+        private float mTo;
+
+        Track(View view, int property, float value, boolean relative, int duration, Interpolator interpolator) {
+            mView = view;
+            mProperty = property;
+            mValue = value;
+            mRelative = relative;
+            mDuration = duration;
+            mInterpolator = interpolator;
+        }
+
+        void retarget() {
+            mFrom = get();
+            mTo = mRelative ? mFrom + mValue : mValue;
+        }
+
+        void update(float playTime) {
+            if (playTime < mStartDelay) {
+                return;
+            }
+            float fraction = Math.min((playTime - mStartDelay) / mDuration, 1.0f);
+            set(mFrom + ((mTo - mFrom) * mInterpolator.getInterpolation(fraction)));
+        }
+
+        /**
+         * Animates the same change on the RenderThread, starting from whatever value the
+         * RenderThread currently shows. X and Y are expressed as translations.
+         */
+        Animator createRenderNodeAnimator() {
+            float to = mTo;
+            if (mProperty == PROPERTY_X) {
+                to = mView.getTranslationX() + (mTo - mFrom);
+            } else if (mProperty == PROPERTY_Y) {
+                to = mView.getTranslationY() + (mTo - mFrom);
+            }
+            RenderNodeAnimator renderNodeAnimator = new RenderNodeAnimator(getRenderProperty(), to);
+            renderNodeAnimator.setTarget(mView);
+            renderNodeAnimator.setDuration(mDuration);
+            renderNodeAnimator.setStartDelay(mStartDelay);
+            renderNodeAnimator.setInterpolator(mInterpolator);
+            return renderNodeAnimator;
+        }
+
+        /** Returns the RenderNodeAnimator property this track drives. */
+        int getRenderProperty() {
+            switch (mProperty) {
+                case PROPERTY_X:
+                case PROPERTY_TRANSLATION_X:
+                    return RenderNodeAnimator.TRANSLATION_X;
+                case PROPERTY_Y:
+                case PROPERTY_TRANSLATION_Y:
+                    return RenderNodeAnimator.TRANSLATION_Y;
+                case PROPERTY_SCALE_X:
+                    return RenderNodeAnimator.SCALE_X;
+                case PROPERTY_SCALE_Y:
+                    return RenderNodeAnimator.SCALE_Y;
+                default:
+                    return RenderNodeAnimator.ALPHA;
+            }
+        }
+
+        private float get() {
+            switch (mProperty) {
+                case PROPERTY_X:
+                    return mView.getX();
+                case PROPERTY_Y:
+                    return mView.getY();
+                case PROPERTY_TRANSLATION_X:
+                    return mView.getTranslationX();
+                case PROPERTY_TRANSLATION_Y:
+                    return mView.getTranslationY();
+                case PROPERTY_SCALE_X:
+                    return mView.getScaleX();
+                case PROPERTY_SCALE_Y:
+                    return mView.getScaleY();
+                default:
+                    return mView.getAlpha();
+            }
+        }
+
+        private void set(float value) {
+            switch (mProperty) {
+                case PROPERTY_X:
+                    mView.setX(value);
+                    break;
+                case PROPERTY_Y:
+                    mView.setY(value);
+                    break;
+                case PROPERTY_TRANSLATION_X:
+                    mView.setTranslationX(value);
+                    break;
+                case PROPERTY_TRANSLATION_Y:
+                    mView.setTranslationY(value);
+                    break;
+                case PROPERTY_SCALE_X:
+                    mView.setScaleX(value);
+                    break;
+                case PROPERTY_SCALE_Y:
+                    mView.setScaleY(value);
+                    break;
+                default:
+                    mView.setAlpha(value);
+                    break;
+            }
+        }
     }
 }
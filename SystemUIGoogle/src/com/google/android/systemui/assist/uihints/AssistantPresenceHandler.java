@@ -19,40 +19,120 @@ package com.google.android.systemui.assist.uihints;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.os.SystemClock;
 import android.provider.Settings;
 
+import androidx.annotation.NonNull;
+
 import com.android.internal.app.AssistUtils;
+import com.android.systemui.Dumpable;
 import com.android.systemui.dagger.SysUISingleton;
+import com.android.systemui.dagger.qualifiers.Background;
+import com.android.systemui.dagger.qualifiers.Main;
+import com.android.systemui.dump.DumpManager;
+import com.android.systemui.util.concurrency.DelayableExecutor;
 import com.google.android.systemui.assist.uihints.NgaMessageHandler;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import javax.inject.Inject;
 
+/**
+ * Tracks whether the Google assistant and NGA are the current assistant. The state held here is
+ * the source of truth; it is persisted to Settings.Secure for other processes on the background
+ * executor, at most once per {@link #PERSIST_DELAY_MS}, and loaded from there off the injection
+ * path at startup.
+ */
 @SysUISingleton
-public class AssistantPresenceHandler implements NgaMessageHandler.ConfigInfoListener {
+public class AssistantPresenceHandler implements NgaMessageHandler.ConfigInfoListener, Dumpable {
+    private static final String NGA_IS_ASSISTANT = "com.google.android.systemui.assist.uihints.NGA_IS_ASSISTANT";
+    private static final String SYS_UI_IS_NGA_UI = "com.google.android.systemui.assist.uihints.SYS_UI_IS_NGA_UI";
+    private static final long PERSIST_DELAY_MS = 500;
+
     private final AssistUtils mAssistUtils;
     private final ContentResolver mContentResolver;
+    private final Executor mMainExecutor;
+    private final DelayableExecutor mBgExecutor;
     private final Set<AssistantPresenceChangeListener> mAssistantPresenceChangeListeners = new HashSet();
     private final Set<SysUiIsNgaUiChangeListener> mSysUiIsNgaUiChangeListeners = new HashSet();
     private boolean mGoogleIsAssistant;
-    private boolean mNgaIsAssistant;
-    private boolean mSysUiIsNgaUi;
+    private volatile boolean mNgaIsAssistant;
+    private volatile boolean mSysUiIsNgaUi;
+    private boolean mAsyncUpdatePending;
+    private final ArrayList<Runnable> mAsyncUpdateCallbacks = new ArrayList<>();
+    // Set once NgaMessageHandler reported a config, which is newer than what is stored in settings.
+    private boolean mStateKnown;
+    // Set on the main thread once the stored state has been applied.
+    private boolean mLoaded;
+    private boolean mUpdateAfterLoad;
+
+    // Only accessed on the background executor.
+    private int mPersistedNgaIsAssistant = -1;
+    private int mPersistedSysUiIsNgaUi = -1;
+    private boolean mPersistScheduled;
+
+    private final long mConstructorNs;
+    private long mLoadMs = -1;
+    private long mConfigInfoCount;
+    private long mConfigInfoTotalNs;
+    private long mConfigInfoMaxNs;
+    private long mPersistRequests;
+    private long mSettingsWrites;
 
     @Inject
-    AssistantPresenceHandler(Context context, AssistUtils assistUtils) {
+    AssistantPresenceHandler(Context context, AssistUtils assistUtils, @Main Executor mainExecutor, @Background DelayableExecutor bgExecutor,
+            DumpManager dumpManager) {
+        long startNs = SystemClock.elapsedRealtimeNanos();
         ContentResolver contentResolver = context.getContentResolver();
         mContentResolver = contentResolver;
         mAssistUtils = assistUtils;
-        boolean z = false;
-        mNgaIsAssistant = Settings.Secure.getInt(contentResolver, "com.google.android.systemui.assist.uihints.NGA_IS_ASSISTANT", 0) != 0;
-        mSysUiIsNgaUi = Settings.Secure.getInt(contentResolver, "com.google.android.systemui.assist.uihints.SYS_UI_IS_NGA_UI", 0) != 0 || z;
+        mMainExecutor = mainExecutor;
+        mBgExecutor = bgExecutor;
+        long createdMs = SystemClock.elapsedRealtime();
+        mBgExecutor.execute(() -> {
+            int ngaIsAssistant = Settings.Secure.getInt(contentResolver, NGA_IS_ASSISTANT, 0) != 0 ? 1 : 0;
+            int sysUiIsNgaUi = Settings.Secure.getInt(contentResolver, SYS_UI_IS_NGA_UI, 0) != 0 ? 1 : 0;
+            if (mPersistedNgaIsAssistant == -1) {
+                mPersistedNgaIsAssistant = ngaIsAssistant;
+                mPersistedSysUiIsNgaUi = sysUiIsNgaUi;
+            }
+            mMainExecutor.execute(() -> {
+                mLoadMs = SystemClock.elapsedRealtime() - createdMs;
+                // A presence update that already happened is newer than what was stored.
+                if (!mStateKnown) {
+                    mNgaIsAssistant = ngaIsAssistant != 0;
+                    if (mSysUiIsNgaUi != (sysUiIsNgaUi != 0)) {
+                        // Consumers that read the default during startup need to hear the stored value.
+                        mSysUiIsNgaUi = sysUiIsNgaUi != 0;
+                        for (SysUiIsNgaUiChangeListener sysUiIsNgaUiChangeListener : mSysUiIsNgaUiChangeListeners) {
+                            sysUiIsNgaUiChangeListener.onSysUiIsNgaUiChanged(mSysUiIsNgaUi);
+                        }
+                    }
+                }
+                mLoaded = true;
+                if (mUpdateAfterLoad) {
+                    mUpdateAfterLoad = false;
+                    requestAssistantPresenceUpdateAsync(null);
+                }
+            });
+        });
+        dumpManager.registerDumpable("AssistantPresenceHandler", this);
+        mConstructorNs = SystemClock.elapsedRealtimeNanos() - startNs;
     }
 
     @Override
     public void onConfigInfo(NgaMessageHandler.ConfigInfo configInfo) {
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        mStateKnown = true;
         updateAssistantPresence(fetchIsGoogleAssistant(), configInfo.ngaIsAssistant, configInfo.sysUiIsNgaUi);
+        long durationNs = SystemClock.elapsedRealtimeNanos() - startNs;
+        mConfigInfoCount++;
+        mConfigInfoTotalNs += durationNs;
+        mConfigInfoMaxNs = Math.max(mConfigInfoMaxNs, durationNs);
     }
 
     public void registerAssistantPresenceChangeListener(AssistantPresenceChangeListener assistantPresenceChangeListener) {
@@ -63,10 +143,53 @@ public class AssistantPresenceHandler implements NgaMessageHandler.ConfigInfoLis
         mSysUiIsNgaUiChangeListeners.add(sysUiIsNgaUiChangeListener);
     }
 
+    /**
+     * Re-checks the current assistant against the in-memory NGA state. Before the stored state has
+     * been loaded the check is deferred, so that the defaults are never persisted over it.
+     */
     public void requestAssistantPresenceUpdate() {
+        if (!mLoaded && !mStateKnown) {
+            mUpdateAfterLoad = true;
+            return;
+        }
         updateAssistantPresence(fetchIsGoogleAssistant(), mNgaIsAssistant, mSysUiIsNgaUi);
     }
 
+    /**
+     * Like {@link #requestAssistantPresenceUpdate()}, but looks up the assistant component on the
+     * background executor and applies the result, and calls listeners, on the main thread. Must be
+     * called on the main thread; requests made while a lookup is in flight share its result.
+     * {@code onDone}, if not null, runs on the main thread once the result has been applied, whether
+     * or not the presence changed.
+     */
+    public void requestAssistantPresenceUpdateAsync(Runnable onDone) {
+        if (onDone != null) {
+            mAsyncUpdateCallbacks.add(onDone);
+        }
+        if (!mLoaded && !mStateKnown) {
+            mUpdateAfterLoad = true;
+            return;
+        }
+        if (mAsyncUpdatePending) {
+            return;
+        }
+        mAsyncUpdatePending = true;
+        mBgExecutor.execute(() -> {
+            boolean isGoogleAssistant = fetchIsGoogleAssistant();
+            mMainExecutor.execute(() -> {
+                mAsyncUpdatePending = false;
+                updateAssistantPresence(isGoogleAssistant, mNgaIsAssistant, mSysUiIsNgaUi);
+                if (!mAsyncUpdateCallbacks.isEmpty()) {
+                    ArrayList<Runnable> callbacks = new ArrayList<>(mAsyncUpdateCallbacks);
+                    mAsyncUpdateCallbacks.clear();
+                    for (Runnable callback : callbacks) {
+                        callback.run();
+                    }
+                }
+            });
+        });
+    }
+
     public boolean isSysUiNgaUi() {
         return mSysUiIsNgaUi;
     }
@@ -84,24 +207,57 @@ public class AssistantPresenceHandler implements NgaMessageHandler.ConfigInfoLis
         if (mGoogleIsAssistant != z || mNgaIsAssistant != z5) {
             mGoogleIsAssistant = z;
             mNgaIsAssistant = z5;
-            int i = z5 ? 1 : 0;
-            int i2 = z5 ? 1 : 0;
-            Settings.Secure.putInt(mContentResolver, "com.google.android.systemui.assist.uihints.NGA_IS_ASSISTANT", i);
+            schedulePersist();
             for (AssistantPresenceChangeListener assistantPresenceChangeListener : mAssistantPresenceChangeListeners) {
                 assistantPresenceChangeListener.onAssistantPresenceChanged(mGoogleIsAssistant, mNgaIsAssistant);
             }
         }
         if (mSysUiIsNgaUi != z4) {
             mSysUiIsNgaUi = z4;
-            int i3 = z4 ? 1 : 0;
-            int i4 = z4 ? 1 : 0;
-            Settings.Secure.putInt(mContentResolver, "com.google.android.systemui.assist.uihints.SYS_UI_IS_NGA_UI", i3);
+            schedulePersist();
             for (SysUiIsNgaUiChangeListener sysUiIsNgaUiChangeListener : mSysUiIsNgaUiChangeListeners) {
                 sysUiIsNgaUiChangeListener.onSysUiIsNgaUiChanged(mSysUiIsNgaUi);
             }
         }
     }
 
+    private void schedulePersist() {
+        mPersistRequests++;
+        mBgExecutor.execute(() -> {
+            if (!mPersistScheduled) {
+                mPersistScheduled = true;
+                mBgExecutor.executeDelayed(this::persist, PERSIST_DELAY_MS);
+            }
+        });
+    }
+
+    /** Writes the latest in-memory state, skipping values that are already stored. */
+    private void persist() {
+        mPersistScheduled = false;
+        int ngaIsAssistant = mNgaIsAssistant ? 1 : 0;
+        if (ngaIsAssistant != mPersistedNgaIsAssistant) {
+            Settings.Secure.putInt(mContentResolver, NGA_IS_ASSISTANT, ngaIsAssistant);
+            mPersistedNgaIsAssistant = ngaIsAssistant;
+            mSettingsWrites++;
+        }
+        int sysUiIsNgaUi = mSysUiIsNgaUi ? 1 : 0;
+        if (sysUiIsNgaUi != mPersistedSysUiIsNgaUi) {
+            Settings.Secure.putInt(mContentResolver, SYS_UI_IS_NGA_UI, sysUiIsNgaUi);
+            mPersistedSysUiIsNgaUi = sysUiIsNgaUi;
+            mSettingsWrites++;
+        }
+    }
+
+    @Override
+    public void dump(@NonNull PrintWriter pw, @NonNull String[] args) {
+        pw.println("AssistantPresenceHandler:");
+        pw.println("  googleIsAssistant=" + mGoogleIsAssistant + ", ngaIsAssistant=" + mNgaIsAssistant + ", sysUiIsNgaUi=" + mSysUiIsNgaUi);
+        pw.println("  constructorUs=" + (mConstructorNs / 1000) + ", settingsLoadMs=" + mLoadMs);
+        pw.println("  configInfo: count=" + mConfigInfoCount + ", avgUs=" + (mConfigInfoCount > 0 ? mConfigInfoTotalNs / mConfigInfoCount / 1000 : 0)
+                + ", maxUs=" + (mConfigInfoMaxNs / 1000));
+        pw.println("  persistRequests=" + mPersistRequests + ", settingsWrites=" + mSettingsWrites);
+    }
+
     private boolean fetchIsGoogleAssistant() {
         ComponentName assistComponentForUser = mAssistUtils.getAssistComponentForUser(-2);
         return assistComponentForUser != null && "com.google.android.googlequicksearchbox/com.google.android.voiceinteraction.GsaVoiceInteractionService".equals(assistComponentForUser.flattenToString());
@@ -50,7 +50,7 @@ public class DockAlignmentController {
                 Log.d("DockAlignmentController", "onAlignStateChanged, state: " + mAlignmentState);
             }
         }
-        mDockObserver.onFanLevelChange();
+        mDockObserver.onFanLevelChange(false);
     }
 
     private int getAlignmentState(DockAlignInfo dockAlignInfo) {
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2022 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.systemui.dreamliner;
+
+import java.util.ArrayList;
+
+/**
+ * Converts dock payloads between {@code byte[]}, used everywhere on the Java side, and the
+ * {@code vec<uint8_t>} lists the wireless charger HAL expects. Conversion happens once at the
+ * HAL boundary.
+ */
+final class DockBytes {
+    private static final ThreadLocal<ArrayList<Byte>> sHalArgument = ThreadLocal.withInitial(ArrayList::new);
+
+    private DockBytes() {
+    }
+
+    /**
+     * Returns {@code bytes} as a HAL argument list. The list is reused by the calling thread, so
+     * it is only valid until the HAL call it is passed to returns.
+     */
+    static ArrayList<Byte> toHalArgument(byte[] bytes) {
+        if (bytes == null || bytes.length <= 0) {
+            return null;
+        }
+        ArrayList<Byte> list = sHalArgument.get();
+        list.clear();
+        list.ensureCapacity(bytes.length);
+        for (byte b : bytes) {
+            // Byte.valueOf() is backed by a cache covering every value, so this does not allocate.
+            list.add(Byte.valueOf(b));
+        }
+        return list;
+    }
+
+    /** Copies a HAL result into a new array, or returns null for an empty result. */
+    static byte[] fromHalResult(ArrayList<Byte> list) {
+        if (list == null || list.isEmpty()) {
+            return null;
+        }
+        int size = list.size();
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = list.get(i);
+        }
+        return bytes;
+    }
+}
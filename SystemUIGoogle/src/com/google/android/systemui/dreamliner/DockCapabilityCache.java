@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2022 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.systemui.dreamliner;
+
+import android.os.Bundle;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Remembers what a dock can do across docking sessions, keyed by manufacturer, model and serial
+ * of its {@link DockInfo}. Features and the static fan properties are answered from the cache
+ * directly. A cached WPC
+ * certificate chain is only served once the digest the dock reports for its slot matches the
+ * SHA-256 of the cached chain, which is a single cheap HAL call per docking.
+ */
+final class DockCapabilityCache {
+    private static final String TAG = "DockCapabilityCache";
+    private static final int VERSION = 1;
+    private static final int MAX_DOCKS = 8;
+
+    private final AtomicFile mFile;
+    private final Executor mWriteExecutor;
+    private final Runnable mWriteRunnable = this::write;
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+    private boolean mLoaded;
+
+    private Entry mCurrent;
+    private boolean mCurrentWasKnown;
+    private int mValidatedSlots;
+
+    private int mFeatureHits;
+    private int mFeatureMisses;
+    private int mFanHits;
+    private int mCertificateHits;
+    private int mDigestMismatches;
+    private long mLastTimeToPairedKnownMs = -1;
+    private long mLastTimeToPairedNewMs = -1;
+
+    private static final class Entry {
+        final String mKey;
+        long mLastSeenMs;
+        final LongSparseArray<Long> mFeatures = new LongSparseArray<>();
+        final SparseArray<int[]> mFanCapabilities = new SparseArray<>();
+        final SparseArray<byte[]> mDigests = new SparseArray<>();
+        final SparseArray<byte[]> mCertificates = new SparseArray<>();
+
+        Entry(String key) {
+            mKey = key;
+        }
+    }
+
+    DockCapabilityCache(File file, Executor writeExecutor) {
+        mFile = new AtomicFile(file);
+        mWriteExecutor = writeExecutor;
+    }
+
+    static String getKey(DockInfo dockInfo) {
+        return dockInfo.getManufacturer() + '/' + dockInfo.getModel() + '/' + dockInfo.getSerialNumber();
+    }
+
+    /** Selects the entry for the dock the phone is sitting on. */
+    synchronized void onDockIdentified(DockInfo dockInfo) {
+        load();
+        String key = getKey(dockInfo);
+        if (mCurrent != null && mCurrent.mKey.equals(key)) {
+            return;
+        }
+        mValidatedSlots = 0;
+        mCurrent = mEntries.get(key);
+        mCurrentWasKnown = mCurrent != null;
+        if (mCurrent == null) {
+            mCurrent = new Entry(key);
+            mEntries.put(key, mCurrent);
+            trim();
+        }
+        mCurrent.mLastSeenMs = System.currentTimeMillis();
+        scheduleWrite();
+    }
+
+    synchronized void onUndocked() {
+        mCurrent = null;
+        mValidatedSlots = 0;
+    }
+
+    synchronized boolean isCurrentDockKnown() {
+        return mCurrent != null && mCurrentWasKnown;
+    }
+
+    /** Returns the cached features of {@code chargerId} on the current dock, or null. */
+    synchronized Long getFeatures(long chargerId) {
+        Long features = mCurrent != null ? mCurrent.mFeatures.get(chargerId) : null;
+        if (features != null) {
+            mFeatureHits++;
+        } else {
+            mFeatureMisses++;
+        }
+        return features;
+    }
+
+    synchronized void putFeatures(long chargerId, long features) {
+        if (mCurrent != null) {
+            mCurrent.mFeatures.put(chargerId, features);
+            scheduleWrite();
+        }
+    }
+
+    synchronized void invalidateFeatures(long chargerId) {
+        if (mCurrent != null) {
+            mCurrent.mFeatures.remove(chargerId);
+            scheduleWrite();
+        }
+    }
+
+    /** Returns the cached min rpm, max rpm, type and count of {@code fanId}, or null. */
+    synchronized int[] getFanCapabilities(int fanId) {
+        int[] capabilities = mCurrent != null ? mCurrent.mFanCapabilities.get(fanId) : null;
+        if (capabilities != null) {
+            mFanHits++;
+        }
+        return capabilities;
+    }
+
+    /** Adds the static fields of a {@code getFanInformation} result to a {@code getFan} result. */
+    static void putFanCapabilities(Bundle fanInfo, int[] capabilities) {
+        fanInfo.putInt("fan_min_rpm", capabilities[0]);
+        fanInfo.putInt("fan_max_rpm", capabilities[1]);
+        fanInfo.putByte("fan_type", (byte) capabilities[2]);
+        fanInfo.putByte("fan_count", (byte) capabilities[3]);
+    }
+
+    /** Stores the static part of a {@code getFanInformation} result. */
+    synchronized void putFanCapabilities(Bundle fanInfo) {
+        if (mCurrent == null || fanInfo == null) {
+            return;
+        }
+        int[] capabilities = {fanInfo.getInt("fan_min_rpm", -1), fanInfo.getInt("fan_max_rpm", -1),
+                fanInfo.getByte("fan_type", (byte) -1), fanInfo.getByte("fan_count", (byte) -1)};
+        int fanId = fanInfo.getByte("fan_id", (byte) -1);
+        if (!Arrays.equals(capabilities, mCurrent.mFanCapabilities.get(fanId))) {
+            mCurrent.mFanCapabilities.put(fanId, capabilities);
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * Records the digests from {@code getWpcAuthDigests}; {@code digests} holds one entry for each
+     * bit set in {@code returnedMask}, lowest slot first. Cached chains whose hash matches are
+     * marked valid for this docking, the rest are dropped.
+     */
+    synchronized void onWpcDigests(byte returnedMask, ArrayList<byte[]> digests) {
+        if (mCurrent == null || digests == null) {
+            return;
+        }
+        int index = 0;
+        for (int slot = 0; slot < 8 && index < digests.size(); slot++) {
+            if ((returnedMask & (1 << slot)) == 0) {
+                continue;
+            }
+            byte[] digest = digests.get(index++);
+            byte[] certificate = mCurrent.mCertificates.get(slot);
+            if (certificate != null && Arrays.equals(digest, sha256(certificate))) {
+                mValidatedSlots |= 1 << slot;
+            } else {
+                mValidatedSlots &= ~(1 << slot);
+                if (certificate != null) {
+                    mDigestMismatches++;
+                    mCurrent.mCertificates.remove(slot);
+                }
+            }
+            if (!Arrays.equals(digest, mCurrent.mDigests.get(slot))) {
+                mCurrent.mDigests.put(slot, digest);
+                scheduleWrite();
+            }
+        }
+    }
+
+    /** Returns the chain for {@code slot} if it was validated against the dock's digest. */
+    synchronized byte[] getValidatedCertificate(int slot) {
+        if (mCurrent == null || (mValidatedSlots & (1 << slot)) == 0) {
+            return null;
+        }
+        mCertificateHits++;
+        return mCurrent.mCertificates.get(slot);
+    }
+
+    /** Stores a fully read chain if it matches the digest the dock reported for its slot. */
+    synchronized void putCertificate(int slot, byte[] certificate) {
+        if (mCurrent == null) {
+            return;
+        }
+        byte[] digest = mCurrent.mDigests.get(slot);
+        if (digest == null || !Arrays.equals(digest, sha256(certificate))) {
+            return;
+        }
+        mCurrent.mCertificates.put(slot, certificate);
+        mValidatedSlots |= 1 << slot;
+        scheduleWrite();
+    }
+
+    synchronized void recordTimeToPaired(long elapsedMs) {
+        if (mCurrentWasKnown) {
+            mLastTimeToPairedKnownMs = elapsedMs;
+        } else {
+            mLastTimeToPairedNewMs = elapsedMs;
+        }
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private void trim() {
+        while (mEntries.size() > MAX_DOCKS) {
+            int oldest = -1;
+            for (int i = 0; i < mEntries.size(); i++) {
+                Entry entry = mEntries.valueAt(i);
+                if (entry != mCurrent && (oldest < 0 || entry.mLastSeenMs < mEntries.valueAt(oldest).mLastSeenMs)) {
+                    oldest = i;
+                }
+            }
+            mEntries.removeAt(oldest);
+        }
+    }
+
+    private void scheduleWrite() {
+        mWriteExecutor.execute(mWriteRunnable);
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        try (DataInputStream in = new DataInputStream(mFile.openRead())) {
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readUTF());
+                entry.mLastSeenMs = in.readLong();
+                int features = in.readInt();
+                for (int j = 0; j < features; j++) {
+                    entry.mFeatures.put(in.readLong(), in.readLong());
+                }
+                int fans = in.readInt();
+                for (int j = 0; j < fans; j++) {
+                    int fanId = in.readInt();
+                    int[] capabilities = new int[4];
+                    for (int k = 0; k < capabilities.length; k++) {
+                        capabilities[k] = in.readInt();
+                    }
+                    entry.mFanCapabilities.put(fanId, capabilities);
+                }
+                readSlots(in, entry.mDigests);
+                readSlots(in, entry.mCertificates);
+                mEntries.put(entry.mKey, entry);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read dock capabilities", e);
+            mEntries.clear();
+        }
+    }
+
+    private static void readSlots(DataInputStream in, SparseArray<byte[]> slots) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int slot = in.readInt();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            slots.put(slot, bytes);
+        }
+    }
+
+    private static void writeSlots(DataOutputStream out, SparseArray<byte[]> slots) throws IOException {
+        out.writeInt(slots.size());
+        for (int i = 0; i < slots.size(); i++) {
+            out.writeInt(slots.keyAt(i));
+            out.writeInt(slots.valueAt(i).length);
+            out.write(slots.valueAt(i));
+        }
+    }
+
+    private synchronized void write() {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(VERSION);
+            out.writeInt(mEntries.size());
+            for (int i = 0; i < mEntries.size(); i++) {
+                Entry entry = mEntries.valueAt(i);
+                out.writeUTF(entry.mKey);
+                out.writeLong(entry.mLastSeenMs);
+                out.writeInt(entry.mFeatures.size());
+                for (int j = 0; j < entry.mFeatures.size(); j++) {
+                    out.writeLong(entry.mFeatures.keyAt(j));
+                    out.writeLong(entry.mFeatures.valueAt(j));
+                }
+                out.writeInt(entry.mFanCapabilities.size());
+                for (int j = 0; j < entry.mFanCapabilities.size(); j++) {
+                    out.writeInt(entry.mFanCapabilities.keyAt(j));
+                    for (int capability : entry.mFanCapabilities.valueAt(j)) {
+                        out.writeInt(capability);
+                    }
+                }
+                writeSlots(out, entry.mDigests);
+                writeSlots(out, entry.mCertificates);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write dock capabilities", e);
+            mFile.failWrite(fos);
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  DockCapabilityCache:");
+        pw.println("    docks=" + mEntries.size() + ", current=" + (mCurrent != null ? Integer.toHexString(mCurrent.mKey.hashCode()) : "none")
+                + ", known=" + mCurrentWasKnown + ", validatedSlots=0x" + Integer.toHexString(mValidatedSlots));
+        pw.println("    featureHits=" + mFeatureHits + ", featureMisses=" + mFeatureMisses + ", fanHits=" + mFanHits + ", certificateHits=" + mCertificateHits
+                + ", digestMismatches=" + mDigestMismatches);
+        pw.println("    lastTimeToPaired: knownDock=" + mLastTimeToPairedKnownMs + "ms, newDock=" + mLastTimeToPairedNewMs + "ms");
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2022 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.systemui.dreamliner;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs wireless charger HAL commands on separate lanes so that a slow authentication exchange
+ * cannot hold up fan control or telemetry queued behind it. Each lane has its own thread and a
+ * bounded queue; a command with a merge key replaces an equivalent command still waiting in the
+ * queue. Commands that are dropped or do not finish in time complete their
+ * {@link ResultReceiver} with {@link DockObserver#RESULT_NOT_FOUND}.
+ */
+final class DockCommandScheduler {
+    private static final String TAG = "DLCommandScheduler";
+
+    static final int LANE_CONTROL = 0;
+    static final int LANE_AUTH = 1;
+    static final int LANE_TELEMETRY = 2;
+
+    private static final String[] LANE_NAMES = {"control", "auth", "telemetry"};
+    private static final int[] LANE_CAPACITY = {8, 16, 8};
+    private static final long[] LANE_TIMEOUT_MS = {2000, 5000, 2000};
+    private static final long[] LATENCY_BUCKETS_MS = {1, 5, 10, 50, 100, 500, 1000, 5000};
+
+    interface CommandFactory {
+        /** Creates the command, which must report its result through {@code resultReceiver}. */
+        Runnable create(ResultReceiver resultReceiver);
+    }
+
+    private final Lane[] mLanes = new Lane[LANE_NAMES.length];
+    private final Handler mTimeoutHandler;
+    private final ArrayMap<String, CommandStats> mStats = new ArrayMap<>();
+
+    DockCommandScheduler(Handler timeoutHandler) {
+        mTimeoutHandler = timeoutHandler;
+        for (int i = 0; i < mLanes.length; i++) {
+            mLanes[i] = new Lane(i);
+        }
+    }
+
+    void submit(int lane, String name, ResultReceiver resultReceiver, CommandFactory factory) {
+        submit(lane, name, null, resultReceiver, factory);
+    }
+
+    /**
+     * Queues a command on {@code lane}. If {@code mergeKey} is non-null and a command with the
+     * same key is still waiting, the waiting command is superseded by this one.
+     */
+    void submit(int lane, String name, Object mergeKey, ResultReceiver resultReceiver, CommandFactory factory) {
+        Command command = new Command(name, mergeKey, resultReceiver);
+        command.mRunnable = factory.create(command.mReceiver);
+        mLanes[lane].enqueue(command);
+    }
+
+    private CommandStats getStats(String name) {
+        synchronized (mStats) {
+            CommandStats stats = mStats.get(name);
+            if (stats == null) {
+                stats = new CommandStats();
+                mStats.put(name, stats);
+            }
+            return stats;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  DockCommandScheduler:");
+        for (Lane lane : mLanes) {
+            lane.dump(pw);
+        }
+        synchronized (mStats) {
+            for (int i = 0; i < mStats.size(); i++) {
+                pw.println("    " + mStats.keyAt(i) + ": " + mStats.valueAt(i));
+            }
+        }
+    }
+
+    private static int bucket(long value) {
+        for (int i = 0; i < LATENCY_BUCKETS_MS.length; i++) {
+            if (value <= LATENCY_BUCKETS_MS[i]) {
+                return i;
+            }
+        }
+        return LATENCY_BUCKETS_MS.length;
+    }
+
+    private static void formatHistogram(StringBuilder sb, int[] counts) {
+        sb.append('[');
+        for (int i = 0; i < counts.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(i < LATENCY_BUCKETS_MS.length ? "<=" + LATENCY_BUCKETS_MS[i] : ">" + LATENCY_BUCKETS_MS[LATENCY_BUCKETS_MS.length - 1]);
+            sb.append("ms:").append(counts[i]);
+        }
+        sb.append(']');
+    }
+
+    private static final class CommandStats {
+        final int[] mQueueWait = new int[LATENCY_BUCKETS_MS.length + 1];
+        final int[] mExecution = new int[LATENCY_BUCKETS_MS.length + 1];
+        int mExecuted;
+        int mDropped;
+        int mMerged;
+        int mTimedOut;
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("executed=").append(mExecuted).append(" dropped=").append(mDropped)
+                    .append(" merged=").append(mMerged).append(" timedOut=").append(mTimedOut);
+            sb.append("\n      queueWait=");
+            formatHistogram(sb, mQueueWait);
+            sb.append("\n      execution=");
+            formatHistogram(sb, mExecution);
+            return sb.toString();
+        }
+    }
+
+    private final class Command implements Runnable {
+        final String mName;
+        final Object mMergeKey;
+        final CommandResultReceiver mReceiver;
+        final Runnable mTimeout = this::onTimeout;
+        Runnable mRunnable;
+        Lane mLane;
+        long mEnqueuedMs;
+
+        Command(String name, Object mergeKey, ResultReceiver resultReceiver) {
+            mName = name;
+            mMergeKey = mergeKey;
+            mReceiver = resultReceiver != null ? new CommandResultReceiver(resultReceiver, this) : null;
+        }
+
+        @Override
+        public void run() {
+            long startMs = SystemClock.uptimeMillis();
+            try {
+                mRunnable.run();
+            } catch (RuntimeException e) {
+                Log.w(TAG, mName + " failed", e);
+                fail();
+            }
+            long endMs = SystemClock.uptimeMillis();
+            CommandStats stats = getStats(mName);
+            synchronized (stats) {
+                stats.mExecuted++;
+                stats.mQueueWait[bucket(startMs - mEnqueuedMs)]++;
+                stats.mExecution[bucket(endMs - startMs)]++;
+            }
+            if (mReceiver == null) {
+                mTimeoutHandler.removeCallbacks(mTimeout);
+            }
+        }
+
+        void fail() {
+            if (mReceiver != null) {
+                mReceiver.send(DockObserver.RESULT_NOT_FOUND, null);
+            }
+            mTimeoutHandler.removeCallbacks(mTimeout);
+        }
+
+        private void onTimeout() {
+            Log.w(TAG, mName + " timed out on " + LANE_NAMES[mLane.mIndex] + " lane");
+            CommandStats stats = getStats(mName);
+            synchronized (stats) {
+                stats.mTimedOut++;
+            }
+            mLane.remove(this);
+            fail();
+        }
+    }
+
+    /** Forwards only the first result, so a late HAL callback cannot follow a timeout. */
+    private final class CommandResultReceiver extends ResultReceiver {
+        private final AtomicBoolean mDone = new AtomicBoolean();
+        private final ResultReceiver mTarget;
+        private final Command mCommand;
+
+        CommandResultReceiver(ResultReceiver target, Command command) {
+            super(null);
+            mTarget = target;
+            mCommand = command;
+        }
+
+        @Override
+        protected void onReceiveResult(int resultCode, Bundle resultData) {
+            if (mDone.compareAndSet(false, true)) {
+                mTimeoutHandler.removeCallbacks(mCommand.mTimeout);
+                mTarget.send(resultCode, resultData);
+            }
+        }
+    }
+
+    private final class Lane {
+        final int mIndex;
+        final Handler mHandler;
+        final ArrayDeque<Command> mQueue = new ArrayDeque<>();
+        final Runnable mDrain = this::drainOne;
+
+        Lane(int index) {
+            mIndex = index;
+            HandlerThread thread = new HandlerThread("DockCommand-" + LANE_NAMES[index], Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        }
+
+        void enqueue(Command command) {
+            command.mLane = this;
+            command.mEnqueuedMs = SystemClock.uptimeMillis();
+            Command superseded = null;
+            Command rejected = null;
+            synchronized (mQueue) {
+                if (command.mMergeKey != null) {
+                    for (Iterator<Command> it = mQueue.iterator(); it.hasNext(); ) {
+                        Command queued = it.next();
+                        if (command.mMergeKey.equals(queued.mMergeKey)) {
+                            it.remove();
+                            superseded = queued;
+                            break;
+                        }
+                    }
+                }
+                if (superseded == null && mQueue.size() >= LANE_CAPACITY[mIndex]) {
+                    rejected = command;
+                } else {
+                    mQueue.add(command);
+                    mTimeoutHandler.postDelayed(command.mTimeout, LANE_TIMEOUT_MS[mIndex]);
+                    if (superseded == null) {
+                        mHandler.post(mDrain);
+                    }
+                }
+            }
+            if (superseded != null) {
+                CommandStats stats = getStats(superseded.mName);
+                synchronized (stats) {
+                    stats.mMerged++;
+                }
+                superseded.fail();
+            }
+            if (rejected != null) {
+                Log.w(TAG, "Dropping " + rejected.mName + ", " + LANE_NAMES[mIndex] + " lane is full");
+                CommandStats stats = getStats(rejected.mName);
+                synchronized (stats) {
+                    stats.mDropped++;
+                }
+                rejected.fail();
+            }
+        }
+
+        void remove(Command command) {
+            // The drain posted for it finds the queue one shorter and does nothing.
+            synchronized (mQueue) {
+                mQueue.remove(command);
+            }
+        }
+
+        private void drainOne() {
+            Command command;
+            synchronized (mQueue) {
+                command = mQueue.poll();
+            }
+            if (command != null) {
+                command.run();
+            }
+        }
+
+        void dump(PrintWriter pw) {
+            synchronized (mQueue) {
+                pw.println("    lane " + LANE_NAMES[mIndex] + ": queued=" + mQueue.size() + "/" + LANE_CAPACITY[mIndex] + ", timeout=" + LANE_TIMEOUT_MS[mIndex] + "ms");
+            }
+        }
+    }
+}
@@ -35,6 +35,18 @@ public class DockInfo {
         accessoryType = i;
     }
 
+    String getManufacturer() {
+        return manufacturer;
+    }
+
+    String getModel() {
+        return model;
+    }
+
+    String getSerialNumber() {
+        return serialNumber;
+    }
+
     Bundle toBundle() {
         Bundle bundle = new Bundle();
         bundle.putString("manufacturer", manufacturer);
@@ -42,8 +42,11 @@ import android.widget.ImageView;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.systemui.Dependency;
+import com.android.systemui.Dumpable;
+import com.android.systemui.R;
 import com.android.systemui.dagger.qualifiers.Main;
 import com.android.systemui.dock.DockManager;
+import com.android.systemui.dump.DumpManager;
 import com.android.systemui.plugins.statusbar.StatusBarStateController;
 import com.android.systemui.settings.UserTracker;
 import com.android.systemui.statusbar.notification.collection.NotificationEntry;
@@ -54,14 +57,18 @@ import com.android.systemui.statusbar.policy.KeyguardStateController;
 import com.android.systemui.util.concurrency.DelayableExecutor;
 import com.google.android.systemui.dreamliner.WirelessCharger;
 import com.google.android.systemui.elmyra.gates.KeyguardVisibility;
+import com.google.android.systemui.power.BatteryStateBus;
 
+import java.io.File;
+import java.io.PrintWriter;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class DockObserver extends BroadcastReceiver implements DockManager {
+public class DockObserver extends BroadcastReceiver implements DockManager, Dumpable {
     @VisibleForTesting
     static final String ACTION_ALIGN_STATE_CHANGE = "com.google.android.systemui.dreamliner.ALIGNMENT_CHANGE";
     @VisibleForTesting
@@ -97,8 +104,7 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
     @VisibleForTesting
     static final int RESULT_OK = 0;
     private static final boolean DEBUG = Log.isLoggable("DLObserver", 3);
-    @VisibleForTesting
-    static volatile ExecutorService mSingleThreadExecutor;
+    private static final long FAN_LEVEL_COALESCE_WINDOW_MS = 250;
     private static boolean sIsDockingUiShowing = DEBUG;
     @VisibleForTesting
     final DreamlinerBroadcastReceiver mDreamlinerReceiver = new DreamlinerBroadcastReceiver();
@@ -108,6 +114,10 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
     private final Context mContext;
     private final DockAlignmentController mDockAlignmentController;
     private final DelayableExecutor mMainExecutor;
+    private final DockCommandScheduler mCommandScheduler;
+    private final WpcCertificateReader mWpcCertificateReader;
+    private final DockCapabilityCache mCapabilityCache;
+    private volatile long mDockedAtMs = -1;
     private final StatusBarStateController mStatusBarStateController;
     private final WirelessCharger mWirelessCharger;
     @VisibleForTesting
@@ -122,10 +132,20 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
     private ImageView mDreamlinerGear;
     private Runnable mPhotoAction;
     private FrameLayout mPhotoPreview;
-    private int mFanLevel = -1;
+    private volatile int mFanLevel = -1;
+    private int mLastBroadcastFanLevel = -1;
+    private final AtomicBoolean mFanLevelRefreshPending = new AtomicBoolean();
+    private volatile boolean mForceFanLevelBroadcast;
+    private final AtomicInteger mFanLevelRequests = new AtomicInteger();
+    private final AtomicInteger mFanLevelHalCalls = new AtomicInteger();
+    private final AtomicInteger mFanLevelBroadcasts = new AtomicInteger();
+    private final AtomicInteger mFanLevelBroadcastsSkipped = new AtomicInteger();
 
     private final Handler mMainHandler;
     private final UserTracker mUserTracker;
+    private final BatteryStateBus mBatteryStateBus;
+    private final AtomicInteger mPluggedStateQueries = new AtomicInteger();
+    private final AtomicInteger mPluggedStateStickyQueries = new AtomicInteger();
 
     private final UserTracker.Callback mUserChangedCallback =
             new UserTracker.Callback() {
@@ -138,7 +158,8 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
 
     public DockObserver(final Context context, WirelessCharger wirelessCharger, StatusBarStateController statusBarStateController,
         NotificationInterruptStateProvider notificationInterruptStateProvider, ConfigurationController configurationController,
-        DelayableExecutor delayableExecutor, @NonNull UserTracker userTracker, @Main Handler mainHandler) {
+        DelayableExecutor delayableExecutor, @NonNull UserTracker userTracker, @Main Handler mainHandler,
+        DumpManager dumpManager, BatteryStateBus batteryStateBus) {
         NotificationInterruptSuppressor notificationInterruptSuppressor = new NotificationInterruptSuppressor() {
             @Override
             public String getName() {
@@ -151,13 +172,23 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
             }
         };
         mMainExecutor = delayableExecutor;
+        mCommandScheduler = new DockCommandScheduler(mainHandler);
         mContext = context;
         mClients = new ArrayList();
         mAlignmentStateListeners = new ArrayList();
         mWirelessCharger = wirelessCharger;
         if (wirelessCharger == null) {
             Log.i("DLObserver", "wireless charger is null, check dock component.");
-        }
+        } else {
+            wirelessCharger.setDockPresencePolicy(
+                    context.getResources().getInteger(R.integer.config_dock_presence_poll_initial_ms),
+                    context.getResources().getInteger(R.integer.config_dock_presence_poll_max_ms),
+                    context.getResources().getInteger(R.integer.config_dock_presence_poll_timeout_ms));
+        }
+        mCapabilityCache = new DockCapabilityCache(new File(context.getFilesDir(), "dock_capabilities"),
+                runnable -> mCommandScheduler.submit(DockCommandScheduler.LANE_TELEMETRY, "persistDockCapabilities", "persistDockCapabilities", null, resultReceiver -> runnable));
+        mWpcCertificateReader = new WpcCertificateReader(wirelessCharger, mCapabilityCache,
+                runnable -> mCommandScheduler.submit(DockCommandScheduler.LANE_AUTH, "prefetchWpcAuthCertificate", "prefetchWpcAuthCertificate", null, resultReceiver -> runnable));
         mStatusBarStateController = statusBarStateController;
         context.registerReceiver(this, getDockIntentFilter(), PERMISSION_WIRELESS_CHARGER_STATUS, null, 2);
         mDockAlignmentController = new DockAlignmentController(wirelessCharger, this);
@@ -166,13 +197,8 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
         refreshFanLevel(null);
         mUserTracker = userTracker;
         mMainHandler = mainHandler;
-    }
-
-    private static void runOnBackgroundThread(Runnable runnable) {
-        if (mSingleThreadExecutor == null) {
-            mSingleThreadExecutor = Executors.newSingleThreadExecutor();
-        }
-        mSingleThreadExecutor.execute(runnable);
+        mBatteryStateBus = batteryStateBus;
+        dumpManager.registerDumpable("DLObserver", this);
     }
 
     public static boolean isDockingUiShowing() {
@@ -278,7 +304,7 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
             return;
         }
         notifyDreamlinerAlignStateChanged(mLastAlignState);
-        onFanLevelChange();
+        onFanLevelChange(true);
     }
 
     void onAlignStateChanged(int i) {
@@ -301,12 +327,13 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
 
     private void refreshFanLevel(final Runnable runnable) {
         Log.d("DLObserver", "command=2");
-        runOnBackgroundThread(() -> {
+        mCommandScheduler.submit(DockCommandScheduler.LANE_TELEMETRY, "getFanLevel", "getFanLevel", null, resultReceiver -> () -> {
             if (mWirelessCharger == null) {
                 Log.i("DLObserver", "hint is UNKNOWN for null wireless charger HAL");
                 mFanLevel = -1;
             } else {
                 long currentTimeMillis = System.currentTimeMillis();
+                mFanLevelHalCalls.incrementAndGet();
                 mFanLevel = mWirelessCharger.getFanLevel();
                 if (DEBUG) {
                     Log.d("DLObserver", "command=2, l=" + mFanLevel + ", spending time=" + (System.currentTimeMillis() - currentTimeMillis));
@@ -318,16 +345,53 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
         });
     }
 
-    void onFanLevelChange() {
-        refreshFanLevel(() -> {
-            Log.d("DLObserver", "notify l=" + mFanLevel + ", isDocked=" + isDocked());
-            if (isDocked()) {
-                mContext.sendBroadcastAsUser(new Intent("com.google.android.systemui.dreamliner.ACTION_UPDATE_FAN_LEVEL").putExtra("fan_level", mFanLevel).addFlags(1073741824), UserHandle.CURRENT);
+    /**
+     * Refreshes the fan level and tells Dreamliner about it. Requests arriving within
+     * {@link #FAN_LEVEL_COALESCE_WINDOW_MS} share one HAL call, and unless {@code force} is set
+     * the broadcast is skipped when the level has not changed.
+     */
+    void onFanLevelChange(boolean force) {
+        mFanLevelRequests.incrementAndGet();
+        if (force) {
+            mForceFanLevelBroadcast = true;
+        }
+        if (!mFanLevelRefreshPending.compareAndSet(false, true)) {
+            return;
+        }
+        mMainHandler.postDelayed(() -> {
+            mFanLevelRefreshPending.set(false);
+            refreshFanLevel(this::notifyFanLevel);
+        }, FAN_LEVEL_COALESCE_WINDOW_MS);
+    }
+
+    private void notifyFanLevel() {
+        boolean force = mForceFanLevelBroadcast;
+        mForceFanLevelBroadcast = false;
+        int fanLevel = mFanLevel;
+        Log.d("DLObserver", "notify l=" + fanLevel + ", isDocked=" + isDocked());
+        if (!isDocked()) {
+            return;
+        }
+        synchronized (mFanLevelRefreshPending) {
+            if (!force && fanLevel == mLastBroadcastFanLevel) {
+                mFanLevelBroadcastsSkipped.incrementAndGet();
+                return;
             }
-        });
+            mLastBroadcastFanLevel = fanLevel;
+        }
+        mFanLevelBroadcasts.incrementAndGet();
+        mContext.sendBroadcastAsUser(new Intent("com.google.android.systemui.dreamliner.ACTION_UPDATE_FAN_LEVEL").putExtra("fan_level", fanLevel).addFlags(1073741824), UserHandle.CURRENT);
     }
 
     private boolean isWirelessCharging(Context context) {
+        mPluggedStateQueries.incrementAndGet();
+        // POWER_CONNECTED may arrive before the matching BATTERY_CHANGED, so only a wireless
+        // snapshot can be trusted; anything else is confirmed with the sticky broadcast.
+        BatteryStateBus.BatteryState state = mBatteryStateBus.getLatest();
+        if (state != null && state.plugged == 4) {
+            return true;
+        }
+        mPluggedStateStickyQueries.incrementAndGet();
         Intent registerReceiver = context.registerReceiver(null, new IntentFilter("android.intent.action.BATTERY_CHANGED"));
         if (registerReceiver == null) {
             if (DEBUG) {
@@ -355,7 +419,24 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
         if (mWirelessCharger == null || !isWirelessCharging(context)) {
             return;
         }
-        runOnBackgroundThread(new IsDockPresent(context));
+        mCommandScheduler.submit(DockCommandScheduler.LANE_CONTROL, "isDockPresent", "isDockPresent", null, resultReceiver -> new IsDockPresent(context));
+    }
+
+    /**
+     * Looks up the dock's identity up front so its cached capabilities are ready for Dreamliner.
+     * Only called for docks that report support for getInformation.
+     */
+    private void identifyDock() {
+        mCommandScheduler.submit(DockCommandScheduler.LANE_TELEMETRY, "identifyDock", "identifyDock", null, resultReceiver -> () -> {
+            if (mWirelessCharger == null) {
+                return;
+            }
+            mWirelessCharger.getInformation((result, dockInfo) -> {
+                if (result == 0 && dockInfo != null) {
+                    mCapabilityCache.onDockIdentified(dockInfo);
+                }
+            });
+        });
     }
 
     private void getFeatures(Intent intent) {
@@ -365,10 +446,13 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
         }
         ResultReceiver resultReceiver = intent.getParcelableExtra("android.intent.extra.RESULT_RECEIVER");
         if (resultReceiver != null) {
+            Long cachedFeatures = longExtra != -1 ? mCapabilityCache.getFeatures(longExtra) : null;
             if (longExtra == -1) {
                 resultReceiver.send(1, null);
+            } else if (cachedFeatures != null) {
+                resultReceiver.send(0, createGetFeatureResponse(cachedFeatures));
             } else {
-                runOnBackgroundThread(new GetFeatures(resultReceiver, longExtra));
+                mCommandScheduler.submit(DockCommandScheduler.LANE_TELEMETRY, "getFeatures", resultReceiver, receiver -> new GetFeatures(receiver, longExtra));
             }
         }
     }
@@ -384,7 +468,8 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
             if (longExtra == -1 || longExtra2 == -1) {
                 resultReceiver.send(1, null);
             } else {
-                runOnBackgroundThread(new SetFeatures(resultReceiver, longExtra, longExtra2));
+                mCapabilityCache.invalidateFeatures(longExtra);
+                mCommandScheduler.submit(DockCommandScheduler.LANE_CONTROL, "setFeatures", resultReceiver, receiver -> new SetFeatures(receiver, longExtra, longExtra2));
             }
         }
     }
@@ -464,6 +549,9 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
     private void stopDreamlinerService(Context context) {
         notifyForceEnabledAmbientDisplay(DEBUG);
         onDockStateChanged(0);
+        mWpcCertificateReader.clear();
+        mCapabilityCache.onUndocked();
+        mDockedAtMs = -1;
         try {
             if (mDreamlinerServiceConn == null) {
                 return;
@@ -533,7 +621,7 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
         if (byteArrayExtra == null || byteArrayExtra.length <= 0) {
             resultReceiver.send(1, null);
         } else {
-            runOnBackgroundThread(new KeyExchangeWithDock(resultReceiver, byteArrayExtra));
+            mCommandScheduler.submit(DockCommandScheduler.LANE_AUTH, "keyExchange", resultReceiver, receiver -> new KeyExchangeWithDock(receiver, byteArrayExtra));
         }
     }
 
@@ -550,7 +638,7 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
         if (byteArrayExtra == null || byteArrayExtra.length <= 0 || byteExtra < 0) {
             resultReceiver.send(1, null);
         } else {
-            runOnBackgroundThread(new ChallengeWithDock(resultReceiver, byteExtra, byteArrayExtra));
+            mCommandScheduler.submit(DockCommandScheduler.LANE_AUTH, "challenge", resultReceiver, receiver -> new ChallengeWithDock(receiver, byteExtra, byteArrayExtra));
         }
     }
 
@@ -586,36 +674,22 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
         }
     }
 
-    private byte[] convertArrayListToPrimitiveArray(ArrayList<Byte> arrayList) {
-        if (arrayList == null || arrayList.isEmpty()) {
-            return null;
-        }
-        int size = arrayList.size();
-        byte[] bArr = new byte[size];
-        for (int i = 0; i < size; i++) {
-            bArr[i] = arrayList.get(i);
-        }
-        return bArr;
-    }
-
-    private Bundle createKeyExchangeResponseBundle(byte b, ArrayList<Byte> arrayList) {
-        if (arrayList == null || arrayList.isEmpty()) {
+    private Bundle createKeyExchangeResponseBundle(byte b, byte[] bArr) {
+        if (bArr == null || bArr.length == 0) {
             return null;
         }
-        byte[] convertArrayListToPrimitiveArray = convertArrayListToPrimitiveArray(arrayList);
         Bundle bundle = new Bundle();
         bundle.putByte("dock_id", b);
-        bundle.putByteArray("dock_public_key", convertArrayListToPrimitiveArray);
+        bundle.putByteArray("dock_public_key", bArr);
         return bundle;
     }
 
-    private Bundle createChallengeResponseBundle(ArrayList<Byte> arrayList) {
-        if (arrayList == null || arrayList.isEmpty()) {
+    private Bundle createChallengeResponseBundle(byte[] bArr) {
+        if (bArr == null || bArr.length == 0) {
             return null;
         }
-        byte[] convertArrayListToPrimitiveArray = convertArrayListToPrimitiveArray(arrayList);
         Bundle bundle = new Bundle();
-        bundle.putByteArray("challenge_response", convertArrayListToPrimitiveArray);
+        bundle.putByteArray("challenge_response", bArr);
         return bundle;
     }
 
@@ -635,23 +709,22 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
         return bundle;
     }
 
-    private Bundle createWpcAuthCertificateResponseBundle(ArrayList<Byte> arrayList) {
-        if (arrayList == null || arrayList.isEmpty()) {
+    private Bundle createWpcAuthCertificateResponseBundle(byte[] bArr) {
+        if (bArr == null || bArr.length == 0) {
             return null;
         }
-        byte[] convertArrayListToPrimitiveArray = convertArrayListToPrimitiveArray(arrayList);
         Bundle bundle = new Bundle();
-        bundle.putByteArray("wpc_cert", convertArrayListToPrimitiveArray);
+        bundle.putByteArray("wpc_cert", bArr);
         return bundle;
     }
 
-    private Bundle createWpcAuthChallengeResponseBundle(byte b, byte b2, byte b3, ArrayList<Byte> arrayList, ArrayList<Byte> arrayList2) {
+    private Bundle createWpcAuthChallengeResponseBundle(byte b, byte b2, byte b3, byte[] bArr, byte[] bArr2) {
         Bundle bundle = new Bundle();
         bundle.putByte("max_protocol_ver", b);
         bundle.putByte("slot_populated_mask", b2);
         bundle.putByte("cert_lsb", b3);
-        bundle.putByteArray("signature_r", convertArrayListToPrimitiveArray(arrayList));
-        bundle.putByteArray("signature_s", convertArrayListToPrimitiveArray(arrayList2));
+        bundle.putByteArray("signature_r", bArr);
+        bundle.putByteArray("signature_s", bArr2);
         return bundle;
     }
 
@@ -661,6 +734,24 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
         return bundle;
     }
 
+    @Override
+    public void dump(@NonNull PrintWriter pw, @NonNull String[] args) {
+        pw.println("DockObserver:");
+        pw.println("  dockState=" + mDockState + ", lastAlignState=" + mLastAlignState + ", fanLevel=" + mFanLevel);
+        pw.println("  serviceBound=" + (mDreamlinerServiceConn != null));
+        int requests = mFanLevelRequests.get();
+        int halCalls = mFanLevelHalCalls.get();
+        pw.println("  fanLevel: requests=" + requests + ", halCalls=" + halCalls + ", halCallsSaved=" + Math.max(0, requests - halCalls)
+                + ", broadcasts=" + mFanLevelBroadcasts.get() + ", broadcastsSkipped=" + mFanLevelBroadcastsSkipped.get());
+        pw.println("  pluggedState: queries=" + mPluggedStateQueries.get() + ", stickyQueries=" + mPluggedStateStickyQueries.get());
+        mCommandScheduler.dump(pw);
+        mWpcCertificateReader.dump(pw);
+        mCapabilityCache.dump(pw);
+        if (mWirelessCharger != null) {
+            mWirelessCharger.dump(pw);
+        }
+    }
+
     @VisibleForTesting
     static final class GetFanSimpleInformationCallback implements WirelessCharger.GetFanSimpleInformationCallback {
         private final byte mFanId;
@@ -689,12 +780,14 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
 
     @VisibleForTesting
     static final class GetFanInformationCallback implements WirelessCharger.GetFanInformationCallback {
+        private final DockCapabilityCache mCapabilityCache;
         private final byte mFanId;
         private final ResultReceiver mResultReceiver;
 
-        GetFanInformationCallback(byte b, ResultReceiver resultReceiver) {
+        GetFanInformationCallback(byte b, ResultReceiver resultReceiver, DockCapabilityCache capabilityCache) {
             mFanId = b;
             mResultReceiver = resultReceiver;
+            mCapabilityCache = capabilityCache;
         }
 
         @Override
@@ -706,6 +799,7 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
                 if (DockObserver.DEBUG) {
                     Log.d("DLObserver", "Callback of command=0, i=" + bundle.getByte("fan_id", (byte) -1) + ", m=" + bundle.getByte("fan_mode", (byte) -1) + ", cr=" + bundle.getInt("fan_current_rpm", -1) + ", mir=" + bundle.getInt("fan_min_rpm", -1) + ", mxr=" + bundle.getInt("fan_max_rpm", -1) + ", t=" + bundle.getByte("fan_type", (byte) -1) + ", c=" + bundle.getByte("fan_count", (byte) -1));
                 }
+                mCapabilityCache.putFanCapabilities(bundle);
                 mResultReceiver.send(0, bundle);
                 return;
             }
@@ -812,7 +906,20 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
                 return;
             }
             byte b = mFanId;
-            mWirelessCharger.getFanInformation(b, new GetFanInformationCallback(b, mResultReceiver));
+            int[] capabilities = mCapabilityCache.getFanCapabilities(b);
+            if (capabilities != null) {
+                // Only mode and speed change, so the cheaper getFan call is enough for a known fan.
+                mWirelessCharger.getFanSimpleInformation(b, (result, bundle) -> {
+                    if (result != 0 || bundle == null) {
+                        mResultReceiver.send(1, null);
+                        return;
+                    }
+                    DockCapabilityCache.putFanCapabilities(bundle, capabilities);
+                    mResultReceiver.send(0, bundle);
+                });
+                return;
+            }
+            mWirelessCharger.getFanInformation(b, new GetFanInformationCallback(b, mResultReceiver, mCapabilityCache));
         }
     }
 
@@ -892,7 +999,7 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
             if (mWirelessCharger == null) {
                 return;
             }
-            mWirelessCharger.getWpcAuthCertificate(mSlotNum, mOffset, mLength, new GetWpcAuthCertificateCallback(mResultReceiver));
+            mWpcCertificateReader.read(mSlotNum, mOffset, mLength, new GetWpcAuthCertificateCallback(mResultReceiver));
         }
     }
 
@@ -955,7 +1062,7 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
             if (mWirelessCharger == null) {
                 return;
             }
-            mWirelessCharger.getFeatures(mChargerId, new GetFeaturesCallback(mResultReceiver));
+            mWirelessCharger.getFeatures(mChargerId, new GetFeaturesCallback(mResultReceiver, mChargerId));
         }
     }
 
@@ -996,6 +1103,10 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
                 Log.i("DLObserver", "isDockPresent() docked: " + z + ", id: " + i + ", type: " + ((int) b) + ", orientation: " + ((int) b2) + ", support GetInfo: " + z2);
             }
             if (z) {
+                mDockedAtMs = SystemClock.uptimeMillis();
+                if (z2) {
+                    identifyDock();
+                }
                 startDreamlinerService(mContext, b, b2, i);
             }
         }
@@ -1024,6 +1135,7 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
             if (DockObserver.DEBUG) {
                 Log.d("DLObserver", "getInformation() DockInfo: " + dockInfo.toString());
             }
+            mCapabilityCache.onDockIdentified(dockInfo);
             mResultReceiver.send(0, dockInfo.toBundle());
         }
     }
@@ -1037,15 +1149,15 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
         }
 
         @Override
-        public void onCallback(int i, byte b, ArrayList<Byte> arrayList) {
+        public void onCallback(int i, byte b, byte[] bArr) {
             if (DockObserver.DEBUG) {
                 Log.d("DLObserver", "keyExchange() Result: " + i);
             }
             if (i == 0) {
                 if (DockObserver.DEBUG) {
-                    Log.d("DLObserver", "keyExchange() key: " + arrayList);
+                    Log.d("DLObserver", "keyExchange() key: " + Arrays.toString(bArr));
                 }
-                mResultReceiver.send(0, createKeyExchangeResponseBundle(b, arrayList));
+                mResultReceiver.send(0, createKeyExchangeResponseBundle(b, bArr));
                 return;
             }
             mResultReceiver.send(1, null);
@@ -1061,15 +1173,15 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
         }
 
         @Override
-        public void onCallback(int i, ArrayList<Byte> arrayList) {
+        public void onCallback(int i, byte[] bArr) {
             if (DockObserver.DEBUG) {
                 Log.d("DLObserver", "challenge() Result: " + i);
             }
             if (i == 0) {
                 if (DockObserver.DEBUG) {
-                    Log.d("DLObserver", "challenge() response: " + arrayList);
+                    Log.d("DLObserver", "challenge() response: " + Arrays.toString(bArr));
                 }
-                mResultReceiver.send(0, createChallengeResponseBundle(arrayList));
+                mResultReceiver.send(0, createChallengeResponseBundle(bArr));
                 return;
             }
             mResultReceiver.send(1, null);
@@ -1093,6 +1205,7 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
                 if (DockObserver.DEBUG) {
                     Log.d("DLObserver", "GWAD() response: pm=" + ((int) b) + ", rm=" + ((int) b2) + ", d=" + arrayList);
                 }
+                mCapabilityCache.onWpcDigests(b2, arrayList);
                 mResultReceiver.send(0, createWpcAuthDigestsResponseBundle(b, b2, arrayList));
                 return;
             }
@@ -1109,15 +1222,15 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
         }
 
         @Override
-        public void onCallback(int i, ArrayList<Byte> arrayList) {
+        public void onCallback(int i, byte[] bArr) {
             if (DockObserver.DEBUG) {
                 Log.d("DLObserver", "GWAC() result: " + i);
             }
             if (i == 0) {
                 if (DockObserver.DEBUG) {
-                    Log.d("DLObserver", "GWAC() response: c=" + arrayList);
+                    Log.d("DLObserver", "GWAC() response: c=" + Arrays.toString(bArr));
                 }
-                mResultReceiver.send(0, createWpcAuthCertificateResponseBundle(arrayList));
+                mResultReceiver.send(0, createWpcAuthCertificateResponseBundle(bArr));
                 return;
             }
             mResultReceiver.send(1, null);
@@ -1133,15 +1246,15 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
         }
 
         @Override
-        public void onCallback(int i, byte b, byte b2, byte b3, ArrayList<Byte> arrayList, ArrayList<Byte> arrayList2) {
+        public void onCallback(int i, byte b, byte b2, byte b3, byte[] bArr, byte[] bArr2) {
             if (DockObserver.DEBUG) {
                 Log.d("DLObserver", "GWACR() result: " + i);
             }
             if (i == 0) {
                 if (DockObserver.DEBUG) {
-                    Log.d("DLObserver", "GWACR() response: mpv=" + ((int) b) + ", pm=" + ((int) b2) + ", chl=" + ((int) b3) + ", rv=" + arrayList + ", sv=" + arrayList2);
+                    Log.d("DLObserver", "GWACR() response: mpv=" + ((int) b) + ", pm=" + ((int) b2) + ", chl=" + ((int) b3) + ", rv=" + Arrays.toString(bArr) + ", sv=" + Arrays.toString(bArr2));
                 }
-                mResultReceiver.send(0, createWpcAuthChallengeResponseBundle(b, b2, b3, arrayList, arrayList2));
+                mResultReceiver.send(0, createWpcAuthChallengeResponseBundle(b, b2, b3, bArr, bArr2));
                 return;
             }
             mResultReceiver.send(1, null);
@@ -1150,10 +1263,12 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
 
     @VisibleForTesting
     final class GetFeaturesCallback implements WirelessCharger.GetFeaturesCallback {
+        private final long mChargerId;
         private final ResultReceiver mResultReceiver;
 
-        GetFeaturesCallback(ResultReceiver resultReceiver) {
+        GetFeaturesCallback(ResultReceiver resultReceiver, long chargerId) {
             mResultReceiver = resultReceiver;
+            mChargerId = chargerId;
         }
 
         @Override
@@ -1165,6 +1280,7 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
                 if (DockObserver.DEBUG) {
                     Log.d("DLObserver", "GF() response: f=" + j);
                 }
+                mCapabilityCache.putFeatures(mChargerId, j);
                 mResultReceiver.send(0, createGetFeatureResponse(j));
                 return;
             }
@@ -1190,7 +1306,7 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
             String action = intent.getAction();
             switch (action) {
                 case "com.google.android.systemui.dreamliner.ACTION_GET_FAN_LEVEL":
-                    onFanLevelChange();
+                    onFanLevelChange(true);
                     return;
                 case "com.google.android.systemui.dreamliner.ACTION_SET_FAN":
                     setFan(intent);
@@ -1200,7 +1316,7 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
                     if (resultReceiver == null) {
                         return;
                     }
-                    DockObserver.runOnBackgroundThread(new GetDockInfo(resultReceiver, context));
+                    mCommandScheduler.submit(DockCommandScheduler.LANE_TELEMETRY, "getDockInfo", resultReceiver, receiver -> new GetDockInfo(receiver, context));
                     return;
                 case DockObserver.ACTION_KEY_EXCHANGE:
                     triggerKeyExchangeWithDock(intent);
@@ -1221,6 +1337,10 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
                     getWpcAuthDigests(intent);
                     return;
                 case "com.google.android.systemui.dreamliner.paired":
+                    if (mDockedAtMs >= 0) {
+                        mCapabilityCache.recordTimeToPaired(SystemClock.uptimeMillis() - mDockedAtMs);
+                        mDockedAtMs = -1;
+                    }
                     if (assertNotNull(mDockGestureController, DockGestureController.class.getSimpleName())) {
                         mDockGestureController.setTapAction((PendingIntent) intent.getParcelableExtra("single_tap_action"));
                     }
@@ -1281,7 +1401,8 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
             }
             ResultReceiver resultReceiver = intent.getParcelableExtra("android.intent.extra.RESULT_RECEIVER");
             if (resultReceiver != null) {
-                DockObserver.runOnBackgroundThread(new GetFanSimpleInformation(intent.getByteExtra("fan_id", (byte) 0), resultReceiver));
+                byte fanId = intent.getByteExtra("fan_id", (byte) 0);
+                mCommandScheduler.submit(DockCommandScheduler.LANE_TELEMETRY, "getFanSimpleInfo", resultReceiver, receiver -> new GetFanSimpleInformation(fanId, receiver));
             }
         }
 
@@ -1291,7 +1412,8 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
             }
             ResultReceiver resultReceiver = intent.getParcelableExtra("android.intent.extra.RESULT_RECEIVER");
             if (resultReceiver != null) {
-                DockObserver.runOnBackgroundThread(new GetFanInformation(intent.getByteExtra("fan_id", (byte) 0), resultReceiver));
+                byte fanId = intent.getByteExtra("fan_id", (byte) 0);
+                mCommandScheduler.submit(DockCommandScheduler.LANE_TELEMETRY, "getFanInfo", resultReceiver, receiver -> new GetFanInformation(fanId, receiver));
             }
         }
 
@@ -1303,7 +1425,8 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
             byte byteExtra2 = intent.getByteExtra("fan_mode", (byte) 0);
             int intExtra = intent.getIntExtra("fan_rpm", -1);
             if (byteExtra2 != 1 || intExtra != -1) {
-                DockObserver.runOnBackgroundThread(new SetFan(byteExtra, byteExtra2, intExtra));
+                // Only the latest request for a fan matters, so a newer one replaces a queued one.
+                mCommandScheduler.submit(DockCommandScheduler.LANE_CONTROL, "setFan", "setFan:" + byteExtra, null, resultReceiver -> new SetFan(byteExtra, byteExtra2, intExtra));
             } else {
                 Log.e("DLObserver", "Failed to get r.");
             }
@@ -1317,7 +1440,7 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
             ResultReceiver resultReceiver = intent.getParcelableExtra("android.intent.extra.RESULT_RECEIVER");
             if (resultReceiver != null) {
                 if (byteExtra != -1) {
-                    DockObserver.runOnBackgroundThread(new GetWpcAuthDigests(resultReceiver, byteExtra));
+                    mCommandScheduler.submit(DockCommandScheduler.LANE_AUTH, "getWpcAuthDigests", resultReceiver, receiver -> new GetWpcAuthDigests(receiver, byteExtra));
                 } else {
                     resultReceiver.send(1, null);
                 }
@@ -1334,7 +1457,7 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
             ResultReceiver resultReceiver = intent.getParcelableExtra("android.intent.extra.RESULT_RECEIVER");
             if (resultReceiver != null) {
                 if (byteExtra != -1 && shortExtra != -1 && shortExtra2 != -1) {
-                    DockObserver.runOnBackgroundThread(new GetWpcAuthCertificate(resultReceiver, byteExtra, shortExtra, shortExtra2));
+                    mCommandScheduler.submit(DockCommandScheduler.LANE_AUTH, "getWpcAuthCertificate", resultReceiver, receiver -> new GetWpcAuthCertificate(receiver, byteExtra, shortExtra, shortExtra2));
                 } else {
                     resultReceiver.send(1, null);
                 }
@@ -1350,7 +1473,7 @@ public class DockObserver extends BroadcastReceiver implements DockManager {
             if (resultReceiver != null) {
                 byte[] byteArrayExtra = intent.getByteArrayExtra("wpc_nonce");
                 if (byteArrayExtra != null && byteArrayExtra.length > 0) {
-                    DockObserver.runOnBackgroundThread(new GetWpcAuthChallengeResponse(resultReceiver, byteExtra, byteArrayExtra));
+                    mCommandScheduler.submit(DockCommandScheduler.LANE_AUTH, "getWpcAuthChallengeResponse", resultReceiver, receiver -> new GetWpcAuthChallengeResponse(receiver, byteExtra, byteArrayExtra));
                 } else {
                     resultReceiver.send(1, null);
                 }
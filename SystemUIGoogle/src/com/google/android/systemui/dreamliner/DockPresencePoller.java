@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2022 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.systemui.dreamliner;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.function.Consumer;
+
+/**
+ * Drives the dock presence probe with exponential backoff until the dock identifies itself or
+ * the policy timeout expires. Align info from the charger short-circuits the backoff and probes
+ * right away. All state, including the callback bound to the current session, is confined to the
+ * given handler's thread.
+ */
+final class DockPresencePoller<C> {
+    private static final long[] POLL_COUNT_BUCKETS = {1, 2, 3, 5, 8};
+    private static final long[] DETECT_MS_BUCKETS = {100, 250, 500, 1000, 2500, 5000};
+
+    interface Probe {
+        /** Issues one presence query; the result must be reported through {@link #onResult}. */
+        void probe(int session);
+    }
+
+    private final Handler mHandler;
+    private final Probe mProbe;
+    private final Runnable mProbeRunnable = this::runProbe;
+
+    private long mInitialDelayMs = 100;
+    private long mMaxDelayMs = 1600;
+    private long mTimeoutMs = 5000;
+
+    private int mSession;
+    private C mCallback;
+    private boolean mActive;
+    private long mStartedMs;
+    private long mNextDelayMs;
+    private int mPollCount;
+
+    private final int[] mPollCountHistogram = new int[POLL_COUNT_BUCKETS.length + 1];
+    private final int[] mDetectHistogram = new int[DETECT_MS_BUCKETS.length + 1];
+    private int mSessions;
+    private int mTimeouts;
+    private int mSignalShortcuts;
+
+    DockPresencePoller(Handler handler, Probe probe) {
+        mHandler = handler;
+        mProbe = probe;
+    }
+
+    void setPolicy(long initialDelayMs, long maxDelayMs, long timeoutMs) {
+        mHandler.post(() -> {
+            mInitialDelayMs = Math.max(1, initialDelayMs);
+            mMaxDelayMs = Math.max(mInitialDelayMs, maxDelayMs);
+            mTimeoutMs = Math.max(0, timeoutMs);
+        });
+    }
+
+    /**
+     * Starts a new polling session for {@code callback}, abandoning any session still in flight
+     * together with its callback.
+     */
+    void start(C callback) {
+        mHandler.post(() -> {
+            mHandler.removeCallbacks(mProbeRunnable);
+            mSession++;
+            mCallback = callback;
+            mSessions++;
+            mActive = true;
+            mStartedMs = SystemClock.elapsedRealtime();
+            mNextDelayMs = mInitialDelayMs;
+            mPollCount = 0;
+            mHandler.postDelayed(mProbeRunnable, mInitialDelayMs);
+        });
+    }
+
+    /** Called when the charger pushes align info, which means the dock is talking to us. */
+    void onSignal() {
+        mHandler.post(() -> {
+            if (mActive && mHandler.hasCallbacks(mProbeRunnable)) {
+                mSignalShortcuts++;
+                mHandler.removeCallbacks(mProbeRunnable);
+                mHandler.post(mProbeRunnable);
+            }
+        });
+    }
+
+    /**
+     * Reports the result of a probe. {@code done} runs on the poller thread with the callback of
+     * {@code session} if the result should be delivered to it, either because the dock was
+     * identified or the session timed out.
+     */
+    void onResult(int session, boolean identified, Consumer<C> done) {
+        mHandler.post(() -> {
+            if (!mActive || session != mSession) {
+                return;
+            }
+            long elapsedMs = SystemClock.elapsedRealtime() - mStartedMs;
+            if (!identified && elapsedMs < mTimeoutMs) {
+                long delayMs = Math.min(mNextDelayMs, mTimeoutMs - elapsedMs);
+                mNextDelayMs = Math.min(mNextDelayMs * 2, mMaxDelayMs);
+                mHandler.postDelayed(mProbeRunnable, delayMs);
+                return;
+            }
+            C callback = mCallback;
+            mActive = false;
+            mCallback = null;
+            mPollCountHistogram[bucket(POLL_COUNT_BUCKETS, mPollCount)]++;
+            if (identified) {
+                mDetectHistogram[bucket(DETECT_MS_BUCKETS, elapsedMs)]++;
+            } else {
+                mTimeouts++;
+            }
+            done.accept(callback);
+        });
+    }
+
+    private void runProbe() {
+        if (!mActive) {
+            return;
+        }
+        mPollCount++;
+        mProbe.probe(mSession);
+    }
+
+    private static int bucket(long[] buckets, long value) {
+        for (int i = 0; i < buckets.length; i++) {
+            if (value <= buckets[i]) {
+                return i;
+            }
+        }
+        return buckets.length;
+    }
+
+    private static String formatHistogram(long[] buckets, int[] counts, String unit) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < counts.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(i < buckets.length ? "<=" + buckets[i] : ">" + buckets[buckets.length - 1]);
+            sb.append(unit).append('=').append(counts[i]);
+        }
+        return sb.toString();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  DockPresencePoller:");
+        pw.println("    policy: initial=" + mInitialDelayMs + "ms, max=" + mMaxDelayMs + "ms, timeout=" + mTimeoutMs + "ms");
+        pw.println("    active=" + mActive + ", sessions=" + mSessions + ", timeouts=" + mTimeouts + ", signalShortcuts=" + mSignalShortcuts);
+        pw.println("    pollCount: " + formatHistogram(POLL_COUNT_BUCKETS, mPollCountHistogram, ""));
+        pw.println("    timeToDetect: " + formatHistogram(DETECT_MS_BUCKETS, mDetectHistogram, "ms"));
+    }
+}
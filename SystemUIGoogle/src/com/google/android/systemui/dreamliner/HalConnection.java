@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2022 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.systemui.dreamliner;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IHwBinder;
+import android.os.IHwInterface;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Thread-safe handle to a HIDL service. The service is fetched on first use and, if it dies,
+ * fetched again with exponential backoff. Commands issued through {@link #execute} while the
+ * service is down are held and run once it is back rather than being dropped; a service that
+ * was never found is treated as absent and not retried.
+ */
+public final class HalConnection<T extends IHwInterface> implements IHwBinder.DeathRecipient {
+    private static final int MAX_PENDING = 16;
+    private static final long INITIAL_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30000;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_CONNECTED = 1;
+    private static final int STATE_RECONNECTING = 2;
+    private static final int STATE_UNAVAILABLE = 3;
+    private static final String[] STATE_NAMES = {"idle", "connected", "reconnecting", "unavailable"};
+
+    private static Handler sHandler;
+
+    public interface ServiceFetcher<T> {
+        /** Returns the service, or null if it is not available. */
+        T getService() throws Exception;
+    }
+
+    public interface OnConnectedListener<T> {
+        /** Called with every new service handle, e.g. to register callbacks again. */
+        void onConnected(T service) throws Exception;
+    }
+
+    public interface Call<T, R> {
+        R call(T service) throws Exception;
+    }
+
+    public interface Command<T> {
+        void run(T service) throws Exception;
+    }
+
+    private final String mTag;
+    private final ServiceFetcher<T> mFetcher;
+    private final OnConnectedListener<T> mOnConnected;
+    private final Handler mHandler;
+    private final Runnable mReconnectRunnable = this::reconnect;
+    private final ArrayDeque<PendingCommand<T>> mPending = new ArrayDeque<>();
+    private final ArrayMap<String, long[]> mLatency = new ArrayMap<>();
+
+    private volatile T mService;
+    private int mState = STATE_IDLE;
+    private long mBackoffMs = INITIAL_BACKOFF_MS;
+    private long mCookie;
+    private int mDeaths;
+    private int mReconnects;
+    private int mFailedReconnects;
+    private int mDroppedCommands;
+
+    private static final class PendingCommand<T> {
+        final String mMethod;
+        final Command<T> mCommand;
+
+        PendingCommand(String method, Command<T> command) {
+            mMethod = method;
+            mCommand = command;
+        }
+    }
+
+    public HalConnection(String tag, ServiceFetcher<T> fetcher, OnConnectedListener<T> onConnected) {
+        this(tag, fetcher, onConnected, getDefaultHandler());
+    }
+
+    @VisibleForTesting
+    HalConnection(String tag, ServiceFetcher<T> fetcher, OnConnectedListener<T> onConnected, Handler handler) {
+        mTag = tag;
+        mFetcher = fetcher;
+        mOnConnected = onConnected;
+        mHandler = handler;
+    }
+
+    private static synchronized Handler getDefaultHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("WirelessChargerHal", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+
+    /** Returns the service, connecting to it first if that has not been tried yet. */
+    public T get() {
+        T service = mService;
+        if (service != null) {
+            return service;
+        }
+        synchronized (this) {
+            if (mState == STATE_IDLE) {
+                connectLocked();
+            }
+            return mService;
+        }
+    }
+
+    public boolean isAvailable() {
+        return get() != null || getState() == STATE_RECONNECTING;
+    }
+
+    /** Runs {@code call} on the service if it is connected, returning {@code fallback} otherwise. */
+    public <R> R call(String method, Call<T, R> call, R fallback) {
+        T service = get();
+        if (service == null) {
+            return fallback;
+        }
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        try {
+            return call.call(service);
+        } catch (Exception e) {
+            Log.i(mTag, method + " fail: " + e.getMessage());
+            return fallback;
+        } finally {
+            recordLatency(method, SystemClock.elapsedRealtimeNanos() - startNs);
+        }
+    }
+
+    /**
+     * Runs {@code command} now if the service is connected; while it is reconnecting the command
+     * is held, up to a limit, and run once the service is back.
+     */
+    public void execute(String method, Command<T> command) {
+        T service = get();
+        if (service == null) {
+            synchronized (this) {
+                if (mState != STATE_RECONNECTING) {
+                    return;
+                }
+                if (mPending.size() >= MAX_PENDING) {
+                    PendingCommand<T> dropped = mPending.poll();
+                    mDroppedCommands++;
+                    Log.w(mTag, "Dropping " + dropped.mMethod + " while waiting for the HAL");
+                }
+                mPending.add(new PendingCommand<>(method, command));
+                return;
+            }
+        }
+        call(method, s -> {
+            command.run(s);
+            return null;
+        }, null);
+    }
+
+    @Override
+    public void serviceDied(long cookie) {
+        synchronized (this) {
+            if (cookie != mCookie) {
+                return;
+            }
+            Log.i(mTag, "serviceDied");
+            mService = null;
+            mDeaths++;
+            mState = STATE_RECONNECTING;
+            mBackoffMs = INITIAL_BACKOFF_MS;
+            mHandler.removeCallbacks(mReconnectRunnable);
+            mHandler.postDelayed(mReconnectRunnable, mBackoffMs);
+        }
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            if (mState != STATE_RECONNECTING) {
+                return;
+            }
+            mReconnects++;
+            if (!connectLocked()) {
+                mFailedReconnects++;
+                mState = STATE_RECONNECTING;
+                mBackoffMs = Math.min(mBackoffMs * 2, MAX_BACKOFF_MS);
+                mHandler.postDelayed(mReconnectRunnable, mBackoffMs);
+                return;
+            }
+        }
+        drainPending();
+    }
+
+    private boolean connectLocked() {
+        T service = null;
+        try {
+            service = mFetcher.getService();
+            if (service != null) {
+                service.asBinder().linkToDeath(this, ++mCookie);
+                if (mOnConnected != null) {
+                    mOnConnected.onConnected(service);
+                }
+            }
+        } catch (Exception e) {
+            Log.i(mTag, "no wireless charger hal found: " + e.getMessage());
+            service = null;
+        }
+        mService = service;
+        if (service != null) {
+            mState = STATE_CONNECTED;
+            return true;
+        }
+        // Only a service that was seen before is worth waiting for.
+        if (mState == STATE_IDLE) {
+            mState = STATE_UNAVAILABLE;
+        }
+        return false;
+    }
+
+    private void drainPending() {
+        while (true) {
+            PendingCommand<T> pending;
+            synchronized (this) {
+                pending = mPending.poll();
+            }
+            if (pending == null) {
+                return;
+            }
+            execute(pending.mMethod, pending.mCommand);
+        }
+    }
+
+    private synchronized int getState() {
+        return mState;
+    }
+
+    private void recordLatency(String method, long durationNs) {
+        synchronized (mLatency) {
+            long[] stats = mLatency.get(method);
+            if (stats == null) {
+                stats = new long[3];
+                mLatency.put(method, stats);
+            }
+            stats[0]++;
+            stats[1] += durationNs;
+            stats[2] = Math.max(stats[2], durationNs);
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (this) {
+            pw.println("  " + mTag + " HAL connection: state=" + STATE_NAMES[mState] + ", deaths=" + mDeaths
+                    + ", reconnects=" + mReconnects + ", failedReconnects=" + mFailedReconnects
+                    + ", pending=" + mPending.size() + ", dropped=" + mDroppedCommands);
+        }
+        synchronized (mLatency) {
+            for (int i = 0; i < mLatency.size(); i++) {
+                long[] stats = mLatency.valueAt(i);
+                pw.println("    " + mLatency.keyAt(i) + ": calls=" + stats[0] + ", avg=" + (stats[1] / stats[0] / 1000)
+                        + "us, max=" + (stats[2] / 1000) + "us");
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.google.android.systemui.dreamliner;
 
 import android.os.Bundle;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 public abstract class WirelessCharger {
@@ -26,7 +27,7 @@ public abstract class WirelessCharger {
     }
 
     public interface ChallengeCallback {
-        void onCallback(int i, ArrayList<Byte> arrayList);
+        void onCallback(int i, byte[] bArr);
     }
 
     public interface GetFanInformationCallback {
@@ -46,11 +47,11 @@ public abstract class WirelessCharger {
     }
 
     public interface GetWpcAuthCertificateCallback {
-        void onCallback(int i, ArrayList<Byte> arrayList);
+        void onCallback(int i, byte[] bArr);
     }
 
     public interface GetWpcAuthChallengeResponseCallback {
-        void onCallback(int i, byte b, byte b2, byte b3, ArrayList<Byte> arrayList, ArrayList<Byte> arrayList2);
+        void onCallback(int i, byte b, byte b2, byte b3, byte[] bArr, byte[] bArr2);
     }
 
     public interface GetWpcAuthDigestsCallback {
@@ -62,7 +63,7 @@ public abstract class WirelessCharger {
     }
 
     public interface KeyExchangeCallback {
-        void onCallback(int i, byte b, ArrayList<Byte> arrayList);
+        void onCallback(int i, byte b, byte[] bArr);
     }
 
     public interface SetFanCallback {
@@ -100,4 +101,11 @@ public abstract class WirelessCharger {
     public abstract void setFan(byte b, byte b2, int i, SetFanCallback setFanCallback);
 
     public abstract void setFeatures(long j, long j2, SetFeaturesCallback setFeaturesCallback);
+
+    /** Tunes how {@link #asyncIsDockPresent} backs off while waiting for the dock to identify. */
+    public void setDockPresencePolicy(long initialDelayMs, long maxDelayMs, long timeoutMs) {
+    }
+
+    public void dump(PrintWriter pw) {
+    }
 }
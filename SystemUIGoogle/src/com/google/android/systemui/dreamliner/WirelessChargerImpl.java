@@ -18,15 +18,16 @@ package com.google.android.systemui.dreamliner;
 
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.IHwBinder;
-import android.os.Looper;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.RemoteException;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.google.android.systemui.dreamliner.WirelessCharger;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.concurrent.TimeUnit;
 
 import vendor.google.wireless_charger.V1_0.KeyExchangeResponse;
 import vendor.google.wireless_charger.V1_1.AlignInfo;
@@ -35,19 +36,20 @@ import vendor.google.wireless_charger.V1_3.FanDetailedInfo;
 import vendor.google.wireless_charger.V1_3.FanInfo;
 import vendor.google.wireless_charger.V1_3.IWirelessCharger;
 
-public class WirelessChargerImpl extends WirelessCharger implements IHwBinder.DeathRecipient, IWirelessCharger.isDockPresentCallback {
-    private static final boolean DEBUG = Log.isLoggable("Dreamliner-WLC_HAL", 3);
-    private static final long MAX_POLLING_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(5);
-    private final Handler mHandler = new Handler(Looper.getMainLooper());
-    private IWirelessCharger.isDockPresentCallback mCallback;
-    private long mPollingStartedTimeNs;
-    private vendor.google.wireless_charger.V1_3.IWirelessCharger mWirelessCharger;
-    private final Runnable mRunnable = new Runnable() {
-        @Override
-        public void run() {
-            isDockPresentInternal(mCallback);
+public class WirelessChargerImpl extends WirelessCharger {
+    private static Handler sPollerHandler;
+    private final DockPresencePoller<IWirelessCharger.isDockPresentCallback> mDockPresencePoller = new DockPresencePoller<>(getPollerHandler(), this::isDockPresentInternal);
+    private final ArrayList<WirelessChargerInfoCallback> mAlignInfoCallbacks = new ArrayList<>();
+    private final HalConnection<IWirelessCharger> mHal = new HalConnection<>("Dreamliner-WLC_HAL", IWirelessCharger::getService, this::onHalConnected);
+
+    private static synchronized Handler getPollerHandler() {
+        if (sPollerHandler == null) {
+            HandlerThread thread = new HandlerThread("DockPresencePoller", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sPollerHandler = new Handler(thread.getLooper());
         }
-    };
+        return sPollerHandler;
+    }
 
     private static Bundle convertFanInfo(byte b, FanInfo fanInfo) {
         Bundle bundle = new Bundle();
@@ -72,237 +74,118 @@ public class WirelessChargerImpl extends WirelessCharger implements IHwBinder.De
     @Override
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
     public void asyncIsDockPresent(WirelessCharger.IsDockPresentCallback isDockPresentCallback) {
-        initHALInterface();
-        if (mWirelessCharger != null) {
-            mPollingStartedTimeNs = System.nanoTime();
-            mCallback = new IsDockPresentCallbackWrapper(isDockPresentCallback);
-            mHandler.removeCallbacks(mRunnable);
-            mHandler.postDelayed(mRunnable, 100L);
+        if (mHal.get() != null) {
+            mDockPresencePoller.start(new IsDockPresentCallbackWrapper(isDockPresentCallback));
         }
     }
 
+    @Override
+    public void setDockPresencePolicy(long initialDelayMs, long maxDelayMs, long timeoutMs) {
+        mDockPresencePoller.setPolicy(initialDelayMs, maxDelayMs, timeoutMs);
+    }
+
+    @Override
+    public void dump(PrintWriter pw) {
+        mHal.dump(pw);
+        mDockPresencePoller.dump(pw);
+    }
+
     @Override
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
     public void getInformation(WirelessCharger.GetInformationCallback getInformationCallback) {
-        initHALInterface();
-        if (mWirelessCharger != null) {
-            try {
-                mWirelessCharger.getInformation(new GetInformationCallbackWrapper(getInformationCallback));
-            } catch (Exception e) {
-                Log.i("Dreamliner-WLC_HAL", "getInformation fail: " + e.getMessage());
-            }
-        }
+        mHal.execute("getInformation", hal -> hal.getInformation(new GetInformationCallbackWrapper(getInformationCallback)));
     }
 
     @Override
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
     public void keyExchange(byte[] bArr, WirelessCharger.KeyExchangeCallback keyExchangeCallback) {
-        initHALInterface();
-        if (mWirelessCharger != null) {
-            try {
-                mWirelessCharger.keyExchange(convertPrimitiveArrayToArrayList(bArr), new KeyExchangeCallbackWrapper(keyExchangeCallback));
-            } catch (Exception e) {
-                Log.i("Dreamliner-WLC_HAL", "keyExchange fail: " + e.getMessage());
-            }
-        }
+        mHal.execute("keyExchange", hal -> hal.keyExchange(DockBytes.toHalArgument(bArr), new KeyExchangeCallbackWrapper(keyExchangeCallback)));
     }
 
     @Override
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
     public void challenge(byte b, byte[] bArr, WirelessCharger.ChallengeCallback challengeCallback) {
-        initHALInterface();
-        if (mWirelessCharger != null) {
-            try {
-                mWirelessCharger.challenge(b, convertPrimitiveArrayToArrayList(bArr), new ChallengeCallbackWrapper(challengeCallback));
-            } catch (Exception e) {
-                Log.i("Dreamliner-WLC_HAL", "challenge fail: " + e.getMessage());
-            }
-        }
+        mHal.execute("challenge", hal -> hal.challenge(b, DockBytes.toHalArgument(bArr), new ChallengeCallbackWrapper(challengeCallback)));
     }
 
     @Override
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
     public void registerAlignInfo(WirelessCharger.AlignInfoListener alignInfoListener) {
-        initHALInterface();
-        if (mWirelessCharger != null) {
-            try {
-                mWirelessCharger.registerCallback(new WirelessChargerInfoCallback(alignInfoListener));
-            } catch (Exception e) {
-                Log.i("Dreamliner-WLC_HAL", "register alignInfo callback fail: " + e.getMessage());
+        WirelessChargerInfoCallback callback = new WirelessChargerInfoCallback(alignInfoListener);
+        // Only remember the callback once it is registered, so that a connect running before
+        // this command does not register it a second time.
+        mHal.execute("registerCallback", hal -> {
+            synchronized (mAlignInfoCallbacks) {
+                try {
+                    hal.registerCallback(callback);
+                } finally {
+                    mAlignInfoCallbacks.add(callback);
+                }
             }
-        }
+        });
     }
 
     @Override
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
     public void getFanSimpleInformation(byte b, WirelessCharger.GetFanSimpleInformationCallback getFanSimpleInformationCallback) {
-        initHALInterface();
         Log.d("Dreamliner-WLC_HAL", "command=3");
-        if (mWirelessCharger != null) {
-            try {
-                mWirelessCharger.getFan(b, new GetFanSimpleInformationCallbackWrapper(b, getFanSimpleInformationCallback));
-            } catch (Exception e) {
-                Log.i("Dreamliner-WLC_HAL", "command=3 fail: " + e.getMessage());
-            }
-        }
+        mHal.execute("getFan", hal -> hal.getFan(b, new GetFanSimpleInformationCallbackWrapper(b, getFanSimpleInformationCallback)));
     }
 
     @Override
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
     public void getFanInformation(byte b, WirelessCharger.GetFanInformationCallback getFanInformationCallback) {
-        initHALInterface();
         Log.d("Dreamliner-WLC_HAL", "command=0");
-        if (mWirelessCharger != null) {
-            try {
-                mWirelessCharger.getFanInformation(b, new GetFanInformationCallbackWrapper(b, getFanInformationCallback));
-            } catch (Exception e) {
-                Log.i("Dreamliner-WLC_HAL", "command=0 fail: " + e.getMessage());
-            }
-        }
+        mHal.execute("getFanInformation", hal -> hal.getFanInformation(b, new GetFanInformationCallbackWrapper(b, getFanInformationCallback)));
     }
 
     @Override
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
     public void setFan(byte b, byte b2, int i, WirelessCharger.SetFanCallback setFanCallback) {
-        initHALInterface();
         Log.d("Dreamliner-WLC_HAL", "command=1, i=" + ((int) b) + ", m=" + ((int) b2) + ", r=" + i);
-        if (mWirelessCharger != null) {
-            try {
-                long currentTimeMillis = System.currentTimeMillis();
-                mWirelessCharger.setFan(b, b2, (short) i, new SetFanCallbackWrapper(b, setFanCallback));
-                if (!DEBUG) {
-                    return;
-                }
-                Log.d("Dreamliner-WLC_HAL", "command=1 spending time: " + (System.currentTimeMillis() - currentTimeMillis));
-            } catch (Exception e) {
-                Log.i("Dreamliner-WLC_HAL", "command=1 fail: " + e.getMessage());
-            }
-        }
+        mHal.execute("setFan", hal -> hal.setFan(b, b2, (short) i, new SetFanCallbackWrapper(b, setFanCallback)));
     }
 
     @Override
     public void getWpcAuthDigests(byte b, WirelessCharger.GetWpcAuthDigestsCallback getWpcAuthDigestsCallback) {
-        initHALInterface();
-        if (mWirelessCharger != null) {
-            try {
-                mWirelessCharger.getWpcAuthDigests(b, new GetWpcAuthDigestsCallbackWrapper(getWpcAuthDigestsCallback));
-            } catch (Exception e) {
-                Log.i("Dreamliner-WLC_HAL", "get wpc digests fail: " + e.getMessage());
-            }
-        }
+        mHal.execute("getWpcAuthDigests", hal -> hal.getWpcAuthDigests(b, new GetWpcAuthDigestsCallbackWrapper(getWpcAuthDigestsCallback)));
     }
 
     @Override
     public void getWpcAuthCertificate(byte b, short s, short s2, WirelessCharger.GetWpcAuthCertificateCallback getWpcAuthCertificateCallback) {
-        initHALInterface();
-        if (mWirelessCharger != null) {
-            try {
-                mWirelessCharger.getWpcAuthCertificate(b, s, s2, new GetWpcAuthCertificateCallbackWrapper(getWpcAuthCertificateCallback));
-            } catch (Exception e) {
-                Log.i("Dreamliner-WLC_HAL", "get wpc cert fail: " + e.getMessage());
-            }
-        }
+        mHal.execute("getWpcAuthCertificate", hal -> hal.getWpcAuthCertificate(b, s, s2, new GetWpcAuthCertificateCallbackWrapper(getWpcAuthCertificateCallback)));
     }
 
     @Override
     public void getWpcAuthChallengeResponse(byte b, byte[] bArr, WirelessCharger.GetWpcAuthChallengeResponseCallback getWpcAuthChallengeResponseCallback) {
-        initHALInterface();
-        if (mWirelessCharger != null) {
-            try {
-                mWirelessCharger.getWpcAuthChallengeResponse(b, convertPrimitiveArrayToArrayList(bArr), new GetWpcAuthChallengeResponseCallbackWrapper(getWpcAuthChallengeResponseCallback));
-            } catch (Exception e) {
-                Log.i("Dreamliner-WLC_HAL", "get wpc challenge response fail: " + e.getMessage());
-            }
-        }
+        mHal.execute("getWpcAuthChallengeResponse", hal -> hal.getWpcAuthChallengeResponse(b, DockBytes.toHalArgument(bArr), new GetWpcAuthChallengeResponseCallbackWrapper(getWpcAuthChallengeResponseCallback)));
     }
 
     @Override
     public void setFeatures(long j, long j2, WirelessCharger.SetFeaturesCallback setFeaturesCallback) {
-        initHALInterface();
-        if (mWirelessCharger != null) {
-            try {
-                setFeaturesCallback.onCallback(mWirelessCharger.setFeatures(j, j2));
-            } catch (Exception e) {
-                Log.i("Dreamliner-WLC_HAL", "set features fail: " + e.getMessage());
-            }
-        }
+        mHal.execute("setFeatures", hal -> setFeaturesCallback.onCallback(hal.setFeatures(j, j2)));
     }
 
     @Override
     public void getFeatures(long j, WirelessCharger.GetFeaturesCallback getFeaturesCallback) {
-        initHALInterface();
-        if (mWirelessCharger != null) {
-            try {
-                mWirelessCharger.getFeatures(j, new GetFeaturesCallbackWrapper(getFeaturesCallback));
-            } catch (Exception e) {
-                Log.i("Dreamliner-WLC_HAL", "get features fail: " + e.getMessage());
-            }
-        }
+        mHal.execute("getFeatures", hal -> hal.getFeatures(j, new GetFeaturesCallbackWrapper(getFeaturesCallback)));
     }
 
     @Override
     int getFanLevel() {
-        initHALInterface();
         Log.d("Dreamliner-WLC_HAL", "command=2");
-        if (mWirelessCharger != null) {
-            try {
-                return mWirelessCharger.getFanLevel();
-            } catch (Exception e) {
-                Log.i("Dreamliner-WLC_HAL", "command=2 fail: " + e.getMessage());
-                return -1;
-            }
-        }
-        return -1;
+        return mHal.call("getFanLevel", hal -> (int) hal.getFanLevel(), -1);
     }
 
-    public void serviceDied(long j) {
-        Log.i("Dreamliner-WLC_HAL", "serviceDied");
-        mWirelessCharger = null;
+    private void isDockPresentInternal(int session) {
+        mHal.execute("isDockPresent", hal -> hal.isDockPresent(new PollingIsDockPresentCallback(session)));
     }
 
-    private ArrayList<Byte> convertPrimitiveArrayToArrayList(byte[] bArr) {
-        if (bArr == null || bArr.length <= 0) {
-            return null;
-        }
-        ArrayList<Byte> arrayList = new ArrayList<>();
-        for (byte b : bArr) {
-            arrayList.add(b);
-        }
-        return arrayList;
-    }
-
-    private void isDockPresentInternal(IWirelessCharger.isDockPresentCallback callback) {
-        initHALInterface();
-        if (mWirelessCharger != null) {
-            try {
-                mWirelessCharger.isDockPresent(callback);
-            } catch (Exception e) {
-                Log.i("Dreamliner-WLC_HAL", "isDockPresent fail: " + e.getMessage());
-            }
-        }
-    }
-
-    @Override
-    public void onValues(boolean z, byte b, byte b2, boolean z2, int i) {
-        if (System.nanoTime() < mPollingStartedTimeNs + MAX_POLLING_TIMEOUT_NS && i == 0) {
-            mHandler.postDelayed(mRunnable, 100L);
-            return;
-        }
-        if (mCallback == null) {
-            return;
-        }
-        mCallback.onValues(z, b, b2, z2, i);
-        mCallback = null;
-    }
-
-    private void initHALInterface() {
-        if (mWirelessCharger == null) {
-            try {
-                mWirelessCharger = vendor.google.wireless_charger.V1_3.IWirelessCharger.getService();
-                mWirelessCharger.linkToDeath(this, 0L);
-            } catch (Exception e) {
-                Log.i("Dreamliner-WLC_HAL", "no wireless charger hal found: " + e.getMessage());
-                mWirelessCharger = null;
+    private void onHalConnected(IWirelessCharger hal) throws RemoteException {
+        // A restarted HAL has forgotten our callbacks.
+        synchronized (mAlignInfoCallbacks) {
+            for (WirelessChargerInfoCallback callback : mAlignInfoCallbacks) {
+                hal.registerCallback(callback);
             }
         }
     }
@@ -377,7 +260,7 @@ public class WirelessChargerImpl extends WirelessCharger implements IHwBinder.De
 
         @Override
         public void onValues(byte b, ArrayList<Byte> arrayList) {
-            mCallback.onCallback(Byte.valueOf(b).intValue(), arrayList);
+            mCallback.onCallback(Byte.valueOf(b).intValue(), DockBytes.fromHalResult(arrayList));
         }
     }
 
@@ -390,7 +273,7 @@ public class WirelessChargerImpl extends WirelessCharger implements IHwBinder.De
 
         @Override
         public void onValues(byte b, byte b2, byte b3, byte b4, ArrayList<Byte> arrayList, ArrayList<Byte> arrayList2) {
-            mCallback.onCallback(Byte.valueOf(b).intValue(), b2, b3, b4, arrayList, arrayList2);
+            mCallback.onCallback(Byte.valueOf(b).intValue(), b2, b3, b4, DockBytes.fromHalResult(arrayList), DockBytes.fromHalResult(arrayList2));
         }
     }
 
@@ -407,6 +290,19 @@ public class WirelessChargerImpl extends WirelessCharger implements IHwBinder.De
         }
     }
 
+    final class PollingIsDockPresentCallback implements IWirelessCharger.isDockPresentCallback {
+        private final int mSession;
+
+        PollingIsDockPresentCallback(int session) {
+            mSession = session;
+        }
+
+        @Override
+        public void onValues(boolean z, byte b, byte b2, boolean z2, int i) {
+            mDockPresencePoller.onResult(mSession, i != 0, callback -> callback.onValues(z, b, b2, z2, i));
+        }
+    }
+
     final class IsDockPresentCallbackWrapper implements IWirelessCharger.isDockPresentCallback {
         private final WirelessCharger.IsDockPresentCallback mCallback;
 
@@ -447,7 +343,7 @@ public class WirelessChargerImpl extends WirelessCharger implements IHwBinder.De
         @Override
         public void onValues(byte b, KeyExchangeResponse keyExchangeResponse) {
             if (keyExchangeResponse != null) {
-                mCallback.onCallback(Byte.valueOf(b).intValue(), keyExchangeResponse.dockId, keyExchangeResponse.dockPublicKey);
+                mCallback.onCallback(Byte.valueOf(b).intValue(), keyExchangeResponse.dockId, DockBytes.fromHalResult(keyExchangeResponse.dockPublicKey));
             } else {
                 mCallback.onCallback(Byte.valueOf(b).intValue(), (byte) -1, null);
             }
@@ -463,7 +359,7 @@ public class WirelessChargerImpl extends WirelessCharger implements IHwBinder.De
 
         @Override
         public void onValues(byte b, ArrayList<Byte> arrayList) {
-            mCallback.onCallback(Byte.valueOf(b).intValue(), arrayList);
+            mCallback.onCallback(Byte.valueOf(b).intValue(), DockBytes.fromHalResult(arrayList));
         }
     }
 
@@ -476,6 +372,7 @@ public class WirelessChargerImpl extends WirelessCharger implements IHwBinder.De
 
         @Override
         public void alignInfoChanged(AlignInfo alignInfo) {
+            mDockPresencePoller.onSignal();
             mListener.onAlignInfoChanged(convertAlignInfo(alignInfo));
         }
 
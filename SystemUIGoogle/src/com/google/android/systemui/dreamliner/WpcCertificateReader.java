@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2022 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.systemui.dreamliner;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Pipelines WPC certificate chain reads. Dreamliner fetches the chain chunk by chunk; once a chunk
+ * has been delivered, the next one is prefetched from the dock while the app is still handling
+ * the previous reply, so that the following request is answered from memory. The chain length is
+ * taken from the two byte big-endian length field at the start of the chain, so nothing is read
+ * past its end. A complete chain is handed to the {@link DockCapabilityCache}; on a known dock
+ * whose digest still matches, the whole chain is then served without touching the HAL.
+ */
+final class WpcCertificateReader {
+    private final WirelessCharger mWirelessCharger;
+    private final DockCapabilityCache mCapabilityCache;
+    private final Executor mPrefetchExecutor;
+    private final SparseArray<SlotState> mSlots = new SparseArray<>();
+
+    private int mHalReads;
+    private int mPrefetchHits;
+    private int mChainsRead;
+    private long mLastChainReadMs = -1;
+    private long mTotalChainReadMs;
+
+    private static final class SlotState {
+        int mChainLength = -1;
+        int mLastLength;
+        long mStartedMs = -1;
+        int mPrefetchOffset = -1;
+        byte[] mPrefetched;
+        final ByteArrayOutputStream mAssembled = new ByteArrayOutputStream();
+    }
+
+    /** @param prefetchExecutor runs prefetches on the same thread as {@link #read} */
+    WpcCertificateReader(WirelessCharger wirelessCharger, DockCapabilityCache capabilityCache, Executor prefetchExecutor) {
+        mWirelessCharger = wirelessCharger;
+        mCapabilityCache = capabilityCache;
+        mPrefetchExecutor = prefetchExecutor;
+    }
+
+    /** Reads {@code length} bytes of the chain in {@code slot} starting at {@code offset}. */
+    void read(byte slot, short offset, short length, WirelessCharger.GetWpcAuthCertificateCallback callback) {
+        byte[] cached = null;
+        boolean fromCapabilityCache = false;
+        synchronized (this) {
+            SlotState state = getSlot(slot);
+            if (offset == 0) {
+                state.mStartedMs = SystemClock.uptimeMillis();
+                state.mAssembled.reset();
+            }
+            state.mLastLength = length;
+            byte[] chain = mCapabilityCache.getValidatedCertificate(slot);
+            if (chain != null && offset + length <= chain.length) {
+                cached = Arrays.copyOfRange(chain, offset, offset + length);
+                fromCapabilityCache = true;
+                if (offset + length == chain.length) {
+                    recordChainRead(state);
+                }
+            } else if (state.mPrefetched != null && state.mPrefetchOffset == offset && state.mPrefetched.length >= length) {
+                cached = Arrays.copyOf(state.mPrefetched, length);
+                mPrefetchHits++;
+            }
+            state.mPrefetched = null;
+            state.mPrefetchOffset = -1;
+        }
+        if (cached != null) {
+            if (!fromCapabilityCache) {
+                onChunkRead(slot, offset, cached);
+            }
+            callback.onCallback(0, cached);
+            return;
+        }
+        readFromHal(slot, offset, length, (result, chunk) -> {
+            if (result == 0) {
+                onChunkRead(slot, offset, chunk);
+            }
+            callback.onCallback(result, chunk);
+        });
+    }
+
+    /** Drops all prefetched data, e.g. once the phone leaves the dock. */
+    synchronized void clear() {
+        mSlots.clear();
+    }
+
+    private void readFromHal(byte slot, short offset, short length, WirelessCharger.GetWpcAuthCertificateCallback callback) {
+        synchronized (this) {
+            mHalReads++;
+        }
+        mWirelessCharger.getWpcAuthCertificate(slot, offset, length, callback);
+    }
+
+    private void recordChainRead(SlotState state) {
+        if (state.mStartedMs >= 0) {
+            mLastChainReadMs = SystemClock.uptimeMillis() - state.mStartedMs;
+            mTotalChainReadMs += mLastChainReadMs;
+            mChainsRead++;
+            state.mStartedMs = -1;
+        }
+    }
+
+    private void onChunkRead(byte slot, short offset, byte[] chunk) {
+        int next;
+        int nextLength;
+        synchronized (this) {
+            SlotState state = getSlot(slot);
+            if (chunk == null) {
+                return;
+            }
+            if (offset == 0 && chunk.length >= 2) {
+                state.mChainLength = ((chunk[0] & 0xff) << 8) | (chunk[1] & 0xff);
+            }
+            if (offset == state.mAssembled.size()) {
+                state.mAssembled.write(chunk, 0, chunk.length);
+            }
+            next = offset + chunk.length;
+            if (state.mChainLength < 0) {
+                return;
+            }
+            if (next >= state.mChainLength) {
+                recordChainRead(state);
+                if (state.mAssembled.size() >= state.mChainLength) {
+                    mCapabilityCache.putCertificate(slot, Arrays.copyOf(state.mAssembled.toByteArray(), state.mChainLength));
+                }
+                return;
+            }
+            nextLength = Math.min(state.mLastLength, state.mChainLength - next);
+        }
+        mPrefetchExecutor.execute(() -> readFromHal(slot, (short) next, (short) nextLength, (result, prefetched) -> {
+            if (result != 0 || prefetched == null) {
+                return;
+            }
+            synchronized (this) {
+                SlotState state = getSlot(slot);
+                state.mPrefetchOffset = next;
+                state.mPrefetched = prefetched;
+            }
+        }));
+    }
+
+    private SlotState getSlot(int slot) {
+        SlotState state = mSlots.get(slot);
+        if (state == null) {
+            state = new SlotState();
+            mSlots.put(slot, state);
+        }
+        return state;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  WpcCertificateReader:");
+        pw.println("    halReads=" + mHalReads + ", prefetchHits=" + mPrefetchHits + ", chainsRead=" + mChainsRead
+                + ", lastChainReadMs=" + mLastChainReadMs + ", avgChainReadMs=" + (mChainsRead > 0 ? mTotalChainReadMs / mChainsRead : -1));
+    }
+}
@@ -22,6 +22,7 @@ import android.os.Handler;
 
 import com.android.systemui.dagger.SysUISingleton;
 import com.android.systemui.dagger.qualifiers.Main;
+import com.android.systemui.dump.DumpManager;
 import com.android.systemui.plugins.statusbar.StatusBarStateController;
 import com.android.systemui.settings.UserTracker;
 import com.android.systemui.statusbar.notification.interruption.NotificationInterruptStateProvider;
@@ -29,6 +30,7 @@ import com.android.systemui.statusbar.policy.ConfigurationController;
 import com.android.systemui.util.concurrency.DelayableExecutor;
 import com.google.android.systemui.dreamliner.DockObserver;
 import com.google.android.systemui.dreamliner.DreamlinerUtils;
+import com.google.android.systemui.power.BatteryStateBus;
 
 import dagger.Module;
 import dagger.Provides;
@@ -39,8 +41,10 @@ public abstract class DreamlinerModule {
     @SysUISingleton
     static DockObserver provideDockObserver(Context context, StatusBarStateController statusBarStateController,
         NotificationInterruptStateProvider notificationInterruptStateProvider, ConfigurationController configurationController,
-        @Main DelayableExecutor delayableExecutor, @NonNull UserTracker userTracker, @Main Handler mainHandler) {
+        @Main DelayableExecutor delayableExecutor, @NonNull UserTracker userTracker, @Main Handler mainHandler,
+        DumpManager dumpManager, BatteryStateBus batteryStateBus) {
         return new DockObserver(context, DreamlinerUtils.getInstance(context), statusBarStateController,
-            notificationInterruptStateProvider, configurationController, delayableExecutor, userTracker, mainHandler);
+            notificationInterruptStateProvider, configurationController, delayableExecutor, userTracker, mainHandler, dumpManager,
+            batteryStateBus);
     }
 }
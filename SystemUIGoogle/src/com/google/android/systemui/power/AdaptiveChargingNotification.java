@@ -61,9 +61,6 @@ class AdaptiveChargingNotification {
         }
         String action = intent.getAction();
         switch (action) {
-            case "android.intent.action.BATTERY_CHANGED":
-                resolveBatteryChangedIntent(intent);
-                break;
             case "PNW.acChargeNormally":
                 mAdaptiveChargingManager.setAdaptiveChargingDeadline(-3);
                 cancelNotification();
@@ -75,9 +72,9 @@ class AdaptiveChargingNotification {
     }
 
     @VisibleForTesting
-    void resolveBatteryChangedIntent(Intent intent) {
-        boolean z = intent.getIntExtra("plugged", 0) != 0;
-        boolean isFullyCharged = PowerUtils.isFullyCharged(intent);
+    void onBatteryStateChanged(BatteryStateBus.BatteryState state) {
+        boolean z = state.isPlugged();
+        boolean isFullyCharged = PowerUtils.isFullyCharged(state);
         if (z && !isFullyCharged) {
             checkAdaptiveChargingStatus(false);
         } else {
@@ -69,23 +69,18 @@ class BatteryDefenderNotification {
 
     void dispatchIntent(Intent intent) {
         String action = intent.getAction();
-        if ("android.intent.action.BATTERY_CHANGED".equals(action)) {
-            resolveBatteryChangedIntent(intent);
-        } else if ("PNW.defenderResumeCharging".equals(action)) {
+        if ("PNW.defenderResumeCharging".equals(action)) {
             resumeCharging(BatteryDefenderEvent.BATTERY_DEFENDER_BYPASS_LIMIT);
         } else if ("PNW.defenderResumeCharging.settings".equals(action)) {
             resumeCharging(BatteryDefenderEvent.BATTERY_DEFENDER_BYPASS_LIMIT_FOR_TIPS);
         }
     }
 
-    private void resolveBatteryChangedIntent(Intent intent) {
-        mBatteryLevel = PowerUtils.getBatteryLevel(intent);
-        boolean z = false;
-        boolean z2 = intent.getIntExtra("plugged", 0) != 0;
-        if (intent.getIntExtra("health", 1) == 3) {
-            z = true;
-        }
-        boolean isFullyCharged = PowerUtils.isFullyCharged(intent);
+    void onBatteryStateChanged(BatteryStateBus.BatteryState state) {
+        mBatteryLevel = state.getLevelPercent();
+        boolean z = state.health == 3;
+        boolean z2 = state.isPlugged();
+        boolean isFullyCharged = PowerUtils.isFullyCharged(state);
         Log.d(TAG, "isPlugged: " + z2 + " | isOverheated: " + z + " | defenderEnabled: " + mDefenderEnabled + " | isCharged: " + isFullyCharged);
         if (isFullyCharged && mPostNotificationVisible) {
             cancelPostNotification();
@@ -24,15 +24,28 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.ContentObserver;
 import android.os.Handler;
+import android.os.Parcel;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
+import android.util.ArrayMap;
 import android.util.Log;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.systemui.broadcast.BroadcastSender;
 
+import java.io.PrintWriter;
+
+/**
+ * Forwards battery and Bluetooth state to Settings Intelligence. Battery broadcasts are only sent
+ * when the level, status, plug type or power save mode changed, and level-only changes at most
+ * once per {@link #BATTERY_MIN_INTERVAL_MS}; Bluetooth changes are coalesced for
+ * {@link #BLUETOOTH_COALESCE_MS}.
+ */
 class BatteryInfoBroadcast {
+    private static final long BATTERY_MIN_INTERVAL_MS = 10000;
+    private static final long BLUETOOTH_COALESCE_MS = 1000;
+
     @VisibleForTesting
     private static long sBroadcastDelayFromBoot = 2400000;
     private final BroadcastSender mBroadcastSender;
@@ -45,6 +58,41 @@ class BatteryInfoBroadcast {
     @VisibleForTesting
     private long mLastFullChargeHour = -1;
     private final Handler mHandler = new Handler();
+    private final long mCreatedMs = SystemClock.elapsedRealtime();
+
+    private final Channel mBatteryChannel = new Channel("battery");
+    private final Channel mBluetoothChannel = new Channel("bluetooth");
+    private final Channel mUsageDataChannel = new Channel("fetchUsageData");
+
+    private Boolean mPowerSaveMode;
+    private int mLastSentLevel = -1;
+    private int mLastSentStatus = -1;
+    private int mLastSentPlugged = -1;
+    private Boolean mLastSentPowerSave;
+    private long mLastBatterySentMs;
+    private Intent mPendingBatteryChanged;
+    private final Runnable mSendPendingBatteryRunnable = () -> {
+        Intent pending = mPendingBatteryChanged;
+        mPendingBatteryChanged = null;
+        if (pending != null) {
+            sendBatteryStatus(pending);
+        }
+    };
+
+    // Latest intent per action and device, so two devices changing in one window are both sent.
+    private final ArrayMap<String, Intent> mPendingBluetoothChanges = new ArrayMap<>();
+    private final Runnable mSendPendingBluetoothRunnable = this::sendPendingBluetoothStatus;
+
+    private static final class Channel {
+        final String mName;
+        long mSent;
+        long mSuppressed;
+        long mBytes;
+
+        Channel(String name) {
+            mName = name;
+        }
+    }
 
     BatteryInfoBroadcast(Context context, BroadcastSender broadcastSender) {
         mContext = context;
@@ -58,7 +106,7 @@ class BatteryInfoBroadcast {
         mContentObserver = contentObserver;
         mMetadataListener = new BluetoothAdapter.OnMetadataChangedListener() {
             public final void onMetadataChanged(BluetoothDevice bluetoothDevice, int i, byte[] bArr) {
-                sendBroadcast(createIntent("PNW.bluetoothStatusChanged"));
+                mHandler.post(() -> queueBluetoothStatus(null, null));
             }
         };
         mBroadcastSender = broadcastSender;
@@ -84,10 +132,6 @@ class BatteryInfoBroadcast {
         }
         String action = intent.getAction();
         if (action.equals("android.intent.action.BATTERY_CHANGED") || action.equals("android.os.action.POWER_SAVE_MODE_CHANGED")) {
-            Intent createIntent = createIntent("PNW.batteryStatusChanged");
-            if ("android.intent.action.BATTERY_CHANGED".equals(action)) {
-                createIntent.putExtra("battery_changed_intent", intent);
-            }
             boolean z = true;
             int intExtra = intent.getIntExtra("status", 1);
             int intExtra2 = intent.getIntExtra("level", 0);
@@ -101,16 +145,22 @@ class BatteryInfoBroadcast {
                 } else {
                     long currentTimeMillis = System.currentTimeMillis() / 3600000;
                     if (isInTheDifferentInterval(currentTimeMillis)) {
-                        sendBroadcast(new Intent("settings.intelligence.battery.action.FETCH_BATTERY_USAGE_DATA").setComponent(new ComponentName("com.android.settings", "com.google.android.settings.fuelgauge.BatteryBroadcastReceiver")));
+                        sendBroadcast(mUsageDataChannel, new Intent("settings.intelligence.battery.action.FETCH_BATTERY_USAGE_DATA").setComponent(new ComponentName("com.android.settings", "com.google.android.settings.fuelgauge.BatteryBroadcastReceiver")));
                         mLastFullChargeHour = currentTimeMillis;
                         Log.d("BatteryInfoBroadcast", "Fetch battery usage data for full charge status.");
                     }
                 }
             }
-            boolean isPowerSaveMode = mPowerManager.isPowerSaveMode();
-            createIntent.putExtra("battery_save", isPowerSaveMode);
-            sendBroadcast(createIntent);
-            Log.d("BatteryInfoBroadcast", "onReceive: " + action + " isPowerSaveMode: " + isPowerSaveMode);
+            if (mPowerSaveMode == null || "android.os.action.POWER_SAVE_MODE_CHANGED".equals(action)) {
+                mPowerSaveMode = mPowerManager.isPowerSaveMode();
+            }
+            if ("android.intent.action.BATTERY_CHANGED".equals(action)) {
+                onBatteryChanged(intent);
+            } else if (!mPowerSaveMode.equals(mLastSentPowerSave)) {
+                sendBatteryStatus(null);
+            } else {
+                mBatteryChannel.mSuppressed++;
+            }
         } else if (action.equals("android.bluetooth.adapter.action.STATE_CHANGED") 
             || action.equals("android.bluetooth.hearingaid.profile.action.CONNECTION_STATE_CHANGED") 
             || action.equals("android.bluetooth.headset.profile.action.CONNECTION_STATE_CHANGED") 
@@ -118,9 +168,101 @@ class BatteryInfoBroadcast {
             || action.equals("android.bluetooth.adapter.action.CONNECTION_STATE_CHANGED") 
             || action.equals("android.bluetooth.device.action.ALIAS_CHANGED") 
             || action.equals("android.bluetooth.a2dp.profile.action.CONNECTION_STATE_CHANGED")) {
-                Intent btStatusChangeIntent = createIntent("PNW.bluetoothStatusChanged");
-                btStatusChangeIntent.putExtra(action, intent);
-                sendBroadcast(btStatusChangeIntent);
+                queueBluetoothStatus(action, intent);
+        }
+    }
+
+    private void onBatteryChanged(Intent intent) {
+        int level = getLevelPercent(intent);
+        int status = intent.getIntExtra("status", 1);
+        int plugged = intent.getIntExtra("plugged", 0);
+        boolean levelChanged = level != mLastSentLevel;
+        boolean stateChanged = status != mLastSentStatus || plugged != mLastSentPlugged || !mPowerSaveMode.equals(mLastSentPowerSave);
+        if (!levelChanged && !stateChanged) {
+            mBatteryChannel.mSuppressed++;
+            return;
+        }
+        long sinceLastSentMs = SystemClock.elapsedRealtime() - mLastBatterySentMs;
+        if (!stateChanged && mLastSentLevel != -1 && sinceLastSentMs < BATTERY_MIN_INTERVAL_MS) {
+            // Only the level moved; send the newest one once the interval has passed.
+            if (mPendingBatteryChanged == null) {
+                mHandler.postDelayed(mSendPendingBatteryRunnable, BATTERY_MIN_INTERVAL_MS - sinceLastSentMs);
+            }
+            mPendingBatteryChanged = intent;
+            mBatteryChannel.mSuppressed++;
+            return;
+        }
+        sendBatteryStatus(intent);
+    }
+
+    /** Sends the battery status, with {@code batteryChanged} embedded if given. */
+    private void sendBatteryStatus(Intent batteryChanged) {
+        if (mPendingBatteryChanged != null) {
+            mHandler.removeCallbacks(mSendPendingBatteryRunnable);
+            mPendingBatteryChanged = null;
+        }
+        Intent createIntent = createIntent("PNW.batteryStatusChanged");
+        if (batteryChanged != null) {
+            createIntent.putExtra("battery_changed_intent", batteryChanged);
+            mLastSentLevel = getLevelPercent(batteryChanged);
+            mLastSentStatus = batteryChanged.getIntExtra("status", 1);
+            mLastSentPlugged = batteryChanged.getIntExtra("plugged", 0);
+        }
+        createIntent.putExtra("battery_save", mPowerSaveMode);
+        mLastSentPowerSave = mPowerSaveMode;
+        mLastBatterySentMs = SystemClock.elapsedRealtime();
+        sendBroadcast(mBatteryChannel, createIntent);
+        Log.d("BatteryInfoBroadcast", "onReceive: level=" + mLastSentLevel + " status=" + mLastSentStatus + " plugged=" + mLastSentPlugged
+                + " isPowerSaveMode: " + mPowerSaveMode);
+    }
+
+    private static int getLevelPercent(Intent intent) {
+        int scale = intent.getIntExtra("scale", 100);
+        return scale > 0 ? Math.round((intent.getIntExtra("level", 0) * 100.0f) / scale) : -1;
+    }
+
+    /** Collects Bluetooth changes; for each action and device only the latest intent is kept. */
+    private void queueBluetoothStatus(String action, Intent intent) {
+        if (mPendingBluetoothChanges.isEmpty()) {
+            mHandler.postDelayed(mSendPendingBluetoothRunnable, BLUETOOTH_COALESCE_MS);
+        } else {
+            mBluetoothChannel.mSuppressed++;
+        }
+        BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+        mPendingBluetoothChanges.put(device != null ? action + '/' + device.getAddress() : action, intent);
+    }
+
+    /**
+     * Sends the collected changes. The receiver reads one intent per action, so changes of the
+     * same action from several devices go out in as many broadcasts as needed.
+     */
+    private void sendPendingBluetoothStatus() {
+        while (!mPendingBluetoothChanges.isEmpty()) {
+            Intent status = createIntent("PNW.bluetoothStatusChanged");
+            for (int i = mPendingBluetoothChanges.size() - 1; i >= 0; i--) {
+                Intent intent = mPendingBluetoothChanges.valueAt(i);
+                if (!status.hasExtra(intent.getAction())) {
+                    status.putExtra(intent.getAction(), intent);
+                    mPendingBluetoothChanges.removeAt(i);
+                }
+            }
+            sendBroadcast(mBluetoothChannel, status);
+        }
+    }
+
+    private void sendBroadcast(Channel channel, Intent intent) {
+        channel.mSent++;
+        channel.mBytes += getParcelledSize(intent);
+        sendBroadcast(intent);
+    }
+
+    private static int getParcelledSize(Intent intent) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            intent.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
         }
     }
 
@@ -134,4 +276,14 @@ class BatteryInfoBroadcast {
     void notifyBatteryStatusChanged(Intent intent) {
         sendBatteryChangeIntent(intent, "notifyBatteryStatusChanged");
     }
+
+    void dump(PrintWriter pw) {
+        long elapsedMs = Math.max(SystemClock.elapsedRealtime() - mCreatedMs, 1);
+        pw.println("  BatteryInfoBroadcast:");
+        for (Channel channel : new Channel[] {mBatteryChannel, mBluetoothChannel, mUsageDataChannel}) {
+            pw.println("    " + channel.mName + ": sent=" + channel.mSent + " (" + (channel.mSent * 3600000 / elapsedMs) + "/h)"
+                    + ", bytes=" + channel.mBytes + " (" + (channel.mBytes * 3600000 / elapsedMs) + "/h)"
+                    + ", suppressed=" + channel.mSuppressed);
+        }
+    }
 }
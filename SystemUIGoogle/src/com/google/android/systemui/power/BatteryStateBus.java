@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2022 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.systemui.power;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import com.android.systemui.Dumpable;
+import com.android.systemui.broadcast.BroadcastDispatcher;
+import com.android.systemui.dagger.SysUISingleton;
+import com.android.systemui.dagger.qualifiers.Main;
+import com.android.systemui.dump.DumpManager;
+
+import java.io.PrintWriter;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+
+/**
+ * Receives {@link Intent#ACTION_BATTERY_CHANGED} once for all Google power features, parses it
+ * into a {@link BatteryState} and hands that to every subscriber whose fields changed. The latest
+ * state can be read at any time without a sticky broadcast query.
+ */
+@SysUISingleton
+public class BatteryStateBus implements Dumpable {
+    public static final int FIELD_LEVEL = 1;
+    public static final int FIELD_STATUS = 1 << 1;
+    public static final int FIELD_PLUGGED = 1 << 2;
+    public static final int FIELD_HEALTH = 1 << 3;
+    /**
+     * Temperature, voltage, charge counter and presence, which change on almost every broadcast,
+     * and any other extra such as max charging current or invalid charger.
+     */
+    public static final int FIELD_OTHER = 1 << 4;
+    public static final int FIELD_ALL = FIELD_LEVEL | FIELD_STATUS | FIELD_PLUGGED | FIELD_HEALTH | FIELD_OTHER;
+
+    public interface Listener {
+        /** Called on the main thread; {@code changedFields} is {@link #FIELD_ALL} for the first call. */
+        void onBatteryStateChanged(BatteryState state, int changedFields);
+    }
+
+    /** Immutable snapshot of one {@link Intent#ACTION_BATTERY_CHANGED} broadcast. */
+    public static final class BatteryState {
+        public final int level;
+        public final int scale;
+        public final int status;
+        public final int plugged;
+        public final int health;
+        public final int temperature;
+        public final int voltage;
+        public final int chargeCounter;
+        public final boolean present;
+        private final Intent mIntent;
+
+        BatteryState(Intent intent) {
+            level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+            status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, BatteryManager.BATTERY_STATUS_UNKNOWN);
+            plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+            health = intent.getIntExtra(BatteryManager.EXTRA_HEALTH, BatteryManager.BATTERY_HEALTH_UNKNOWN);
+            temperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+            voltage = intent.getIntExtra(BatteryManager.EXTRA_VOLTAGE, 0);
+            chargeCounter = intent.getIntExtra(BatteryManager.EXTRA_CHARGE_COUNTER, 0);
+            present = intent.getBooleanExtra(BatteryManager.EXTRA_PRESENT, true);
+            mIntent = intent;
+        }
+
+        /** Returns the level in percent, or -1 if the scale is unknown. */
+        public int getLevelPercent() {
+            return scale > 0 ? Math.round((level * 100.0f) / scale) : -1;
+        }
+
+        public boolean isPlugged() {
+            return plugged != 0;
+        }
+
+        /** Returns the broadcast this state was parsed from, for code that forwards it. Do not modify. */
+        public Intent getIntent() {
+            return mIntent;
+        }
+
+        int diff(BatteryState other) {
+            if (other == null) {
+                return FIELD_ALL;
+            }
+            int changed = 0;
+            if (level != other.level || scale != other.scale) {
+                changed |= FIELD_LEVEL;
+            }
+            if (status != other.status) {
+                changed |= FIELD_STATUS;
+            }
+            if (plugged != other.plugged) {
+                changed |= FIELD_PLUGGED;
+            }
+            if (health != other.health) {
+                changed |= FIELD_HEALTH;
+            }
+            if (temperature != other.temperature || voltage != other.voltage || chargeCounter != other.chargeCounter
+                    || present != other.present || !sameExtras(mIntent.getExtras(), other.mIntent.getExtras())) {
+                changed |= FIELD_OTHER;
+            }
+            return changed;
+        }
+
+        private static boolean sameExtras(Bundle extras, Bundle otherExtras) {
+            if (extras == null || otherExtras == null) {
+                return extras == otherExtras;
+            }
+            if (extras.size() != otherExtras.size()) {
+                return false;
+            }
+            for (String key : extras.keySet()) {
+                if (!otherExtras.containsKey(key) || !Objects.equals(extras.get(key), otherExtras.get(key))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Subscription {
+        final int mFields;
+        final Listener mListener;
+        final AtomicLong mDeliveries = new AtomicLong();
+
+        Subscription(int fields, Listener listener) {
+            mFields = fields;
+            mListener = listener;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    private final Handler mMainHandler;
+    private volatile BatteryState mLatest;
+
+    private final AtomicLong mBroadcasts = new AtomicLong();
+    private final AtomicLong mUnchangedBroadcasts = new AtomicLong();
+    private final AtomicLong mFilteredDeliveries = new AtomicLong();
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+                publish(new BatteryState(intent));
+            }
+        }
+    };
+
+    @Inject
+    public BatteryStateBus(BroadcastDispatcher broadcastDispatcher, @Main Handler mainHandler, DumpManager dumpManager) {
+        mMainHandler = mainHandler;
+        broadcastDispatcher.registerReceiverWithHandler(mReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED), mainHandler);
+        dumpManager.registerDumpable("BatteryStateBus", this);
+    }
+
+    /**
+     * Subscribes {@code listener} to changes of any of {@code fields}. If a state is already known
+     * it is delivered right away, as a sticky broadcast would be: synchronously on the main thread,
+     * otherwise from a post that reads the state when it runs, so it is never older than a publish
+     * the listener has already seen.
+     */
+    public void subscribe(int fields, Listener listener) {
+        mSubscriptions.add(new Subscription(fields, listener));
+        if (Looper.myLooper() == mMainHandler.getLooper()) {
+            BatteryState latest = mLatest;
+            if (latest != null) {
+                listener.onBatteryStateChanged(latest, FIELD_ALL);
+            }
+            return;
+        }
+        mMainHandler.post(() -> {
+            BatteryState latest = mLatest;
+            if (latest != null) {
+                listener.onBatteryStateChanged(latest, FIELD_ALL);
+            }
+        });
+    }
+
+    public void unsubscribe(Listener listener) {
+        mSubscriptions.removeIf(subscription -> subscription.mListener == listener);
+    }
+
+    /** Returns the last known state, or null if no broadcast has been received yet. */
+    public BatteryState getLatest() {
+        return mLatest;
+    }
+
+    private void publish(BatteryState state) {
+        mBroadcasts.incrementAndGet();
+        int changed = state.diff(mLatest);
+        mLatest = state;
+        if (changed == 0) {
+            mUnchangedBroadcasts.incrementAndGet();
+            return;
+        }
+        for (Subscription subscription : mSubscriptions) {
+            if ((subscription.mFields & changed) != 0) {
+                subscription.mDeliveries.incrementAndGet();
+                subscription.mListener.onBatteryStateChanged(state, changed);
+            } else {
+                mFilteredDeliveries.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void dump(@NonNull PrintWriter pw, @NonNull String[] args) {
+        pw.println("BatteryStateBus:");
+        BatteryState latest = mLatest;
+        if (latest != null) {
+            pw.println("  latest: level=" + latest.getLevelPercent() + ", status=" + latest.status + ", plugged=" + latest.plugged
+                    + ", health=" + latest.health);
+        }
+        pw.println("  broadcasts=" + mBroadcasts.get() + " (parsed once each), unchanged=" + mUnchangedBroadcasts.get()
+                + ", filteredDeliveries=" + mFilteredDeliveries.get());
+        for (Subscription subscription : mSubscriptions) {
+            pw.println("    " + subscription.mListener.getClass().getName() + ": fields=0x" + Integer.toHexString(subscription.mFields)
+                    + ", deliveries=" + subscription.mDeliveries.get());
+        }
+    }
+}
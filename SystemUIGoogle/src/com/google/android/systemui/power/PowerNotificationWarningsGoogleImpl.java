@@ -38,6 +38,8 @@ import com.android.systemui.util.settings.GlobalSettings;
 
 import dagger.Lazy;
 
+import java.io.PrintWriter;
+
 public final class PowerNotificationWarningsGoogleImpl extends PowerNotificationWarnings {
     @VisibleForTesting
     final BroadcastReceiver mBroadcastReceiver;
@@ -50,7 +52,8 @@ public final class PowerNotificationWarningsGoogleImpl extends PowerNotification
     public PowerNotificationWarningsGoogleImpl(Context context, ActivityStarter activityStarter,
                                                BroadcastSender broadcastSender, Lazy<BatteryController> batteryControllerLazy,
                                                DialogLaunchAnimator dialogLaunchAnimator, UiEventLogger uiEventLogger,
-                                               BroadcastDispatcher broadcastDispatcher, GlobalSettings globalSettings, UserTracker userTracker) {
+                                               BroadcastDispatcher broadcastDispatcher, GlobalSettings globalSettings, UserTracker userTracker,
+                                               BatteryStateBus batteryStateBus) {
         super(context, activityStarter, broadcastSender, batteryControllerLazy, dialogLaunchAnimator, uiEventLogger, globalSettings, userTracker);
         Handler handler = new Handler(Looper.getMainLooper());
         mHandler = handler;
@@ -73,7 +76,6 @@ public final class PowerNotificationWarningsGoogleImpl extends PowerNotification
             mAdaptiveChargingNotification = new AdaptiveChargingNotification(context);
             mBatteryInfoBroadcast = new BatteryInfoBroadcast(context, broadcastSender);
             IntentFilter intentFilter = new IntentFilter();
-            intentFilter.addAction("android.intent.action.BATTERY_CHANGED");
             intentFilter.addAction("PNW.defenderResumeCharging");
             intentFilter.addAction("PNW.defenderResumeCharging.settings");
             intentFilter.addAction("android.os.action.POWER_SAVE_MODE_CHANGED");
@@ -87,11 +89,22 @@ public final class PowerNotificationWarningsGoogleImpl extends PowerNotification
             intentFilter.addAction("android.bluetooth.headset.profile.action.CONNECTION_STATE_CHANGED");
             intentFilter.addAction("android.bluetooth.hearingaid.profile.action.CONNECTION_STATE_CHANGED");
             mBroadcastDispatcher.registerReceiverWithHandler(mBroadcastReceiver, intentFilter, mHandler);
-            Intent registerReceiver = context.registerReceiver(null, new IntentFilter("android.intent.action.BATTERY_CHANGED"));
-            if (registerReceiver != null) {
-                mBroadcastReceiver.onReceive(context, registerReceiver);
-            }
+            // Each feature only hears about the battery fields it looks at.
+            batteryStateBus.subscribe(BatteryStateBus.FIELD_ALL,
+                    (state, changedFields) -> mBatteryInfoBroadcast.notifyBatteryStatusChanged(state.getIntent()));
+            batteryStateBus.subscribe(BatteryStateBus.FIELD_LEVEL | BatteryStateBus.FIELD_STATUS | BatteryStateBus.FIELD_PLUGGED | BatteryStateBus.FIELD_HEALTH,
+                    (state, changedFields) -> mBatteryDefenderNotification.onBatteryStateChanged(state));
+            batteryStateBus.subscribe(BatteryStateBus.FIELD_LEVEL | BatteryStateBus.FIELD_STATUS | BatteryStateBus.FIELD_PLUGGED,
+                    (state, changedFields) -> mAdaptiveChargingNotification.onBatteryStateChanged(state));
             Log.d("PowerNotificationWarningsGoogleImpl", String.format("Finish initialize in %d/ms", System.currentTimeMillis() - currentTimeMillis));
         });
     }
+
+    @Override
+    public void dump(PrintWriter pw) {
+        super.dump(pw);
+        if (mBatteryInfoBroadcast != null) {
+            mBatteryInfoBroadcast.dump(pw);
+        }
+    }
 }
@@ -53,17 +53,8 @@ public final class PowerUtils {
         return j > 0 && Clock.systemUTC().millis() - j >= 600000;
     }
 
-    static int getBatteryLevel(Intent intent) {
-        int intExtra = intent.getIntExtra("level", -1);
-        int intExtra2 = intent.getIntExtra("scale", 0);
-        if (intExtra2 == 0) {
-            return -1;
-        }
-        return Math.round((intExtra / intExtra2) * 100.0f);
-    }
-
-    static boolean isFullyCharged(Intent intent) {
-        return (intent.getIntExtra("status", 1) == 5) || getBatteryLevel(intent) >= 100;
+    static boolean isFullyCharged(BatteryStateBus.BatteryState state) {
+        return state.status == 5 || state.getLevelPercent() >= 100;
     }
 
     static String getCurrentTime(Context context, long j) {
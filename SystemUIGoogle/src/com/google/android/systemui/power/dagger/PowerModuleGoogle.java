@@ -30,6 +30,7 @@ import com.android.systemui.qs.QsEventLogger;
 import com.android.systemui.settings.UserTracker;
 import com.android.systemui.statusbar.policy.BatteryController;
 import com.android.systemui.util.settings.GlobalSettings;
+import com.google.android.systemui.power.BatteryStateBus;
 import com.google.android.systemui.power.EnhancedEstimatesGoogleImpl;
 import com.google.android.systemui.power.PowerNotificationWarningsGoogleImpl;
 
@@ -53,8 +54,9 @@ public interface PowerModuleGoogle {
     static PowerNotificationWarningsGoogleImpl providePowerNotificationWarningsGoogleImpl(Context context, ActivityStarter activityStarter,
                                                                                           BroadcastSender broadcastSender, Lazy<BatteryController> batteryControllerLazy,
                                                                                           DialogLaunchAnimator dialogLaunchAnimator, QsEventLogger uiEventLogger,
-                                                                                          BroadcastDispatcher broadcastDispatcher, GlobalSettings globalSettings, UserTracker userTracker) {
-        return new PowerNotificationWarningsGoogleImpl(context, activityStarter, broadcastSender, batteryControllerLazy, dialogLaunchAnimator, uiEventLogger, broadcastDispatcher, globalSettings, userTracker);
+                                                                                          BroadcastDispatcher broadcastDispatcher, GlobalSettings globalSettings, UserTracker userTracker,
+                                                                                          BatteryStateBus batteryStateBus) {
+        return new PowerNotificationWarningsGoogleImpl(context, activityStarter, broadcastSender, batteryControllerLazy, dialogLaunchAnimator, uiEventLogger, broadcastDispatcher, globalSettings, userTracker, batteryStateBus);
     }
 
     /**
@@ -21,6 +21,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.database.ContentObserver;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.media.Ringtone;
@@ -41,6 +42,7 @@ import android.os.Temperature;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseBooleanArray;
 
 import com.android.systemui.BootCompleteCache;
 import com.android.systemui.R;
@@ -48,9 +50,12 @@ import com.android.systemui.broadcast.BroadcastDispatcher;
 import com.android.systemui.dagger.SysUISingleton;
 import com.android.systemui.statusbar.policy.BatteryController;
 import com.android.systemui.statusbar.policy.CallbackController;
+import com.google.android.systemui.power.BatteryStateBus;
 import com.google.android.systemui.reversecharging.ReverseWirelessCharger;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Optional;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
@@ -92,21 +97,17 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
     private final Executor mMainExecutor;
     private final Optional<ReverseWirelessCharger> mRtxChargerManagerOptional;
     private final IThermalService mThermalService;
+    private final BatteryStateBus mBatteryStateBus;
     private final Optional<UsbManager> mUsbManagerOptional;
     private final IBinder mNfcInterfaceToken = new Binder();
     private final ArrayList<ReverseChargingChangeCallback> mChangeCallbacks = new ArrayList<>();
-    boolean mBootCompleted;
-    int mLevel;
     boolean mRestoreUsbNfcPollingMode;
     boolean mReverse;
     IThermalEventListener mSkinThermalEventListener;
     int mCurrentRtxMode = 0;
-    boolean mIsUsbPlugIn = false;
     private boolean mCacheIsReverseSupported;
     private boolean mIsReverseSupported;
     private String mName;
-    private boolean mPluggedAc;
-    private boolean mPowerSave;
     private boolean mRestoreWlcNfcPollingMode;
     private final AlarmManager.OnAlarmListener mCheckNfcConflictWithUsbAudioAlarmAction = new AlarmManager.OnAlarmListener() {
         @Override
@@ -120,18 +121,26 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
     };
     private int mRtxLevel;
     private boolean mStartReconnected;
-    private boolean mStopReverseAtAcUnplug;
     private boolean mUseRxRemovalTimeOut;
-    private boolean mWirelessCharging;
+    private final ReverseChargingStateMachine mStateMachine;
+    // Whether a USB device blocks reverse charging, keyed by vendor and product id.
+    private final SparseBooleanArray mUsbBlocksReverse = new SparseBooleanArray();
     final BatteryController.BatteryStateChangeCallback mBatteryStateChangeCallback = new BatteryController.BatteryStateChangeCallback() {
         @Override
         public void onPowerSaveChanged(boolean z) {
-            mPowerSave = z;
+            onStateMachineEvent(ReverseChargingStateMachine.EVENT_POWER_SAVE_CHANGED, z ? 1 : 0, 0);
         }
 
         @Override
         public void onWirelessChargingChanged(boolean z) {
-            mWirelessCharging = z;
+            onStateMachineEvent(ReverseChargingStateMachine.EVENT_WIRELESS_CHARGING_CHANGED, z ? 1 : 0, 0);
+        }
+    };
+
+    private final ContentObserver mSettingsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mBgExecutor.execute(() -> updateSettings());
         }
     };
 
@@ -141,7 +150,7 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
             if (DEBUG) {
                 Log.d("ReverseChargingControl", "onBootComplete(): ACTION_BOOT_COMPLETED");
             }
-            mBootCompleted = true;
+            onStateMachineEvent(ReverseChargingStateMachine.EVENT_BOOT_COMPLETED, 0, 0);
             setRtxTimer(2, DURATION_WAIT_NFC_SERVICE);
         }
     };
@@ -163,7 +172,7 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
     };
 
     @Inject
-    public ReverseChargingController(Context context, BroadcastDispatcher broadcastDispatcher, Optional<ReverseWirelessCharger> optional, AlarmManager alarmManager, Optional<UsbManager> optional2, Executor executor, Executor executor2, BootCompleteCache bootCompleteCache, IThermalService iThermalService) {
+    public ReverseChargingController(Context context, BroadcastDispatcher broadcastDispatcher, Optional<ReverseWirelessCharger> optional, AlarmManager alarmManager, Optional<UsbManager> optional2, Executor executor, Executor executor2, BootCompleteCache bootCompleteCache, IThermalService iThermalService, BatteryStateBus batteryStateBus) {
         mContext = context;
         mBroadcastDispatcher = broadcastDispatcher;
         mRtxChargerManagerOptional = optional;
@@ -174,6 +183,7 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
         mBgExecutor = executor2;
         mBootCompleteCache = bootCompleteCache;
         mThermalService = iThermalService;
+        mBatteryStateBus = batteryStateBus;
         int[] intArray = context.getResources().getIntArray(R.array.config_nfc_conflict_with_usb_audio_vendorid);
         mNfcUsbVendorIds = intArray;
         int[] intArray2 = context.getResources().getIntArray(R.array.config_nfc_conflict_with_usb_audio_productid);
@@ -182,6 +192,27 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
             throw new IllegalStateException("VendorIds and ProductIds must be the same length");
         }
         mDoesNfcConflictWithUsbAudio = context.getResources().getBoolean(R.bool.config_nfc_conflict_with_usb_audio);
+        mStateMachine = new ReverseChargingStateMachine(new ReverseChargingStateMachine.Host() {
+            @Override
+            public boolean isReverseOn() {
+                return mReverse;
+            }
+
+            @Override
+            public void setReverseState(boolean on, int reason) {
+                setReverseStateInternal(on, reason);
+            }
+        });
+    }
+
+    private void onStateMachineEvent(int type, int arg1, int arg2) {
+        mStateMachine.onEvent(new ReverseChargingStateMachine.Event(SystemClock.elapsedRealtime(), type, arg1, arg2));
+    }
+
+    private void updateSettings() {
+        boolean autoTurnOnEnabled = Settings.Global.getInt(mContext.getContentResolver(), "settings_key_reverse_charging_auto_turn_on", 0) == 1;
+        int lowBatteryThreshold = Settings.Global.getInt(mContext.getContentResolver(), "advanced_battery_usage_amount", 2) * 5;
+        mMainExecutor.execute(() -> onStateMachineEvent(ReverseChargingStateMachine.EVENT_SETTINGS_CHANGED, autoTurnOnEnabled ? 1 : 0, lowBatteryThreshold));
     }
 
     private boolean shouldEnableAccessoryReconnect(int i) {
@@ -231,11 +262,15 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
     }
 
     public void init(BatteryController batteryController) {
+        mContext.getContentResolver().registerContentObserver(Settings.Global.getUriFor("settings_key_reverse_charging_auto_turn_on"), false, mSettingsObserver);
+        mContext.getContentResolver().registerContentObserver(Settings.Global.getUriFor("advanced_battery_usage_amount"), false, mSettingsObserver);
+        mBgExecutor.execute(() -> updateSettings());
         batteryController.addCallback(mBatteryStateChangeCallback);
         mCacheIsReverseSupported = false;
         resetReverseInfo();
         registerReceiver();
         mBootCompleteCache.addListener(mBootCompleteListener);
+        mBatteryStateBus.subscribe(BatteryStateBus.FIELD_LEVEL | BatteryStateBus.FIELD_PLUGGED, (state, changedFields) -> onBatteryStateChanged(state));
         if (mRtxChargerManagerOptional.isPresent()) {
             setRtxMode(false);
             mRtxChargerManagerOptional.get().addIsDockPresentChangeListener(new ReverseWirelessCharger.IsDockPresentChangeListener() {
@@ -272,118 +307,74 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
         handleIntentForReverseCharging(intent);
     }
 
+    private void onBatteryStateChanged(BatteryStateBus.BatteryState state) {
+        if (!isReverseSupported()) {
+            return;
+        }
+        int level = state.getLevelPercent();
+        Log.i("ReverseChargingControl", "onBatteryStateChanged(): rtx=" + (mReverse ? 1 : 0) + " level=" + level + " extra=" + state.plugged + " this=" + this);
+        onStateMachineEvent(ReverseChargingStateMachine.EVENT_BATTERY_CHANGED, level, state.plugged);
+    }
+
     public void handleIntentForReverseCharging(Intent intent) {
-        UsbDevice usbDevice;
-        Object objArr;
-        Object objArr2;
         if (!isReverseSupported()) {
             return;
         }
         String action = intent.getAction();
-        boolean z = true;
-        if (action.equals("android.intent.action.BATTERY_CHANGED")) {
-            boolean z2 = mPluggedAc;
-            mLevel = (int) ((intent.getIntExtra("level", 0) * 100.0f) / intent.getIntExtra("scale", 100));
-            int intExtra = intent.getIntExtra("plugged", 0);
-            mPluggedAc = intExtra == 1;
-            Log.i("ReverseChargingControl", "handleIntentForReverseCharging(): rtx=" + (mReverse ? 1 : 0) + " wlc=" + (mWirelessCharging ? 1 : 0) + " plgac=" + (z2 ? 1 : 0) + " ac=" + (mPluggedAc ? 1 : 0) + " acrtx=" + (mStopReverseAtAcUnplug ? 1 : 0) + " extra=" + intExtra + " this=" + this);
-            boolean z3 = mReverse;
-            if (z3 && mWirelessCharging) {
-                if (DEBUG) {
-                    Log.d("ReverseChargingControl", "handleIntentForReverseCharging(): wireless charging, stop");
-                }
-                setReverseStateInternal(false, 102);
-            } else if (z3 && z2 && !mPluggedAc && mStopReverseAtAcUnplug) {
-                if (DEBUG) {
-                    Log.d("ReverseChargingControl", "handleIntentForReverseCharging(): wired charging, stop");
-                }
-                mStopReverseAtAcUnplug = false;
-                setReverseStateInternal(false, 106);
-            } else if (!z3 && !z2 && mPluggedAc) {
-                boolean autoTurnOnEnabled = Settings.Global.getInt(this.mContext.getContentResolver(), "settings_key_reverse_charging_auto_turn_on", 0) == 1;
-                if (!autoTurnOnEnabled) {
-                    Log.d("ReverseChargingControl", "auto turn on is disabled");
-                } else if (!mBootCompleted) {
-                    Log.i("ReverseChargingControl", "skip auto turn on");
-                } else {
-                    if (DEBUG) {
-                        Log.d("ReverseChargingControl", "handleIntentForReverseCharging(): wired charging, start");
-                    }
-                    mStopReverseAtAcUnplug = true;
-                    setReverseStateInternal(true, 3);
-                }
-            } else if (!z3 || !isLowBattery()) {
-            } else {
-                if (DEBUG) {
-                    Log.d("ReverseChargingControl", "handleIntentForReverseCharging(): lower then battery threshold, stop");
-                }
-                setReverseStateInternal(false, 4);
-            }
-        } else if (action.equals("android.os.action.POWER_SAVE_MODE_CHANGED")) {
-            if (!mReverse || !mPowerSave) {
-                return;
-            }
-            Log.i("ReverseChargingControl", "handleIntentForReverseCharging(): power save, stop");
-            setReverseStateInternal(false, 105);
-        } else if (TextUtils.equals(action, "android.hardware.usb.action.USB_DEVICE_ATTACHED")) {
-            UsbDevice usbDevice2 = (UsbDevice) intent.getParcelableExtra("device");
-            if (usbDevice2 == null) {
+        if (TextUtils.equals(action, "android.hardware.usb.action.USB_DEVICE_ATTACHED")) {
+            UsbDevice usbDevice = (UsbDevice) intent.getParcelableExtra("device");
+            if (usbDevice == null) {
                 Log.w("ReverseChargingControl", "handleIntentForReverseCharging() UsbDevice is null!");
-                mIsUsbPlugIn = false;
+                onStateMachineEvent(ReverseChargingStateMachine.EVENT_USB_ATTACHED, 0, 0);
                 return;
             }
             if (mDoesNfcConflictWithUsbAudio) {
-                checkAndChangeNfcPollingAgainstUsbAudioDevice(false, usbDevice2);
-            }
-            int i = 0;
-            while (true) {
-                if (i >= usbDevice2.getInterfaceCount()) {
-                    objArr = null;
-                    break;
-                } else if (usbDevice2.getInterface(i).getInterfaceClass() == 1) {
-                    objArr = 1;
-                    break;
-                } else {
-                    i++;
-                }
+                checkAndChangeNfcPollingAgainstUsbAudioDevice(false, usbDevice);
             }
-            int i2 = 0;
-            while (true) {
-                if (i2 >= usbDevice2.getConfigurationCount()) {
-                    objArr2 = null;
-                    break;
-                } else if (usbDevice2.getConfiguration(i2).getMaxPower() < 100) {
-                    objArr2 = 1;
-                    break;
-                } else {
-                    i2++;
-                }
-            }
-            if (objArr != null && objArr2 != null) {
-                z = false;
-            }
-            mIsUsbPlugIn = z;
-            if (!mReverse || !z) {
-                return;
-            }
-            setReverseStateInternal(false, 108);
-            Log.d("ReverseChargingControl", "handleIntentForReverseCharging(): stop reverse charging because USB-C plugin!");
-        } else if (!TextUtils.equals(action, "android.hardware.usb.action.USB_DEVICE_DETACHED")) {
-        } else {
+            onStateMachineEvent(ReverseChargingStateMachine.EVENT_USB_ATTACHED, doesUsbDeviceBlockReverse(usbDevice) ? 1 : 0, 0);
+        } else if (TextUtils.equals(action, "android.hardware.usb.action.USB_DEVICE_DETACHED")) {
+            UsbDevice usbDevice;
             if (mDoesNfcConflictWithUsbAudio && (usbDevice = (UsbDevice) intent.getParcelableExtra("device")) != null) {
                 checkAndChangeNfcPollingAgainstUsbAudioDevice(true, usbDevice);
             }
-            mIsUsbPlugIn = false;
+            onStateMachineEvent(ReverseChargingStateMachine.EVENT_USB_DETACHED, 0, 0);
         }
     }
 
-    private boolean isLowBattery() {
-        int i = Settings.Global.getInt(mContext.getContentResolver(), "advanced_battery_usage_amount", 2) * 5;
-        if (mLevel <= i) {
-            Log.w("ReverseChargingControl", "The battery is lower than threshold turn off reverse charging ! level : " + mLevel + ", threshold : " + i);
-            return true;
+    /** Low power USB audio accessories may stay plugged in; any other device stops reverse charging. */
+    private boolean doesUsbDeviceBlockReverse(UsbDevice usbDevice) {
+        int key = (usbDevice.getVendorId() << 16) | (usbDevice.getProductId() & 0xffff);
+        int index = mUsbBlocksReverse.indexOfKey(key);
+        if (index >= 0) {
+            return mUsbBlocksReverse.valueAt(index);
+        }
+        boolean hasAudioInterface = false;
+        for (int i = 0; i < usbDevice.getInterfaceCount(); i++) {
+            if (usbDevice.getInterface(i).getInterfaceClass() == 1) {
+                hasAudioInterface = true;
+                break;
+            }
+        }
+        boolean hasLowPowerConfiguration = false;
+        for (int i = 0; hasAudioInterface && i < usbDevice.getConfigurationCount(); i++) {
+            if (usbDevice.getConfiguration(i).getMaxPower() < 100) {
+                hasLowPowerConfiguration = true;
+                break;
+            }
         }
-        return false;
+        boolean blocksReverse = !hasAudioInterface || !hasLowPowerConfiguration;
+        mUsbBlocksReverse.put(key, blocksReverse);
+        return blocksReverse;
+    }
+
+    public void dump(PrintWriter pw, String[] args) {
+        pw.println("ReverseChargingController:");
+        pw.println("  reverse=" + mReverse + ", supported=" + (mCacheIsReverseSupported ? mIsReverseSupported : "unknown"));
+        mStateMachine.dump(pw);
+        if (args != null && Arrays.asList(args).contains("rtx-replay")) {
+            ReverseChargingReplay.dump(pw, mStateMachine.getTrace());
+        }
+        mRtxChargerManagerOptional.ifPresent(charger -> charger.dump(pw));
     }
 
     public boolean isReverseSupported() {
@@ -414,7 +405,7 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
         if (DEBUG) {
             Log.d("ReverseChargingControl", "setReverseState(): rtx=" + (z ? 1 : 0));
         }
-        mStopReverseAtAcUnplug = false;
+        mStateMachine.setStopReverseAtAcUnplug(false);
         setReverseStateInternal(z, 2);
     }
 
@@ -423,14 +414,8 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
             return;
         }
         Log.i("ReverseChargingControl", "setReverseStateInternal(): rtx=" + (z ? 1 : 0) + ",reason=" + i);
-        if (z && !isReverseOn()) {
-            if (mPowerSave) {
-                return;
-            } else if (isLowBattery()) {
-                return;
-            } else if (mIsUsbPlugIn) {
-                return;
-            }
+        if (z && !isReverseOn() && !mStateMachine.canStartReverse()) {
+            return;
         }
         if (z == isReverseOn()) {
             return;
@@ -462,14 +447,14 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
         long j;
         if (mStartReconnected) {
             j = getAccessoryReconnectDuration(i);
-        } else if (mStopReverseAtAcUnplug) {
+        } else if (mStateMachine.isStopReverseAtAcUnplug()) {
             j = DURATION_TO_REVERSE_AC_TIME_OUT;
         } else if (mUseRxRemovalTimeOut) {
             j = DURATION_TO_REVERSE_RX_REMOVAL_TIME_OUT;
         } else {
             j = DURATION_TO_REVERSE_TIME_OUT;
         }
-        String str = SystemProperties.get(mStopReverseAtAcUnplug ? "rtx.ac.timeout" : "rtx.timeout");
+        String str = SystemProperties.get(mStateMachine.isStopReverseAtAcUnplug() ? "rtx.ac.timeout" : "rtx.timeout");
         if (!TextUtils.isEmpty(str)) {
             try {
                 return Long.parseLong(str);
@@ -534,7 +519,7 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
             }
             sb.append(i);
             sb.append(" wlc=");
-            sb.append(mWirelessCharging ? 1 : 0);
+            sb.append(mStateMachine.isWirelessCharging() ? 1 : 0);
             sb.append(" mName=");
             sb.append(mName);
             sb.append(" bundle=");
@@ -555,7 +540,7 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
                     sb.append("onReverseInformationChangedOnMainThread(): rtx=");
                     sb.append(bundle.getInt("key_rtx_mode") == 1 ? 1 : 0);
                     sb.append(" wlc=");
-                    sb.append(mWirelessCharging ? 1 : 0);
+                    sb.append(mStateMachine.isWirelessCharging() ? 1 : 0);
                     sb.append(" mName=");
                     sb.append(mName);
                     sb.append(" bundle=");
@@ -564,7 +549,7 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
                     sb.append(this);
                     Log.d("ReverseChargingControl", sb.toString());
                 }
-                if (!mWirelessCharging || mName == null) {
+                if (!mStateMachine.isWirelessCharging() || mName == null) {
                     return;
                 }
                 if (bundle.getInt("key_rtx_mode") == 1) {
@@ -610,7 +595,7 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
                 boolean z2 = bundle.getBoolean("key_rtx_connection");
                 int i4 = bundle.getInt("key_accessory_type");
                 int i5 = bundle.getInt("key_rtx_level");
-                if (!mReverse && mWirelessCharging && i2 == 0 && i5 > 0) {
+                if (!mReverse && mStateMachine.isWirelessCharging() && i2 == 0 && i5 > 0) {
                     mRtxLevel = i5;
                     if (TextUtils.isEmpty(mName)) {
                         mName = mContext.getString(R.string.reverse_charging_device_name_text);
@@ -637,7 +622,7 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
                             mRtxLevel = -1;
                             mCurrentRtxReceiverType = 0;
                         } else {
-                            mStopReverseAtAcUnplug = false;
+                            mStateMachine.setStopReverseAtAcUnplug(false);
                             mRtxLevel = i5;
                             mUseRxRemovalTimeOut = true;
                             if (mCurrentRtxReceiverType != i4) {
@@ -648,7 +633,7 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
                             }
                         }
                     } else {
-                        mStopReverseAtAcUnplug = false;
+                        mStateMachine.setStopReverseAtAcUnplug(false);
                         mProvidingBattery = false;
                         mUseRxRemovalTimeOut = false;
                         mStartReconnected = false;
@@ -672,7 +657,7 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
                         }
                         if (mStartReconnected) {
                             i = 3;
-                        } else if (mUseRxRemovalTimeOut && !mStopReverseAtAcUnplug) {
+                        } else if (mUseRxRemovalTimeOut && !mStateMachine.isStopReverseAtAcUnplug()) {
                             i = 4;
                         }
                         setRtxTimer(i, rtxTimeOut);
@@ -709,6 +694,7 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
     }
 
     private void fireReverseChanged() {
+        onStateMachineEvent(ReverseChargingStateMachine.EVENT_REVERSE_STATE, mReverse ? 1 : 0, mRtxLevel);
         synchronized (mChangeCallbacks) {
             ArrayList arrayList = new ArrayList(mChangeCallbacks);
             int size = arrayList.size();
@@ -808,11 +794,7 @@ public class ReverseChargingController extends BroadcastReceiver implements Call
         public void notifyThrottling(Temperature temperature) {
             int status = temperature.getStatus();
             Log.i("ReverseChargingControl", "notifyThrottling(): thermal status=" + status);
-            ReverseChargingController reverseChargingController = ReverseChargingController.this;
-            if (!reverseChargingController.mReverse || status < 5) {
-                return;
-            }
-            reverseChargingController.setReverseStateInternal(false, 3);
+            mMainExecutor.execute(() -> onStateMachineEvent(ReverseChargingStateMachine.EVENT_THERMAL_STATUS, status, 0));
         }
     }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2022 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.systemui.reversecharging;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feeds an event trace, as printed in the {@link ReverseChargingController} dump, through a fresh
+ * {@link ReverseChargingStateMachine} without any HAL, and checks that every event leads to the
+ * same decision and reason code as when it was recorded. A leading snapshot line seeds the machine
+ * with the state that events dropped from the bounded log had built up. Run on the live log with
+ * {@code dumpsys activity service com.android.systemui/.SystemUIService BatteryController rtx-replay}.
+ */
+final class ReverseChargingReplay implements ReverseChargingStateMachine.Host {
+    private final ReverseChargingStateMachine mStateMachine = new ReverseChargingStateMachine(this);
+    private boolean mReverse;
+
+    static final class Result {
+        final ArrayList<String> mDecisions = new ArrayList<>();
+        final ArrayList<String> mMismatches = new ArrayList<>();
+        String mStats;
+    }
+
+    private ReverseChargingReplay() {
+    }
+
+    static Result replay(List<String> trace) {
+        ReverseChargingReplay replay = new ReverseChargingReplay();
+        Result result = new Result();
+        for (String line : trace) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            if (ReverseChargingStateMachine.Snapshot.matches(line)) {
+                ReverseChargingStateMachine.Snapshot snapshot = ReverseChargingStateMachine.Snapshot.parse(line);
+                replay.mStateMachine.restore(snapshot);
+                replay.mReverse = snapshot.mReverse;
+                continue;
+            }
+            ReverseChargingStateMachine.Event event = ReverseChargingStateMachine.Event.parse(line);
+            if (event.mType == ReverseChargingStateMachine.EVENT_REVERSE_STATE) {
+                replay.mReverse = event.mArg1 != 0;
+            }
+            replay.mStateMachine.onEvent(event);
+            String decision = event.getDecision();
+            result.mDecisions.add(decision);
+            String recorded = ReverseChargingStateMachine.Event.parseDecision(line);
+            if (!recorded.equals(decision)) {
+                result.mMismatches.add(line.trim() + " replayed as " + decision);
+            }
+        }
+        result.mStats = replay.mStateMachine.getStatsString();
+        return result;
+    }
+
+    /** Replays {@code trace} and prints whether every recorded decision was reproduced. */
+    static void dump(PrintWriter pw, List<String> trace) {
+        Result result;
+        try {
+            result = replay(trace);
+        } catch (IllegalArgumentException e) {
+            pw.println("  replay failed: " + e.getMessage());
+            return;
+        }
+        pw.println("  replay: events=" + result.mDecisions.size() + ", mismatches=" + result.mMismatches.size());
+        for (String mismatch : result.mMismatches) {
+            pw.println("    " + mismatch);
+        }
+    }
+
+    @Override
+    public boolean isReverseOn() {
+        return mReverse;
+    }
+
+    @Override
+    public void setReverseState(boolean on, int reason) {
+        // Mirrors ReverseChargingController#setReverseStateInternal.
+        if (on && !mReverse && !mStateMachine.canStartReverse()) {
+            return;
+        }
+        mReverse = on;
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2022 The PixelExperience Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.systemui.reversecharging;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Decides when reverse charging has to be started or stopped in response to battery, power save,
+ * USB, thermal and settings changes. All inputs arrive as {@link Event}s and are kept in a bounded
+ * log together with the state each one found, so that a trace taken from a dump can be fed back
+ * through {@link ReverseChargingReplay}.
+ * The machine only tracks its inputs; whether reverse charging is on is owned by the {@link Host}.
+ */
+final class ReverseChargingStateMachine {
+    private static final String TAG = "ReverseChargingControl";
+    private static final int LOG_SIZE = 64;
+
+    static final int EVENT_BATTERY_CHANGED = 0;
+    static final int EVENT_POWER_SAVE_CHANGED = 1;
+    static final int EVENT_WIRELESS_CHARGING_CHANGED = 2;
+    static final int EVENT_USB_ATTACHED = 3;
+    static final int EVENT_USB_DETACHED = 4;
+    static final int EVENT_THERMAL_STATUS = 5;
+    static final int EVENT_BOOT_COMPLETED = 6;
+    static final int EVENT_SETTINGS_CHANGED = 7;
+    static final int EVENT_REVERSE_STATE = 8;
+    private static final String[] EVENT_NAMES = {"battery", "powerSave", "wirelessCharging", "usbAttached",
+            "usbDetached", "thermal", "bootCompleted", "settings", "reverseState"};
+
+    static final int REASON_AUTO_START = 3;
+    static final int REASON_THERMAL = 3;
+    static final int REASON_LOW_BATTERY = 4;
+    static final int REASON_WIRELESS_CHARGING = 102;
+    static final int REASON_POWER_SAVE = 105;
+    static final int REASON_AC_UNPLUGGED = 106;
+    static final int REASON_USB_PLUGGED = 108;
+
+    private static final int THERMAL_STATUS_SHUTDOWN_THRESHOLD = 5;
+
+    interface Host {
+        boolean isReverseOn();
+
+        /** Requests reverse charging to be turned on or off, subject to the host's own checks. */
+        void setReverseState(boolean on, int reason);
+    }
+
+    /**
+     * One input to the machine. {@code arg1} and {@code arg2} depend on the type:
+     * battery level and plug type, power save / wireless charging / USB blocking as 0 or 1,
+     * thermal status, or the auto turn on setting and low battery threshold.
+     */
+    static final class Event {
+        final long mTimeMs;
+        final int mType;
+        final int mArg1;
+        final int mArg2;
+        boolean mDecided;
+        boolean mDecidedOn;
+        int mDecidedReason;
+        // State before the event was handled; seeds a replay once older events fell off the log.
+        Snapshot mBefore;
+
+        Event(long timeMs, int type, int arg1, int arg2) {
+            mTimeMs = timeMs;
+            mType = type;
+            mArg1 = arg1;
+            mArg2 = arg2;
+        }
+
+        String getDecision() {
+            return mDecided ? "rtx=" + (mDecidedOn ? 1 : 0) + " reason=" + mDecidedReason : "none";
+        }
+
+        @Override
+        public String toString() {
+            return mTimeMs + " " + EVENT_NAMES[mType] + " " + mArg1 + " " + mArg2 + " -> " + getDecision();
+        }
+
+        /** Parses a line printed by {@link #toString()}, ignoring the decision part. */
+        static Event parse(String line) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length < 4) {
+                throw new IllegalArgumentException("Malformed event: " + line);
+            }
+            for (int type = 0; type < EVENT_NAMES.length; type++) {
+                if (EVENT_NAMES[type].equals(parts[1])) {
+                    return new Event(Long.parseLong(parts[0]), type, Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+                }
+            }
+            throw new IllegalArgumentException("Unknown event: " + parts[1]);
+        }
+
+        /** Returns the decision recorded in a line printed by {@link #toString()}. */
+        static String parseDecision(String line) {
+            int index = line.indexOf("-> ");
+            return index >= 0 ? line.substring(index + 3).trim() : "none";
+        }
+    }
+
+    /** The inputs the machine tracks, plus whether reverse charging was on. */
+    static final class Snapshot {
+        private static final String PREFIX = "snapshot";
+
+        int mLevel;
+        boolean mPluggedAc;
+        boolean mPowerSave;
+        boolean mWirelessCharging;
+        boolean mUsbPlugIn;
+        boolean mBootCompleted;
+        boolean mAutoTurnOnEnabled;
+        int mLowBatteryThreshold;
+        boolean mStopReverseAtAcUnplug;
+        boolean mReverse;
+
+        @Override
+        public String toString() {
+            return PREFIX + " level=" + mLevel + " ac=" + (mPluggedAc ? 1 : 0) + " powerSave=" + (mPowerSave ? 1 : 0)
+                    + " wlc=" + (mWirelessCharging ? 1 : 0) + " usb=" + (mUsbPlugIn ? 1 : 0)
+                    + " bootCompleted=" + (mBootCompleted ? 1 : 0) + " autoTurnOn=" + (mAutoTurnOnEnabled ? 1 : 0)
+                    + " lowBatteryThreshold=" + mLowBatteryThreshold + " stopAtAcUnplug=" + (mStopReverseAtAcUnplug ? 1 : 0)
+                    + " reverse=" + (mReverse ? 1 : 0);
+        }
+
+        static boolean matches(String line) {
+            return line.trim().startsWith(PREFIX + " ");
+        }
+
+        /** Parses a line printed by {@link #toString()}. */
+        static Snapshot parse(String line) {
+            Snapshot snapshot = new Snapshot();
+            String[] parts = line.trim().split("\\s+");
+            for (int i = 1; i < parts.length; i++) {
+                int index = parts[i].indexOf('=');
+                if (index < 0) {
+                    throw new IllegalArgumentException("Malformed snapshot: " + line);
+                }
+                int value = Integer.parseInt(parts[i].substring(index + 1));
+                switch (parts[i].substring(0, index)) {
+                    case "level":
+                        snapshot.mLevel = value;
+                        break;
+                    case "ac":
+                        snapshot.mPluggedAc = value != 0;
+                        break;
+                    case "powerSave":
+                        snapshot.mPowerSave = value != 0;
+                        break;
+                    case "wlc":
+                        snapshot.mWirelessCharging = value != 0;
+                        break;
+                    case "usb":
+                        snapshot.mUsbPlugIn = value != 0;
+                        break;
+                    case "bootCompleted":
+                        snapshot.mBootCompleted = value != 0;
+                        break;
+                    case "autoTurnOn":
+                        snapshot.mAutoTurnOnEnabled = value != 0;
+                        break;
+                    case "lowBatteryThreshold":
+                        snapshot.mLowBatteryThreshold = value;
+                        break;
+                    case "stopAtAcUnplug":
+                        snapshot.mStopReverseAtAcUnplug = value != 0;
+                        break;
+                    case "reverse":
+                        snapshot.mReverse = value != 0;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown snapshot field: " + parts[i]);
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    private final Host mHost;
+    private final Event[] mLog = new Event[LOG_SIZE];
+    private int mLogNext;
+    private Event mCurrent;
+
+    private int mLevel;
+    private boolean mPluggedAc;
+    private boolean mPowerSave;
+    private boolean mWirelessCharging;
+    private boolean mUsbPlugIn;
+    private boolean mBootCompleted;
+    private boolean mAutoTurnOnEnabled;
+    private int mLowBatteryThreshold = 10;
+    private boolean mStopReverseAtAcUnplug;
+
+    private long mEvents;
+    private long mTotalDecisionNs;
+    private long mMaxDecisionNs;
+
+    ReverseChargingStateMachine(Host host) {
+        mHost = host;
+    }
+
+    synchronized void onEvent(Event event) {
+        long startNs = System.nanoTime();
+        event.mBefore = snapshot();
+        mCurrent = event;
+        handleEvent(event);
+        mCurrent = null;
+        long durationNs = System.nanoTime() - startNs;
+        mEvents++;
+        mTotalDecisionNs += durationNs;
+        mMaxDecisionNs = Math.max(mMaxDecisionNs, durationNs);
+        mLog[mLogNext] = event;
+        mLogNext = (mLogNext + 1) % LOG_SIZE;
+    }
+
+    private void handleEvent(Event event) {
+        boolean reverse = mHost.isReverseOn();
+        switch (event.mType) {
+            case EVENT_BATTERY_CHANGED:
+                boolean wasPluggedAc = mPluggedAc;
+                mLevel = event.mArg1;
+                mPluggedAc = event.mArg2 == 1;
+                if (reverse && mWirelessCharging) {
+                    request(false, REASON_WIRELESS_CHARGING);
+                } else if (reverse && wasPluggedAc && !mPluggedAc && mStopReverseAtAcUnplug) {
+                    mStopReverseAtAcUnplug = false;
+                    request(false, REASON_AC_UNPLUGGED);
+                } else if (!reverse && !wasPluggedAc && mPluggedAc) {
+                    if (!mAutoTurnOnEnabled) {
+                        Log.d(TAG, "auto turn on is disabled");
+                    } else if (!mBootCompleted) {
+                        Log.i(TAG, "skip auto turn on");
+                    } else {
+                        mStopReverseAtAcUnplug = true;
+                        request(true, REASON_AUTO_START);
+                    }
+                } else if (reverse && isLowBattery()) {
+                    request(false, REASON_LOW_BATTERY);
+                }
+                break;
+            case EVENT_POWER_SAVE_CHANGED:
+                mPowerSave = event.mArg1 != 0;
+                if (reverse && mPowerSave) {
+                    request(false, REASON_POWER_SAVE);
+                }
+                break;
+            case EVENT_WIRELESS_CHARGING_CHANGED:
+                mWirelessCharging = event.mArg1 != 0;
+                if (reverse && mWirelessCharging) {
+                    request(false, REASON_WIRELESS_CHARGING);
+                }
+                break;
+            case EVENT_USB_ATTACHED:
+                mUsbPlugIn = event.mArg1 != 0;
+                if (reverse && mUsbPlugIn) {
+                    request(false, REASON_USB_PLUGGED);
+                }
+                break;
+            case EVENT_USB_DETACHED:
+                mUsbPlugIn = false;
+                break;
+            case EVENT_THERMAL_STATUS:
+                if (reverse && event.mArg1 >= THERMAL_STATUS_SHUTDOWN_THRESHOLD) {
+                    request(false, REASON_THERMAL);
+                }
+                break;
+            case EVENT_BOOT_COMPLETED:
+                mBootCompleted = true;
+                break;
+            case EVENT_SETTINGS_CHANGED:
+                mAutoTurnOnEnabled = event.mArg1 != 0;
+                mLowBatteryThreshold = event.mArg2;
+                break;
+            case EVENT_REVERSE_STATE:
+                // Only recorded, so that replays see the state the HAL reported.
+                break;
+        }
+    }
+
+    private void request(boolean on, int reason) {
+        if (mCurrent != null) {
+            mCurrent.mDecided = true;
+            mCurrent.mDecidedOn = on;
+            mCurrent.mDecidedReason = reason;
+        }
+        mHost.setReverseState(on, reason);
+    }
+
+    synchronized boolean isLowBattery() {
+        if (mLevel <= mLowBatteryThreshold) {
+            Log.w(TAG, "The battery is lower than threshold turn off reverse charging ! level : " + mLevel + ", threshold : " + mLowBatteryThreshold);
+            return true;
+        }
+        return false;
+    }
+
+    /** Returns whether turning reverse charging on is currently allowed. */
+    synchronized boolean canStartReverse() {
+        return !mPowerSave && !isLowBattery() && !mUsbPlugIn;
+    }
+
+    synchronized boolean isWirelessCharging() {
+        return mWirelessCharging;
+    }
+
+    synchronized boolean isStopReverseAtAcUnplug() {
+        return mStopReverseAtAcUnplug;
+    }
+
+    synchronized void setStopReverseAtAcUnplug(boolean stopReverseAtAcUnplug) {
+        mStopReverseAtAcUnplug = stopReverseAtAcUnplug;
+    }
+
+    private Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.mLevel = mLevel;
+        snapshot.mPluggedAc = mPluggedAc;
+        snapshot.mPowerSave = mPowerSave;
+        snapshot.mWirelessCharging = mWirelessCharging;
+        snapshot.mUsbPlugIn = mUsbPlugIn;
+        snapshot.mBootCompleted = mBootCompleted;
+        snapshot.mAutoTurnOnEnabled = mAutoTurnOnEnabled;
+        snapshot.mLowBatteryThreshold = mLowBatteryThreshold;
+        snapshot.mStopReverseAtAcUnplug = mStopReverseAtAcUnplug;
+        snapshot.mReverse = mHost.isReverseOn();
+        return snapshot;
+    }
+
+    /** Puts the tracked inputs back to {@code snapshot}; the host owns the reverse state. */
+    synchronized void restore(Snapshot snapshot) {
+        mLevel = snapshot.mLevel;
+        mPluggedAc = snapshot.mPluggedAc;
+        mPowerSave = snapshot.mPowerSave;
+        mWirelessCharging = snapshot.mWirelessCharging;
+        mUsbPlugIn = snapshot.mUsbPlugIn;
+        mBootCompleted = snapshot.mBootCompleted;
+        mAutoTurnOnEnabled = snapshot.mAutoTurnOnEnabled;
+        mLowBatteryThreshold = snapshot.mLowBatteryThreshold;
+        mStopReverseAtAcUnplug = snapshot.mStopReverseAtAcUnplug;
+    }
+
+    /**
+     * Returns the event log as printed in the dump, headed by the state the oldest event found.
+     */
+    synchronized ArrayList<String> getTrace() {
+        ArrayList<String> trace = new ArrayList<>(LOG_SIZE + 1);
+        for (int i = 0; i < LOG_SIZE; i++) {
+            Event event = mLog[(mLogNext + i) % LOG_SIZE];
+            if (event != null) {
+                if (trace.isEmpty()) {
+                    trace.add(event.mBefore.toString());
+                }
+                trace.add(event.toString());
+            }
+        }
+        return trace;
+    }
+
+    synchronized String getStatsString() {
+        return "events=" + mEvents + ", avgDecisionUs=" + (mEvents > 0 ? mTotalDecisionNs / mEvents / 1000 : 0)
+                + ", maxDecisionUs=" + (mMaxDecisionNs / 1000);
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  state: level=" + mLevel + ", ac=" + mPluggedAc + ", powerSave=" + mPowerSave + ", wlc=" + mWirelessCharging
+                + ", usb=" + mUsbPlugIn + ", bootCompleted=" + mBootCompleted + ", autoTurnOn=" + mAutoTurnOnEnabled
+                + ", lowBatteryThreshold=" + mLowBatteryThreshold + ", stopAtAcUnplug=" + mStopReverseAtAcUnplug);
+        pw.println("  " + getStatsString());
+        pw.println("  event log:");
+        for (String line : getTrace()) {
+            pw.println("    " + line);
+        }
+    }
+}
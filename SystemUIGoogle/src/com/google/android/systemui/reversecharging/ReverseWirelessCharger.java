@@ -18,24 +18,32 @@ package com.google.android.systemui.reversecharging;
 
 import android.content.Context;
 import android.os.Bundle;
-import android.os.IHwBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
-import java.util.ArrayList;
-import java.util.Iterator;
+import com.google.android.systemui.dreamliner.HalConnection;
+import java.io.PrintWriter;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import vendor.google.wireless_charger.V1_2.IWirelessCharger;
 import vendor.google.wireless_charger.V1_2.IWirelessChargerRtxStatusCallback;
 import vendor.google.wireless_charger.V1_2.RtxStatusInfo;
 
 
-public class ReverseWirelessCharger extends IWirelessChargerRtxStatusCallback.Stub implements IHwBinder.DeathRecipient {
+public class ReverseWirelessCharger extends IWirelessChargerRtxStatusCallback.Stub {
     private static final boolean DEBUG = Log.isLoggable("ReverseWirelessCharger", 3);
     private Context mContext;
-    private IWirelessCharger mWirelessCharger;
-    private final ArrayList<IsDockPresentCallback> mIsDockPresentCallbacks = new ArrayList<>();
-    private final ArrayList<RtxInformationCallback> mRtxInformationCallbacks = new ArrayList<>();
-    private final ArrayList<RtxStatusCallback> mRtxStatusCallbacks = new ArrayList<>();
-    private final Object mLock = new Object();
+    private final HalConnection<IWirelessCharger> mHal = new HalConnection<>("ReverseWirelessCharger", IWirelessCharger::getService, hal -> hal.registerRtxCallback(this));
+    // Registration is rare and dispatch happens on every HAL callback, so reads must not lock.
+    private final CopyOnWriteArrayList<IsDockPresentCallback> mIsDockPresentCallbacks = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<RtxInformationCallback> mRtxInformationCallbacks = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<RtxStatusCallback> mRtxStatusCallbacks = new CopyOnWriteArrayList<>();
+    private final Executor mCallbackExecutor;
+    private final Object mStatsLock = new Object();
+    private long mDispatches;
+    private long mDispatchedCallbacks;
+    private long mTotalDispatchNs;
+    private long mMaxDispatchNs;
     private final LocalRtxInformationCallback mLocalRtxInformationCallback = new LocalRtxInformationCallback();
 
     public interface IsDockPresentCallback {
@@ -51,7 +59,13 @@ public class ReverseWirelessCharger extends IWirelessChargerRtxStatusCallback.St
     }
 
     public ReverseWirelessCharger(Context context) {
+        this(context, Runnable::run);
+    }
+
+    /** @param callbackExecutor runs listener callbacks, off the HIDL callback thread */
+    public ReverseWirelessCharger(Context context, Executor callbackExecutor) {
         mContext = context;
+        mCallbackExecutor = callbackExecutor;
     }
 
     private static Bundle buildDockPresentBundle(boolean z, byte b, byte b2, boolean z2, int i) {
@@ -76,40 +90,32 @@ public class ReverseWirelessCharger extends IWirelessChargerRtxStatusCallback.St
         return bundle;
     }
 
-    public void serviceDied(long j) {
-        Log.i("ReverseWirelessCharger", "serviceDied");
-        mWirelessCharger = null;
+    public void dump(PrintWriter pw) {
+        mHal.dump(pw);
+        synchronized (mStatsLock) {
+            pw.println("  listeners: dockPresent=" + mIsDockPresentCallbacks.size() + ", rtxInformation=" + mRtxInformationCallbacks.size()
+                    + ", rtxStatus=" + mRtxStatusCallbacks.size());
+            pw.println("  dispatches=" + mDispatches + ", callbacks=" + mDispatchedCallbacks + ", avgDispatchUs="
+                    + (mDispatches > 0 ? mTotalDispatchNs / mDispatches / 1000 : 0) + ", maxDispatchUs=" + (mMaxDispatchNs / 1000));
+        }
     }
 
-    private void initHALInterface() {
-        if (mWirelessCharger == null) {
-            try {
-                mWirelessCharger = IWirelessCharger.getService();
-                mWirelessCharger.linkToDeath(this, 0L);
-                mWirelessCharger.registerRtxCallback(this);
-            } catch (Exception e) {
-                Log.i("ReverseWirelessCharger", "no wireless charger hal found: " + e.getMessage(), e);
-                mWirelessCharger = null;
-            }
+    private void recordDispatch(long startNs, int callbacks) {
+        long durationNs = SystemClock.elapsedRealtimeNanos() - startNs;
+        synchronized (mStatsLock) {
+            mDispatches++;
+            mDispatchedCallbacks += callbacks;
+            mTotalDispatchNs += durationNs;
+            mMaxDispatchNs = Math.max(mMaxDispatchNs, durationNs);
         }
     }
 
     public boolean isRtxSupported() {
-        initHALInterface();
-        if (mWirelessCharger != null) {
-            try {
-                return mWirelessCharger.isRtxSupported();
-            } catch (Exception e) {
-                Log.i("ReverseWirelessCharger", "isRtxSupported fail: ", e);
-            }
-        }
-        return false;
+        return mHal.call("isRtxSupported", IWirelessCharger::isRtxSupported, false);
     }
 
     public void addIsDockPresentCallback(IsDockPresentCallback isDockPresentCallback) {
-        synchronized (mLock) {
-            mIsDockPresentCallbacks.add(isDockPresentCallback);
-        }
+        mIsDockPresentCallbacks.add(isDockPresentCallback);
     }
 
     public void addIsDockPresentChangeListener(IsDockPresentChangeListener isDockPresentChangeListener) {
@@ -117,31 +123,37 @@ public class ReverseWirelessCharger extends IWirelessChargerRtxStatusCallback.St
     }
 
     private void dispatchIsDockPresentCallbacks(boolean z, byte b, byte b2, boolean z2, int i) {
-        ArrayList arrayList;
-        synchronized (mLock) {
-            arrayList = new ArrayList(mIsDockPresentCallbacks);
-        }
-        Iterator it = arrayList.iterator();
-        while (it.hasNext()) {
-            ((IsDockPresentCallback) it.next()).onIsDockPresentChanged(z, b, b2, z2, i);
+        if (mIsDockPresentCallbacks.isEmpty()) {
+            return;
         }
+        mCallbackExecutor.execute(() -> {
+            long startNs = SystemClock.elapsedRealtimeNanos();
+            if (DEBUG) {
+                Log.d("ReverseWirelessCharger", "onIsDockPresentChanged(): docked=" + (z ? 1 : 0) + " type=" + ((int) b) + " orient=" + ((int) b2) + " isGetI=" + (z2 ? 1 : 0) + " id=" + i);
+            }
+            Bundle bundle = null;
+            int count = 0;
+            for (IsDockPresentCallback callback : mIsDockPresentCallbacks) {
+                if (callback instanceof IsDockPresentChangeListener) {
+                    if (bundle == null) {
+                        bundle = buildDockPresentBundle(z, b, b2, z2, i);
+                    }
+                    ((IsDockPresentChangeListener) callback).onDockPresentChanged(bundle);
+                } else {
+                    callback.onIsDockPresentChanged(z, b, b2, z2, i);
+                }
+                count++;
+            }
+            recordDispatch(startNs, count);
+        });
     }
 
     public void getRtxInformation() {
-        initHALInterface();
-        if (mWirelessCharger != null) {
-            try {
-                mWirelessCharger.getRtxInformation(mLocalRtxInformationCallback);
-            } catch (Exception e) {
-                Log.i("ReverseWirelessCharger", "getRtxInformation fail: ", e);
-            }
-        }
+        mHal.execute("getRtxInformation", hal -> hal.getRtxInformation(mLocalRtxInformationCallback));
     }
 
     public void addRtxInformationCallback(RtxInformationCallback rtxInformationCallback) {
-        synchronized (mLock) {
-            mRtxInformationCallbacks.add(rtxInformationCallback);
-        }
+        mRtxInformationCallbacks.add(rtxInformationCallback);
     }
 
     public void addReverseChargingInformationChangeListener(ReverseChargingInformationChangeListener reverseChargingInformationChangeListener) {
@@ -149,31 +161,37 @@ public class ReverseWirelessCharger extends IWirelessChargerRtxStatusCallback.St
     }
 
     private void dispatchRtxInformationCallbacks(RtxStatusInfo rtxStatusInfo) {
-        ArrayList arrayList;
-        synchronized (mLock) {
-            arrayList = new ArrayList(mRtxInformationCallbacks);
-        }
-        Iterator it = arrayList.iterator();
-        while (it.hasNext()) {
-            ((RtxInformationCallback) it.next()).onRtxInformationChanged(rtxStatusInfo);
+        if (mRtxInformationCallbacks.isEmpty()) {
+            return;
         }
+        mCallbackExecutor.execute(() -> {
+            long startNs = SystemClock.elapsedRealtimeNanos();
+            if (DEBUG) {
+                Log.d("ReverseWirelessCharger", "onRtxInformationChanged() RtxStatusInfo : " + rtxStatusInfo.toString());
+            }
+            Bundle bundle = null;
+            int count = 0;
+            for (RtxInformationCallback callback : mRtxInformationCallbacks) {
+                if (callback instanceof ReverseChargingInformationChangeListener) {
+                    if (bundle == null) {
+                        bundle = buildReverseStatusBundle(rtxStatusInfo);
+                    }
+                    ((ReverseChargingInformationChangeListener) callback).onReverseInformationChanged(bundle);
+                } else {
+                    callback.onRtxInformationChanged(rtxStatusInfo);
+                }
+                count++;
+            }
+            recordDispatch(startNs, count);
+        });
     }
 
     public void setRtxMode(boolean z) {
-        initHALInterface();
-        if (mWirelessCharger != null) {
-            try {
-                mWirelessCharger.setRtxMode(z);
-            } catch (Exception e) {
-                Log.i("ReverseWirelessCharger", "setRtxMode fail: ", e);
-            }
-        }
+        mHal.execute("setRtxMode", hal -> hal.setRtxMode(z));
     }
 
     public void addRtxStatusCallback(RtxStatusCallback rtxStatusCallback) {
-        synchronized (mLock) {
-            mRtxStatusCallbacks.add(rtxStatusCallback);
-        }
+        mRtxStatusCallbacks.add(rtxStatusCallback);
     }
 
     public void addReverseChargingChangeListener(ReverseChargingChangeListener reverseChargingChangeListener) {
@@ -181,14 +199,29 @@ public class ReverseWirelessCharger extends IWirelessChargerRtxStatusCallback.St
     }
 
     private void dispatchRtxStatusCallbacks(RtxStatusInfo rtxStatusInfo) {
-        ArrayList arrayList;
-        synchronized (mLock) {
-            arrayList = new ArrayList(mRtxStatusCallbacks);
-        }
-        Iterator it = arrayList.iterator();
-        while (it.hasNext()) {
-            ((RtxStatusCallback) it.next()).onRtxStatusChanged(rtxStatusInfo);
+        if (mRtxStatusCallbacks.isEmpty()) {
+            return;
         }
+        mCallbackExecutor.execute(() -> {
+            long startNs = SystemClock.elapsedRealtimeNanos();
+            if (DEBUG) {
+                Log.d("ReverseWirelessCharger", "onRtxStatusChanged() RtxStatusInfo : " + rtxStatusInfo.toString());
+            }
+            Bundle bundle = null;
+            int count = 0;
+            for (RtxStatusCallback callback : mRtxStatusCallbacks) {
+                if (callback instanceof ReverseChargingChangeListener) {
+                    if (bundle == null) {
+                        bundle = buildReverseStatusBundle(rtxStatusInfo);
+                    }
+                    ((ReverseChargingChangeListener) callback).onReverseStatusChanged(bundle);
+                } else {
+                    callback.onRtxStatusChanged(rtxStatusInfo);
+                }
+                count++;
+            }
+            recordDispatch(startNs, count);
+        });
     }
 
     @Override
@@ -196,6 +229,7 @@ public class ReverseWirelessCharger extends IWirelessChargerRtxStatusCallback.St
         dispatchRtxStatusCallbacks(rtxStatusInfo);
     }
 
+    /** The bundle passed to these listeners is shared between them and must not be modified. */
     public interface IsDockPresentChangeListener extends IsDockPresentCallback {
         void onDockPresentChanged(Bundle bundle);
 
@@ -208,6 +242,7 @@ public class ReverseWirelessCharger extends IWirelessChargerRtxStatusCallback.St
         }
     }
 
+    /** The bundle passed to these listeners is shared between them and must not be modified. */
     public interface ReverseChargingInformationChangeListener extends RtxInformationCallback {
         void onReverseInformationChanged(Bundle bundle);
 
@@ -220,6 +255,7 @@ public class ReverseWirelessCharger extends IWirelessChargerRtxStatusCallback.St
         }
     }
 
+    /** The bundle passed to these listeners is shared between them and must not be modified. */
     public interface ReverseChargingChangeListener extends RtxStatusCallback {
         void onReverseStatusChanged(Bundle bundle);
 
@@ -24,6 +24,7 @@ import android.os.ServiceManager;
 import com.android.systemui.R;
 import com.android.systemui.broadcast.BroadcastDispatcher;
 import com.android.systemui.dagger.SysUISingleton;
+import com.android.systemui.dagger.qualifiers.Background;
 import com.android.systemui.dagger.qualifiers.Main;
 import com.android.systemui.statusbar.phone.CentralSurfaces;
 import com.android.systemui.statusbar.phone.StatusBarIconController;
@@ -43,8 +44,8 @@ import dagger.Provides;
 public abstract class ReverseChargingModule {
     @Provides
     @SysUISingleton
-    static Optional<ReverseWirelessCharger> provideReverseWirelessCharger(Context context) {
-        return context.getResources().getBoolean(R.bool.config_wlc_support_enabled) ? Optional.of(new ReverseWirelessCharger(context)) : Optional.empty();
+    static Optional<ReverseWirelessCharger> provideReverseWirelessCharger(Context context, @Background Executor executor) {
+        return context.getResources().getBoolean(R.bool.config_wlc_support_enabled) ? Optional.of(new ReverseWirelessCharger(context, executor)) : Optional.empty();
     }
 
     @Provides
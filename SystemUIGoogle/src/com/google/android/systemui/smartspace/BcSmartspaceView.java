@@ -7,8 +7,13 @@ import android.animation.ObjectAnimator;
 import android.app.smartspace.SmartspaceAction;
 import android.app.smartspace.SmartspaceTarget;
 import android.app.smartspace.SmartspaceTargetEvent;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
 import android.database.ContentObserver;
 import android.graphics.drawable.Drawable;
 import android.os.Debug;
@@ -36,10 +41,9 @@ import com.google.android.systemui.smartspace.uitemplate.BaseTemplateCard;
 import java.time.DateTimeException;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Objects;
 
 public class BcSmartspaceView extends FrameLayout implements BcSmartspaceDataPlugin.SmartspaceTargetListener, BcSmartspaceDataPlugin.SmartspaceView {
     public static final String TAG = "BcSmartspaceView";
@@ -52,6 +56,30 @@ public class BcSmartspaceView extends FrameLayout implements BcSmartspaceDataPlu
     public boolean mIsAodEnabled;
     public ArraySet<String> mLastReceivedTargets;
     public final ViewPager.OnPageChangeListener mOnPageChangeListener;
+    public final ComponentCallbacks2 mComponentCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            BcSmartspaceView.this.mAdapter.onTrimMemory(level);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+            BcSmartspaceView.this.mAdapter.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+    };
+    /** Drops cached UIDs of packages that were installed or removed, since their UID may change. */
+    public final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() != null) {
+                BcSmartspaceCardLoggerUtil.invalidateUid(intent.getData().getSchemeSpecificPart());
+            }
+        }
+    };
     public PageIndicator mPageIndicator;
     public List<? extends Parcelable> mPendingTargets;
     public Animator mRunningAnimation;
@@ -90,6 +118,9 @@ public class BcSmartspaceView extends FrameLayout implements BcSmartspaceDataPlu
             public void onPageSelected(int position) {
                 SmartspaceTarget targetAtPosition = BcSmartspaceView.this.mAdapter.getTargetAtPosition(BcSmartspaceView.this.mCardPosition);
                 BcSmartspaceView.this.mCardPosition = position;
+                // The neighbouring pages are already instantiated, warm up the ones after them.
+                BcSmartspaceView.this.mAdapter.prefetch(BcSmartspaceView.this.mViewPager, position + 2);
+                BcSmartspaceView.this.mAdapter.prefetch(BcSmartspaceView.this.mViewPager, position - 2);
                 SmartspaceTarget targetAtPosition2 = BcSmartspaceView.this.mAdapter.getTargetAtPosition(position);
                 BcSmartspaceView.this.logSmartspaceEvent(targetAtPosition2, BcSmartspaceView.this.mCardPosition, BcSmartspaceEvent.SMARTSPACE_CARD_SEEN);
                 if (BcSmartspaceView.this.mDataProvider == null) {
@@ -148,6 +179,12 @@ public class BcSmartspaceView extends FrameLayout implements BcSmartspaceDataPlu
         if (this.mDataProvider != null) {
             registerDataProvider(this.mDataProvider);
         }
+        getContext().registerComponentCallbacks(this.mComponentCallbacks);
+        IntentFilter packageFilter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        getContext().registerReceiver(this.mPackageReceiver, packageFilter);
+        this.mAdapter.prewarmTemplateCards(this.mViewPager);
     }
 
     @Override // android.view.ViewGroup, android.view.View
@@ -157,6 +194,11 @@ public class BcSmartspaceView extends FrameLayout implements BcSmartspaceDataPlu
         if (this.mDataProvider != null) {
             this.mDataProvider.unregisterListener(this);
         }
+        getContext().unregisterComponentCallbacks(this.mComponentCallbacks);
+        getContext().unregisterReceiver(this.mPackageReceiver);
+        if (DEBUG) {
+            Log.d(TAG, "@" + Integer.toHexString(hashCode()) + ", card recycling: " + this.mAdapter.getRecyclingStats());
+        }
     }
 
     @Override // android.widget.FrameLayout, android.view.View
@@ -220,16 +262,16 @@ public class BcSmartspaceView extends FrameLayout implements BcSmartspaceDataPlu
         } else {
             bcSmartspaceCard = viewHolder2.mLegacyCard;
         }
-        this.mAdapter.mAODTargets.clear();
-        this.mAdapter.mLockscreenTargets.clear();
-        this.mAdapter.mHasDifferentTargets = false;
-        this.mAdapter.mNextAlarmData.mHolidayAlarmsTarget = null;
-        list.forEach(obj -> {
+        final ArrayList<SmartspaceTarget> aodTargets = new ArrayList<>();
+        final ArrayList<SmartspaceTarget> lockscreenTargets = new ArrayList<>();
+        boolean hasDifferentTargets = false;
+        SmartspaceTarget holidayAlarmsTarget = null;
+        for (int j = 0; j < list.size(); j++) {
             int q;
-            SmartspaceTarget it = (SmartspaceTarget) obj;
+            SmartspaceTarget it = (SmartspaceTarget) list.get(j);
             if (it.getFeatureType() == 34) {
-                this.mAdapter.mNextAlarmData.mHolidayAlarmsTarget = it;
-                return;
+                holidayAlarmsTarget = it;
+                continue;
             }
             if (it.getBaseAction() != null && it.getBaseAction().getExtras() != null) {
                 q = it.getBaseAction().getExtras().getInt("SCREEN_EXTRA", 3);
@@ -237,19 +279,30 @@ public class BcSmartspaceView extends FrameLayout implements BcSmartspaceDataPlu
                 q = 3;
             }
             if ((q & 2) != 0) {
-                this.mAdapter.mAODTargets.add(it);
+                aodTargets.add(it);
             }
             if ((q & 1) != 0) {
-                this.mAdapter.mLockscreenTargets.add(it);
+                lockscreenTargets.add(it);
             }
             if (q != 3) {
-                this.mAdapter.mHasDifferentTargets = true;
+                hasDifferentTargets = true;
             }
-        });
-        this.mAdapter.addDefaultDateCardIfEmpty(this.mAdapter.mAODTargets);
-        this.mAdapter.addDefaultDateCardIfEmpty(this.mAdapter.mLockscreenTargets);
-        this.mAdapter.updateTargetVisibility();
-        this.mAdapter.notifyDataSetChanged();
+        }
+        this.mAdapter.addDefaultDateCardIfEmpty(aodTargets);
+        this.mAdapter.addDefaultDateCardIfEmpty(lockscreenTargets);
+        if (aodTargets.equals(this.mAdapter.mAODTargets) && lockscreenTargets.equals(this.mAdapter.mLockscreenTargets) && hasDifferentTargets == this.mAdapter.mHasDifferentTargets && Objects.equals(holidayAlarmsTarget, this.mAdapter.mNextAlarmData.mHolidayAlarmsTarget)) {
+            if (DEBUG) {
+                Log.d(TAG, "    targets unchanged, skipping update");
+            }
+            return;
+        }
+        this.mAdapter.mAODTargets.clear();
+        this.mAdapter.mAODTargets.addAll(aodTargets);
+        this.mAdapter.mLockscreenTargets.clear();
+        this.mAdapter.mLockscreenTargets.addAll(lockscreenTargets);
+        this.mAdapter.mHasDifferentTargets = hasDifferentTargets;
+        this.mAdapter.mNextAlarmData.mHolidayAlarmsTarget = holidayAlarmsTarget;
+        this.mAdapter.updateTargetVisibility(true);
         int count = this.mAdapter.getCount();
         if (z) {
             this.mViewPager.setCurrentItem(Math.max(0, Math.min(count - 1, count - i)), false);
@@ -278,13 +331,16 @@ public class BcSmartspaceView extends FrameLayout implements BcSmartspaceDataPlu
             }
         }
         this.mLastReceivedTargets.clear();
-        this.mLastReceivedTargets.addAll((Collection) this.mAdapter.mSmartspaceTargets.stream().map((v0) -> {
-            return v0.getSmartspaceTargetId();
-        }).collect(Collectors.toList()));
-        this.mAdapter.notifyDataSetChanged();
+        ArrayList<SmartspaceTarget> targets = this.mAdapter.mSmartspaceTargets;
+        for (int i4 = 0; i4 < targets.size(); i4++) {
+            this.mLastReceivedTargets.add(targets.get(i4).getSmartspaceTargetId());
+        }
     }
 
     public void logSmartspaceEvent(SmartspaceTarget smartspaceTarget, int rank, BcSmartspaceEvent bcSmartspaceEvent) {
+        if (!BcSmartspaceCardLogger.isEnabled()) {
+            return;
+        }
         int i2;
         BcSmartspaceSubcardLoggingInfo createSubcardLoggingInfo;
         if (bcSmartspaceEvent == BcSmartspaceEvent.SMARTSPACE_CARD_RECEIVED) {
@@ -405,6 +461,9 @@ public class BcSmartspaceView extends FrameLayout implements BcSmartspaceDataPlu
             this.mPageIndicator.setPageOffset(0, 0.0f);
         }
         this.mPageIndicator.setNumPages(this.mAdapter.getCount());
+        if (!BcSmartspaceCardLogger.isEnabled()) {
+            return;
+        }
         String packageName = getContext().getPackageName();
         CardPagerAdapter cardPagerAdapter3 = this.mAdapter;
         int loggingDisplaySurface = BcSmartSpaceUtil.getLoggingDisplaySurface(packageName, cardPagerAdapter3.mIsDreaming, cardPagerAdapter3.mDozeAmount);
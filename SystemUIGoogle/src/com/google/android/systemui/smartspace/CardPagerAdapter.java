@@ -8,7 +8,12 @@ import android.app.smartspace.uitemplatedata.TapAction;
 import android.content.ComponentName;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.Trace;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.SparseArray;
 import android.view.LayoutInflater;
@@ -17,17 +22,16 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import androidx.constraintlayout.widget.ConstraintLayout;
 import androidx.viewpager.widget.PagerAdapter;
+import androidx.viewpager.widget.ViewPager;
 import com.android.internal.graphics.ColorUtils;
 import com.android.launcher3.icons.GraphicsUtils;
 import com.android.systemui.R;
 import com.android.systemui.plugins.BcSmartspaceDataPlugin;
 import com.google.android.systemui.smartspace.logging.BcSmartspaceCardLoggerUtil;
 import com.google.android.systemui.smartspace.logging.BcSmartspaceCardLoggingInfo;
-import com.google.android.systemui.smartspace.logging.BcSmartspaceSubcardLoggingInfo;
 import com.google.android.systemui.smartspace.uitemplate.BaseTemplateCard;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
 import java.util.UUID;
 import java.util.function.IntPredicate;
 import java.util.stream.IntStream;
@@ -35,6 +39,19 @@ import java.util.stream.IntStream;
 public class CardPagerAdapter extends PagerAdapter {
     public static final int MAX_FEATURE_TYPE = 41;
     public static final int MIN_FEATURE_TYPE = -2;
+    public static final int MAX_RECYCLED_CARDS_PER_LAYOUT = 3;
+    public static final int MAX_RECYCLED_CARDS = 12;
+    /**
+     * Base and secondary layouts inflated ahead of time by {@link #prewarmTemplateCards}. They are
+     * inflated on the inflater thread, so their views must not bind to the calling looper.
+     */
+    private static final int[][] PREWARM_TEMPLATE_LAYOUTS = {
+        {R.layout.smartspace_base_template_card, 0},
+        {R.layout.smartspace_base_template_card_with_date, 0},
+        {R.layout.smartspace_base_template_card, R.layout.smartspace_sub_image_template_card},
+        {R.layout.smartspace_base_template_card, R.layout.smartspace_sub_card_template_card},
+    };
+    private static Handler sInflationHandler;
     public final View mRoot;
     public BcSmartspaceDataPlugin mDataProvider;
     public int mCurrentTextColor;
@@ -46,8 +63,9 @@ public class CardPagerAdapter extends PagerAdapter {
     public final SparseArray<ViewHolder> mViewHolders = new SparseArray<>();
     public final LazyServerFlagLoader mEnableCardRecycling = new LazyServerFlagLoader("enable_card_recycling");
     public final LazyServerFlagLoader mEnableReducedCardRecycling = new LazyServerFlagLoader("enable_reduced_card_recycling");
-    public final SparseArray<BaseTemplateCard> mRecycledCards = new SparseArray<>();
-    public final SparseArray<BcSmartspaceCard> mRecycledLegacyCards = new SparseArray<>();
+    public final LazyServerFlagLoader mEnableAsyncInflation = new LazyServerFlagLoader("enable_async_card_inflation");
+    public final CardViewPool<BaseTemplateCard> mTemplateCardPool = new CardViewPool<>(MAX_RECYCLED_CARDS_PER_LAYOUT, MAX_RECYCLED_CARDS);
+    public final CardViewPool<BcSmartspaceCard> mLegacyCardPool = new CardViewPool<>(MAX_RECYCLED_CARDS_PER_LAYOUT, MAX_RECYCLED_CARDS);
     public BcNextAlarmData mNextAlarmData = new BcNextAlarmData();
     public boolean mIsDreaming = false;
     public float mDozeAmount = 0.0f;
@@ -58,6 +76,12 @@ public class CardPagerAdapter extends PagerAdapter {
     public boolean mKeyguardBypassEnabled = false;
     public boolean mHasDifferentTargets = false;
     public String mUiSurface;
+    public int mRebindCount = 0;
+    public int mSkippedRebindCount = 0;
+    public int mAsyncInflationCount = 0;
+    public int mPrefetchCount = 0;
+    public int mLoggingInfoBuildCount = 0;
+    private final ArrayMap<String, Integer> mTargetPositions = new ArrayMap<>();
 
     List<SmartspaceTarget> getTargets() {
         return this.mSmartspaceTargets;
@@ -162,20 +186,23 @@ public class CardPagerAdapter extends PagerAdapter {
         if (viewHolder == null) {
             return;
         }
+        if (viewHolder.mPlaceholder != null) {
+            viewGroup.removeView(viewHolder.mPlaceholder);
+            viewHolder.mPlaceholder = null;
+        }
         BcSmartspaceCard bcSmartspaceCard = viewHolder.mLegacyCard;
         if (bcSmartspaceCard != null) {
-            SmartspaceTarget smartspaceTarget = bcSmartspaceCard.mTarget;
-            if (smartspaceTarget != null && this.mEnableCardRecycling.get()) {
-                this.mRecycledLegacyCards.put(getFeatureType(smartspaceTarget), bcSmartspaceCard);
-            }
             viewGroup.removeView(bcSmartspaceCard);
+            if (bcSmartspaceCard.mTarget != null && this.mEnableCardRecycling.get()) {
+                this.mLegacyCardPool.release(viewHolder.mLayoutKey, bcSmartspaceCard);
+            }
         }
         BaseTemplateCard baseTemplateCard = viewHolder.mCard;
         if (baseTemplateCard != null) {
+            viewGroup.removeView(baseTemplateCard);
             if (baseTemplateCard.mTarget != null && this.mEnableCardRecycling.get()) {
-                this.mRecycledCards.put(baseTemplateCard.mTarget.getFeatureType(), baseTemplateCard);
+                this.mTemplateCardPool.release(viewHolder.mLayoutKey, baseTemplateCard);
             }
-            viewGroup.removeView(viewHolder.mCard);
         }
         if (this.mViewHolders.get(position) == viewHolder) {
             this.mViewHolders.remove(position);
@@ -187,19 +214,68 @@ public class CardPagerAdapter extends PagerAdapter {
         return this.mSmartspaceTargets.size();
     }
 
+    @Override
+    public void notifyDataSetChanged() {
+        this.mTargetPositions.clear();
+        for (int i = this.mSmartspaceTargets.size() - 1; i >= 0; i--) {
+            this.mTargetPositions.put(this.mSmartspaceTargets.get(i).getSmartspaceTargetId(), i);
+        }
+        int rebinds = this.mRebindCount;
+        super.notifyDataSetChanged();
+        if (BcSmartspaceView.DEBUG) {
+            Log.d("SsCardPagerAdapter", "Data set changed, rebinds=" + (this.mRebindCount - rebinds) + " total=" + this.mRebindCount + " skipped=" + this.mSkippedRebindCount);
+        }
+    }
+
+    /**
+     * Diffs a live view holder against the current targets, keyed by target id. Cards whose
+     * target moved keep their view, cards whose content or rank changed are rebound in place,
+     * and unchanged cards are left alone.
+     */
     @Override
     public int getItemPosition(Object obj) {
         ViewHolder viewHolder = (ViewHolder) obj;
-        SmartspaceTarget targetAtPosition = getTargetAtPosition(viewHolder.mPosition);
-        if (viewHolder.mTarget == targetAtPosition) {
-            return -1;
+        Integer newPosition = this.mTargetPositions.get(viewHolder.mTarget.getSmartspaceTargetId());
+        if (newPosition == null) {
+            return -2;
+        }
+        SmartspaceTarget targetAtPosition = this.mSmartspaceTargets.get(newPosition);
+        if (getFeatureType(targetAtPosition) != getFeatureType(viewHolder.mTarget)) {
+            return -2;
+        }
+        int oldPosition = viewHolder.mPosition;
+        // Rank and cardinality are part of the bound logging info, so they force a rebind too.
+        boolean rankChanged = oldPosition != newPosition || viewHolder.mCardinality != this.mSmartspaceTargets.size();
+        if (oldPosition != newPosition) {
+            moveViewHolder(viewHolder, newPosition);
         }
-        if (targetAtPosition != null && getFeatureType(targetAtPosition) == getFeatureType(viewHolder.mTarget) && Objects.equals(targetAtPosition.getSmartspaceTargetId(), viewHolder.mTarget.getSmartspaceTargetId())) {
+        if (!rankChanged && (viewHolder.mTarget == targetAtPosition || hasSameContent(viewHolder.mTarget, targetAtPosition))) {
+            viewHolder.mTarget = targetAtPosition;
+            this.mSkippedRebindCount++;
+        } else {
             viewHolder.mTarget = targetAtPosition;
             onBindViewHolder(viewHolder);
-            return -1;
+            this.mRebindCount++;
+        }
+        return newPosition == oldPosition ? -1 : newPosition;
+    }
+
+    private static boolean hasSameContent(SmartspaceTarget target, SmartspaceTarget target2) {
+        return target.hashCode() == target2.hashCode() && target.equals(target2);
+    }
+
+    /**
+     * Re-keys a moved holder while ViewPager is still diffing, before populate instantiates new
+     * cards at the freed positions. A holder that still sits at the new position has moved or is
+     * being destroyed as well; it re-keys itself, and destroyItem only removes a holder from its
+     * own key.
+     */
+    private void moveViewHolder(ViewHolder viewHolder, int newPosition) {
+        if (this.mViewHolders.get(viewHolder.mPosition) == viewHolder) {
+            this.mViewHolders.remove(viewHolder.mPosition);
         }
-        return -2;
+        viewHolder.mPosition = newPosition;
+        this.mViewHolders.put(newPosition, viewHolder);
     }
 
     public SmartspaceTarget getTargetAtPosition(int position) {
@@ -211,103 +287,250 @@ public class CardPagerAdapter extends PagerAdapter {
 
     @Override // androidx.viewpager.widget.PagerAdapter
     public final Object instantiateItem(ViewGroup viewGroup, int i) {
-        BcSmartspaceCard bcSmartspaceCard;
-        ViewHolder viewHolder;
-        BaseTemplateCard baseTemplateCard;
-        BaseTemplateData.SubItemInfo subItemInfo;
-        int i2;
-        int secondaryCardRes;
         SmartspaceTarget smartspaceTarget = (SmartspaceTarget) this.mSmartspaceTargets.get(i);
-        if (smartspaceTarget.getTemplateData() != null) {
+        int featureType = getFeatureType(smartspaceTarget);
+        boolean isTemplate = smartspaceTarget.getTemplateData() != null;
+        if (isTemplate) {
             Log.i("SsCardPagerAdapter", "Use UI template for the feature: " + smartspaceTarget.getFeatureType());
-            if (this.mEnableCardRecycling.get()) {
-                baseTemplateCard = (BaseTemplateCard) this.mRecycledCards.removeReturnOld(smartspaceTarget.getFeatureType());
-            } else {
-                baseTemplateCard = null;
+        }
+        long layoutKey = getLayoutKey(smartspaceTarget);
+        CardViewPool<? extends View> pool = isTemplate ? this.mTemplateCardPool : this.mLegacyCardPool;
+        View card = null;
+        if (this.mEnableCardRecycling.get()) {
+            card = pool.acquire(layoutKey, featureType, this.mEnableReducedCardRecycling.get() ? v -> useRecycledViewForNewTarget(smartspaceTarget, getCardTarget(v)) : null);
+        }
+        ViewHolder viewHolder = new ViewHolder(i, null, smartspaceTarget, null);
+        viewHolder.mLayoutKey = layoutKey;
+        this.mViewHolders.put(i, viewHolder);
+        if (card == null) {
+            pool.recordInflation(featureType);
+            if (shouldInflateAsync(viewGroup, i)) {
+                inflateAsync(viewGroup, viewHolder, isTemplate);
+                return viewHolder;
             }
-            if (baseTemplateCard == null || (this.mEnableReducedCardRecycling.get() && !useRecycledViewForNewTarget(smartspaceTarget, baseTemplateCard.mTarget))) {
-                BaseTemplateData templateData = smartspaceTarget.getTemplateData();
-                if (templateData != null) {
-                    subItemInfo = templateData.getPrimaryItem();
-                } else {
-                    subItemInfo = null;
-                }
-                if (subItemInfo != null && (!SmartspaceUtils.isEmpty(subItemInfo.getText()) || subItemInfo.getIcon() != null)) {
-                    i2 = R.layout.smartspace_base_template_card;
-                } else {
-                    i2 = R.layout.smartspace_base_template_card_with_date;
+            Trace.beginSection("CardPagerAdapter.inflate");
+            card = inflateCard(LayoutInflater.from(viewGroup.getContext()), viewGroup, isTemplate, layoutKey);
+            Trace.endSection();
+        }
+        setCard(viewHolder, card);
+        viewGroup.addView(card);
+        onBindViewHolder(viewHolder);
+        return viewHolder;
+    }
+
+    public static long getLayoutKey(SmartspaceTarget smartspaceTarget) {
+        BaseTemplateData templateData = smartspaceTarget.getTemplateData();
+        if (templateData != null) {
+            return CardViewPool.key(getTemplateCardRes(templateData), BcSmartspaceTemplateDataUtils.getSecondaryCardRes(templateData.getTemplateType()));
+        }
+        int featureType = getFeatureType(smartspaceTarget);
+        return CardViewPool.key(getBaseLegacyCardRes(featureType), getLegacySecondaryCardRes(featureType));
+    }
+
+    private static View inflateCard(LayoutInflater from, ViewGroup viewGroup, boolean isTemplate, long layoutKey) {
+        int layoutRes = (int) (layoutKey >>> 32);
+        int secondaryCardRes = (int) layoutKey;
+        if (isTemplate) {
+            return inflateTemplateCard(from, viewGroup, layoutRes, secondaryCardRes);
+        }
+        return inflateLegacyCard(from, viewGroup, layoutRes, secondaryCardRes);
+    }
+
+    private static SmartspaceTarget getCardTarget(View card) {
+        return card instanceof BaseTemplateCard ? ((BaseTemplateCard) card).mTarget : ((BcSmartspaceCard) card).mTarget;
+    }
+
+    private static void setCard(ViewHolder viewHolder, View card) {
+        if (card instanceof BaseTemplateCard) {
+            viewHolder.mCard = (BaseTemplateCard) card;
+        } else {
+            viewHolder.mLegacyCard = (BcSmartspaceCard) card;
+        }
+    }
+
+    private void releaseCard(long layoutKey, View card) {
+        if (card instanceof BaseTemplateCard) {
+            this.mTemplateCardPool.release(layoutKey, (BaseTemplateCard) card);
+        } else {
+            this.mLegacyCardPool.release(layoutKey, (BcSmartspaceCard) card);
+        }
+    }
+
+    /**
+     * Only pages the user is not looking at yet are inflated asynchronously, so the visible card
+     * never shows a placeholder.
+     */
+    private boolean shouldInflateAsync(ViewGroup viewGroup, int position) {
+        return this.mEnableAsyncInflation.get() && viewGroup.getHandler() != null && viewGroup instanceof ViewPager && ((ViewPager) viewGroup).getCurrentItem() != position;
+    }
+
+    /**
+     * Adds a lightweight placeholder page for {@code viewHolder} and inflates the real card on
+     * the inflation thread, swapping it in once it is ready.
+     */
+    private void inflateAsync(final ViewGroup viewGroup, final ViewHolder viewHolder, final boolean isTemplate) {
+        final View placeholder = new View(viewGroup.getContext());
+        viewHolder.mPlaceholder = placeholder;
+        viewGroup.addView(placeholder);
+        this.mAsyncInflationCount++;
+        final LayoutInflater from = LayoutInflater.from(viewGroup.getContext());
+        final Handler mainHandler = viewGroup.getHandler();
+        final long layoutKey = viewHolder.mLayoutKey;
+        getInflationHandler().post(() -> {
+            Trace.beginSection("CardPagerAdapter.inflateAsync");
+            final View card = inflateCard(from, viewGroup, isTemplate, layoutKey);
+            Trace.endSection();
+            mainHandler.post(() -> {
+                if (viewHolder.mPlaceholder != placeholder) {
+                    // The page was destroyed while inflating, keep the card for later.
+                    releaseCard(layoutKey, card);
+                    return;
                 }
-                LayoutInflater from = LayoutInflater.from(viewGroup.getContext());
-                BaseTemplateCard baseTemplateCard2 = (BaseTemplateCard) from.inflate(i2, viewGroup, false);
-                if (templateData != null && (secondaryCardRes = BcSmartspaceTemplateDataUtils.getSecondaryCardRes(templateData.getTemplateType())) != 0) {
-                    BcSmartspaceCardSecondary bcSmartspaceCardSecondary = (BcSmartspaceCardSecondary) from.inflate(secondaryCardRes, (ViewGroup) baseTemplateCard2, false);
-                    if (bcSmartspaceCardSecondary != null) {
-                        Log.i("SsCardPagerAdapter", "Secondary card is found");
-                    }
-                    ViewGroup viewGroup2 = baseTemplateCard2.mSecondaryCardPane;
-                    if (viewGroup2 != null) {
-                        baseTemplateCard2.mSecondaryCard = bcSmartspaceCardSecondary;
-                        BcSmartspaceTemplateDataUtils.updateVisibility(viewGroup2, 8);
-                        baseTemplateCard2.mSecondaryCardPane.removeAllViews();
-                        if (bcSmartspaceCardSecondary != null) {
-                            ConstraintLayout.LayoutParams layoutParams = new ConstraintLayout.LayoutParams(-2, baseTemplateCard2.getResources().getDimensionPixelSize(R.dimen.enhanced_smartspace_card_height));
-                            layoutParams.setMarginStart(baseTemplateCard2.getResources().getDimensionPixelSize(R.dimen.enhanced_smartspace_secondary_card_start_margin));
-                            layoutParams.startToStart = 0;
-                            layoutParams.topToTop = 0;
-                            layoutParams.bottomToBottom = 0;
-                            baseTemplateCard2.mSecondaryCardPane.addView(bcSmartspaceCardSecondary, layoutParams);
-                        }
-                    }
+                viewGroup.removeView(placeholder);
+                viewHolder.mPlaceholder = null;
+                setCard(viewHolder, card);
+                viewGroup.addView(card);
+                onBindViewHolder(viewHolder);
+            });
+        });
+    }
+
+    /**
+     * Inflates the card for the target at {@code position} into the pool ahead of time if there
+     * is no recycled card for it yet.
+     */
+    public void prefetch(final ViewGroup viewGroup, int position) {
+        final SmartspaceTarget smartspaceTarget = getTargetAtPosition(position);
+        final Handler mainHandler = viewGroup.getHandler();
+        if (smartspaceTarget == null || mainHandler == null || this.mViewHolders.get(position) != null || !this.mEnableCardRecycling.get() || this.mEnableReducedCardRecycling.get() || !this.mEnableAsyncInflation.get()) {
+            return;
+        }
+        final boolean isTemplate = smartspaceTarget.getTemplateData() != null;
+        final long layoutKey = getLayoutKey(smartspaceTarget);
+        CardViewPool<? extends View> pool = isTemplate ? this.mTemplateCardPool : this.mLegacyCardPool;
+        if (pool.count(layoutKey) > 0 || pool.isFull(layoutKey)) {
+            return;
+        }
+        pool.recordInflation(getFeatureType(smartspaceTarget));
+        this.mPrefetchCount++;
+        final LayoutInflater from = LayoutInflater.from(viewGroup.getContext());
+        getInflationHandler().post(() -> {
+            Trace.beginSection("CardPagerAdapter.prefetch");
+            final View card = inflateCard(from, viewGroup, isTemplate, layoutKey);
+            Trace.endSection();
+            mainHandler.post(() -> releaseCard(layoutKey, card));
+        });
+    }
+
+    public static int getTemplateCardRes(BaseTemplateData templateData) {
+        BaseTemplateData.SubItemInfo subItemInfo = templateData.getPrimaryItem();
+        if (subItemInfo != null && (!SmartspaceUtils.isEmpty(subItemInfo.getText()) || subItemInfo.getIcon() != null)) {
+            return R.layout.smartspace_base_template_card;
+        }
+        return R.layout.smartspace_base_template_card_with_date;
+    }
+
+    public static BaseTemplateCard inflateTemplateCard(LayoutInflater from, ViewGroup viewGroup, int layoutRes, int secondaryCardRes) {
+        BaseTemplateCard baseTemplateCard = (BaseTemplateCard) from.inflate(layoutRes, viewGroup, false);
+        if (secondaryCardRes != 0) {
+            BcSmartspaceCardSecondary bcSmartspaceCardSecondary = (BcSmartspaceCardSecondary) from.inflate(secondaryCardRes, (ViewGroup) baseTemplateCard, false);
+            if (bcSmartspaceCardSecondary != null) {
+                Log.i("SsCardPagerAdapter", "Secondary card is found");
+            }
+            ViewGroup viewGroup2 = baseTemplateCard.mSecondaryCardPane;
+            if (viewGroup2 != null) {
+                baseTemplateCard.mSecondaryCard = bcSmartspaceCardSecondary;
+                BcSmartspaceTemplateDataUtils.updateVisibility(viewGroup2, 8);
+                baseTemplateCard.mSecondaryCardPane.removeAllViews();
+                if (bcSmartspaceCardSecondary != null) {
+                    baseTemplateCard.mSecondaryCardPane.addView(bcSmartspaceCardSecondary, createSecondaryCardLayoutParams(baseTemplateCard));
                 }
-                baseTemplateCard = baseTemplateCard2;
             }
-            viewHolder = new ViewHolder(i, null, smartspaceTarget, baseTemplateCard);
-            viewGroup.addView(baseTemplateCard);
-        } else {
-            if (this.mEnableCardRecycling.get()) {
-                bcSmartspaceCard = (BcSmartspaceCard) this.mRecycledLegacyCards.removeReturnOld(getFeatureType(smartspaceTarget));
-            } else {
-                bcSmartspaceCard = null;
-            }
-            if (bcSmartspaceCard == null || (this.mEnableReducedCardRecycling.get() && !useRecycledViewForNewTarget(smartspaceTarget, bcSmartspaceCard.mTarget))) {
-                int featureType = getFeatureType(smartspaceTarget);
-                LayoutInflater from2 = LayoutInflater.from(viewGroup.getContext());
-                BcSmartspaceCard bcSmartspaceCard2 = (BcSmartspaceCard) from2.inflate(getBaseLegacyCardRes(featureType), viewGroup, false);
-                int legacySecondaryCardRes = getLegacySecondaryCardRes(featureType);
-                if (legacySecondaryCardRes != 0) {
-                    BcSmartspaceCardSecondary bcSmartspaceCardSecondary2 = (BcSmartspaceCardSecondary) from2.inflate(legacySecondaryCardRes, (ViewGroup) bcSmartspaceCard2, false);
-                    ViewGroup viewGroup3 = bcSmartspaceCard2.mSecondaryCardGroup;
-                    if (viewGroup3 != null) {
-                        bcSmartspaceCard2.mSecondaryCard = bcSmartspaceCardSecondary2;
-                        BcSmartspaceTemplateDataUtils.updateVisibility(viewGroup3, 8);
-                        bcSmartspaceCard2.mSecondaryCardGroup.removeAllViews();
-                        if (bcSmartspaceCardSecondary2 != null) {
-                            ConstraintLayout.LayoutParams layoutParams2 = new ConstraintLayout.LayoutParams(-2, bcSmartspaceCard2.getResources().getDimensionPixelSize(R.dimen.enhanced_smartspace_card_height));
-                            layoutParams2.setMarginStart(bcSmartspaceCard2.getResources().getDimensionPixelSize(R.dimen.enhanced_smartspace_secondary_card_start_margin));
-                            layoutParams2.startToStart = 0;
-                            layoutParams2.topToTop = 0;
-                            layoutParams2.bottomToBottom = 0;
-                            bcSmartspaceCard2.mSecondaryCardGroup.addView(bcSmartspaceCardSecondary2, layoutParams2);
-                        }
-                    }
+        }
+        return baseTemplateCard;
+    }
+
+    public static BcSmartspaceCard inflateLegacyCard(LayoutInflater from, ViewGroup viewGroup, int layoutRes, int legacySecondaryCardRes) {
+        BcSmartspaceCard bcSmartspaceCard = (BcSmartspaceCard) from.inflate(layoutRes, viewGroup, false);
+        if (legacySecondaryCardRes != 0) {
+            BcSmartspaceCardSecondary bcSmartspaceCardSecondary = (BcSmartspaceCardSecondary) from.inflate(legacySecondaryCardRes, (ViewGroup) bcSmartspaceCard, false);
+            ViewGroup viewGroup2 = bcSmartspaceCard.mSecondaryCardGroup;
+            if (viewGroup2 != null) {
+                bcSmartspaceCard.mSecondaryCard = bcSmartspaceCardSecondary;
+                BcSmartspaceTemplateDataUtils.updateVisibility(viewGroup2, 8);
+                bcSmartspaceCard.mSecondaryCardGroup.removeAllViews();
+                if (bcSmartspaceCardSecondary != null) {
+                    bcSmartspaceCard.mSecondaryCardGroup.addView(bcSmartspaceCardSecondary, createSecondaryCardLayoutParams(bcSmartspaceCard));
                 }
-                bcSmartspaceCard = bcSmartspaceCard2;
             }
-            viewHolder = new ViewHolder(i, bcSmartspaceCard, smartspaceTarget, null);
-            viewGroup.addView(bcSmartspaceCard);
         }
-        onBindViewHolder(viewHolder);
-        this.mViewHolders.put(i, viewHolder);
-        return viewHolder;
+        return bcSmartspaceCard;
+    }
+
+    private static ConstraintLayout.LayoutParams createSecondaryCardLayoutParams(View card) {
+        ConstraintLayout.LayoutParams layoutParams = new ConstraintLayout.LayoutParams(-2, card.getResources().getDimensionPixelSize(R.dimen.enhanced_smartspace_card_height));
+        layoutParams.setMarginStart(card.getResources().getDimensionPixelSize(R.dimen.enhanced_smartspace_secondary_card_start_margin));
+        layoutParams.startToStart = 0;
+        layoutParams.topToTop = 0;
+        layoutParams.bottomToBottom = 0;
+        return layoutParams;
+    }
+
+    /**
+     * Inflates the common template card layouts on a background thread and parks them in the
+     * pool, so the first cards shown do not have to be inflated while the user swipes.
+     */
+    public void prewarmTemplateCards(final ViewGroup viewGroup) {
+        // Reduced recycling only reuses a card that already showed the same target, which a
+        // pre-inflated card never has.
+        if (!this.mEnableCardRecycling.get() || this.mEnableReducedCardRecycling.get()) {
+            return;
+        }
+        final LayoutInflater from = LayoutInflater.from(viewGroup.getContext());
+        final Handler mainHandler = viewGroup.getHandler();
+        if (mainHandler == null) {
+            return;
+        }
+        for (final int[] layouts : PREWARM_TEMPLATE_LAYOUTS) {
+            final long layoutKey = CardViewPool.key(layouts[0], layouts[1]);
+            if (this.mTemplateCardPool.isFull(layoutKey)) {
+                continue;
+            }
+            getInflationHandler().post(() -> {
+                final BaseTemplateCard baseTemplateCard = inflateTemplateCard(from, viewGroup, layouts[0], layouts[1]);
+                mainHandler.post(() -> this.mTemplateCardPool.release(layoutKey, baseTemplateCard));
+            });
+        }
+    }
+
+    private static synchronized Handler getInflationHandler() {
+        if (sInflationHandler == null) {
+            HandlerThread handlerThread = new HandlerThread("SmartspaceCardInflater", Process.THREAD_PRIORITY_BACKGROUND);
+            handlerThread.start();
+            sInflationHandler = new Handler(handlerThread.getLooper());
+        }
+        return sInflationHandler;
+    }
+
+    public void onTrimMemory(int level) {
+        this.mTemplateCardPool.onTrimMemory(level);
+        this.mLegacyCardPool.onTrimMemory(level);
+    }
+
+    public String getRecyclingStats() {
+        return "template cards: " + this.mTemplateCardPool.getStats() + "; legacy cards: " + this.mLegacyCardPool.getStats() + "; async inflations=" + this.mAsyncInflationCount + " prefetches=" + this.mPrefetchCount + " logging infos built=" + this.mLoggingInfoBuildCount;
     }
 
     public boolean isViewFromObject(View view, Object obj) {
         ViewHolder viewHolder = (ViewHolder) obj;
-        return view == viewHolder.mLegacyCard || view == viewHolder.mCard;
+        return view == viewHolder.mLegacyCard || view == viewHolder.mCard || (view != null && view == viewHolder.mPlaceholder);
     }
 
     public void onBindViewHolder(ViewHolder viewHolder) {
-        BcSmartspaceSubcardLoggingInfo createSubcardLoggingInfo;
+        if (viewHolder.mPlaceholder != null) {
+            // Bound once the asynchronously inflated card is swapped in.
+            return;
+        }
         BcSmartspaceDataPlugin.SmartspaceEventNotifier smartspaceEventNotifier;
         TapAction tapAction;
         BcSmartspaceCardLoggingInfo bcSmartspaceCardLoggingInfo;
@@ -328,22 +551,9 @@ public class CardPagerAdapter extends PagerAdapter {
         TapAction tapAction2;
         int i8;
         SmartspaceTarget smartspaceTarget = this.mSmartspaceTargets.get(viewHolder.mPosition);
-        BcSmartspaceCardLoggingInfo.Builder builder = new BcSmartspaceCardLoggingInfo.Builder();
-        builder.mInstanceId = InstanceId.create(smartspaceTarget);
-        builder.mFeatureType = smartspaceTarget.getFeatureType();
-        builder.mDisplaySurface = BcSmartSpaceUtil.getLoggingDisplaySurface(this.mRoot.getContext().getPackageName(), this.mIsDreaming, this.mDozeAmount);
-        builder.mRank = viewHolder.mPosition;
-        builder.mCardinality = this.mSmartspaceTargets.size();
-        builder.mUid = BcSmartspaceCardLoggerUtil.getUid(this.mRoot.getContext().getPackageManager(), smartspaceTarget);
-        if (smartspaceTarget.getTemplateData() != null) {
-            createSubcardLoggingInfo = BcSmartspaceCardLoggerUtil.createSubcardLoggingInfo(smartspaceTarget.getTemplateData());
-        } else {
-            createSubcardLoggingInfo = BcSmartspaceCardLoggerUtil.createSubcardLoggingInfo(smartspaceTarget);
-        }
-        builder.mSubcardInfo = createSubcardLoggingInfo;
-        BcSmartspaceCardLoggingInfo bcSmartspaceCardLoggingInfo2 = new BcSmartspaceCardLoggingInfo(builder);
+        viewHolder.mCardinality = this.mSmartspaceTargets.size();
+        BcSmartspaceCardLoggingInfo bcSmartspaceCardLoggingInfo2 = getLoggingInfo(viewHolder, smartspaceTarget);
         if (smartspaceTarget.getTemplateData() != null) {
-            BcSmartspaceCardLoggerUtil.tryForcePrimaryFeatureType(bcSmartspaceCardLoggingInfo2);
             BaseTemplateCard baseTemplateCard = viewHolder.mCard;
             if (baseTemplateCard == null) {
                 Log.w("SsCardPagerAdapter", "No ui-template card view can be binded");
@@ -510,7 +720,6 @@ public class CardPagerAdapter extends PagerAdapter {
             baseTemplateCard.setDozeAmount(this.mDozeAmount);
             return;
         }
-        BcSmartspaceCardLoggerUtil.tryForcePrimaryFeatureTypeAndInjectWeatherSubcard(bcSmartspaceCardLoggingInfo2, smartspaceTarget);
         BcSmartspaceCard bcSmartspaceCard = viewHolder.mLegacyCard;
         if (bcSmartspaceCard == null) {
             Log.w("SsCardPagerAdapter", "No legacy card view can be binded");
@@ -693,6 +902,40 @@ public class CardPagerAdapter extends PagerAdapter {
         }
     }
 
+    /**
+     * Returns the logging info for {@code viewHolder}, reusing the one built for its last bind
+     * when neither the target nor its rank, cardinality and display surface changed.
+     */
+    private BcSmartspaceCardLoggingInfo getLoggingInfo(ViewHolder viewHolder, SmartspaceTarget smartspaceTarget) {
+        int displaySurface = BcSmartSpaceUtil.getLoggingDisplaySurface(this.mRoot.getContext().getPackageName(), this.mIsDreaming, this.mDozeAmount);
+        BcSmartspaceCardLoggingInfo loggingInfo = viewHolder.mLoggingInfo;
+        if (loggingInfo != null && viewHolder.mLoggingInfoTarget == smartspaceTarget && loggingInfo.mRank == viewHolder.mPosition && loggingInfo.mCardinality == this.mSmartspaceTargets.size() && loggingInfo.mDisplaySurface == displaySurface) {
+            return loggingInfo;
+        }
+        BcSmartspaceCardLoggingInfo.Builder builder = new BcSmartspaceCardLoggingInfo.Builder();
+        builder.mInstanceId = InstanceId.create(smartspaceTarget);
+        builder.mFeatureType = smartspaceTarget.getFeatureType();
+        builder.mDisplaySurface = displaySurface;
+        builder.mRank = viewHolder.mPosition;
+        builder.mCardinality = this.mSmartspaceTargets.size();
+        builder.mUid = BcSmartspaceCardLoggerUtil.getUid(this.mRoot.getContext().getPackageManager(), smartspaceTarget);
+        if (smartspaceTarget.getTemplateData() != null) {
+            builder.mSubcardInfo = BcSmartspaceCardLoggerUtil.createSubcardLoggingInfo(smartspaceTarget.getTemplateData());
+        } else {
+            builder.mSubcardInfo = BcSmartspaceCardLoggerUtil.createSubcardLoggingInfo(smartspaceTarget);
+        }
+        loggingInfo = new BcSmartspaceCardLoggingInfo(builder);
+        if (smartspaceTarget.getTemplateData() != null) {
+            BcSmartspaceCardLoggerUtil.tryForcePrimaryFeatureType(loggingInfo);
+        } else {
+            BcSmartspaceCardLoggerUtil.tryForcePrimaryFeatureTypeAndInjectWeatherSubcard(loggingInfo, smartspaceTarget);
+        }
+        viewHolder.mLoggingInfo = loggingInfo;
+        viewHolder.mLoggingInfoTarget = smartspaceTarget;
+        this.mLoggingInfoBuildCount++;
+        return loggingInfo;
+    }
+
     public void setDataProvider(BcSmartspaceDataPlugin plugin) {
         this.mDataProvider = plugin;
     }
@@ -754,6 +997,11 @@ public class CardPagerAdapter extends PagerAdapter {
     }
 
     public void updateTargetVisibility() {
+        updateTargetVisibility(false);
+    }
+
+    /** Picks the targets for the current doze state, always notifying if {@code forceNotify}. */
+    public void updateTargetVisibility(boolean forceNotify) {
         ArrayList<SmartspaceTarget> targets;
         ArrayList<SmartspaceTarget> targets2;
         if (Float.compare(this.mDozeAmount, 1.0f) == 0) {
@@ -772,7 +1020,7 @@ public class CardPagerAdapter extends PagerAdapter {
             targets = this.mLockscreenTargets;
         }
         this.mSmartspaceTargets = targets;
-        if (Float.compare(this.mLastDozeAmount, 0.0f) == 0 || Float.compare(this.mLastDozeAmount, 1.0f) == 0 || Float.compare(this.mDozeAmount, 0.0f) == 0) {
+        if (forceNotify || Float.compare(this.mLastDozeAmount, 0.0f) == 0 || Float.compare(this.mLastDozeAmount, 1.0f) == 0 || Float.compare(this.mDozeAmount, 0.0f) == 0) {
             notifyDataSetChanged();
         }
     }
@@ -800,9 +1048,15 @@ public class CardPagerAdapter extends PagerAdapter {
     }
 
     public static class ViewHolder {
-        public final BaseTemplateCard mCard;
-        public final BcSmartspaceCard mLegacyCard;
-        public final int mPosition;
+        public BaseTemplateCard mCard;
+        public BcSmartspaceCard mLegacyCard;
+        /** Page shown while the card is being inflated asynchronously. */
+        public View mPlaceholder;
+        public int mPosition;
+        public int mCardinality;
+        public long mLayoutKey;
+        public BcSmartspaceCardLoggingInfo mLoggingInfo;
+        public SmartspaceTarget mLoggingInfoTarget;
         public SmartspaceTarget mTarget;
 
         public ViewHolder(int position, BcSmartspaceCard legacyCard, SmartspaceTarget target, BaseTemplateCard card) {
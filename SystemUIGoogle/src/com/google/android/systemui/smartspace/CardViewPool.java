@@ -0,0 +1,121 @@
+package com.google.android.systemui.smartspace;
+
+import android.content.ComponentCallbacks2;
+import android.util.LongSparseArray;
+import android.util.SparseIntArray;
+import android.view.View;
+import java.util.ArrayList;
+import java.util.function.Predicate;
+
+/**
+ * Bounded pool of inflated Smartspace card views, keyed by the layouts a card was inflated from
+ * so that several cards of the same kind can be recycled at once. Must be used on the main
+ * thread.
+ */
+public final class CardViewPool<T extends View> {
+    private final LongSparseArray<ArrayList<T>> mPools = new LongSparseArray<>();
+    private final int mMaxPerKey;
+    private final int mMaxTotal;
+    private int mSize;
+
+    private final SparseIntArray mHits = new SparseIntArray();
+    private final SparseIntArray mInflations = new SparseIntArray();
+    private int mEvictions;
+
+    public CardViewPool(int maxPerKey, int maxTotal) {
+        this.mMaxPerKey = maxPerKey;
+        this.mMaxTotal = maxTotal;
+    }
+
+    public static long key(int layoutRes, int secondaryLayoutRes) {
+        return (((long) layoutRes) << 32) | (secondaryLayoutRes & 0xffffffffL);
+    }
+
+    /**
+     * Returns the most recently pooled view for {@code key} that {@code filter} accepts, or null if
+     * the caller has to inflate one. A null filter accepts any view.
+     */
+    public T acquire(long key, int featureType, Predicate<? super T> filter) {
+        ArrayList<T> pool = this.mPools.get(key);
+        if (pool == null) {
+            return null;
+        }
+        for (int i = pool.size() - 1; i >= 0; i--) {
+            T view = pool.get(i);
+            if (filter == null || filter.test(view)) {
+                pool.remove(i);
+                this.mSize--;
+                this.mHits.put(featureType, this.mHits.get(featureType) + 1);
+                return view;
+            }
+        }
+        return null;
+    }
+
+    /** Returns {@code view} to the pool, dropping it if the pool is full. */
+    public boolean release(long key, T view) {
+        ArrayList<T> pool = this.mPools.get(key);
+        if (pool == null) {
+            pool = new ArrayList<>(this.mMaxPerKey);
+            this.mPools.put(key, pool);
+        }
+        if (pool.size() >= this.mMaxPerKey || this.mSize >= this.mMaxTotal || pool.contains(view)) {
+            this.mEvictions++;
+            return false;
+        }
+        pool.add(view);
+        this.mSize++;
+        return true;
+    }
+
+    public int count(long key) {
+        ArrayList<T> pool = this.mPools.get(key);
+        return pool != null ? pool.size() : 0;
+    }
+
+    public boolean isFull(long key) {
+        ArrayList<T> pool = this.mPools.get(key);
+        return this.mSize >= this.mMaxTotal || (pool != null && pool.size() >= this.mMaxPerKey);
+    }
+
+    public void recordInflation(int featureType) {
+        this.mInflations.put(featureType, this.mInflations.get(featureType) + 1);
+    }
+
+    /** Drops pooled views according to a {@link ComponentCallbacks2} trim level. */
+    public void onTrimMemory(int level) {
+        int keep = level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ? 0 : 1;
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return;
+        }
+        for (int i = 0; i < this.mPools.size(); i++) {
+            ArrayList<T> pool = this.mPools.valueAt(i);
+            while (pool.size() > keep) {
+                pool.remove(pool.size() - 1);
+                this.mSize--;
+                this.mEvictions++;
+            }
+        }
+    }
+
+    public int size() {
+        return this.mSize;
+    }
+
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("pooled=").append(this.mSize).append(" evictions=").append(this.mEvictions);
+        SparseIntArray featureTypes = this.mInflations.clone();
+        for (int i = 0; i < this.mHits.size(); i++) {
+            featureTypes.put(this.mHits.keyAt(i), 0);
+        }
+        for (int i = 0; i < featureTypes.size(); i++) {
+            int featureType = featureTypes.keyAt(i);
+            int hits = this.mHits.get(featureType);
+            int inflations = this.mInflations.get(featureType);
+            sb.append(" [type=").append(featureType).append(" inflations=").append(inflations)
+                    .append(" hitRate=").append(hits * 100 / (hits + inflations)).append("%]");
+        }
+        return sb.toString();
+    }
+}
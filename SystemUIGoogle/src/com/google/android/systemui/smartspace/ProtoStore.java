@@ -1,56 +1,194 @@
 package com.google.android.systemui.smartspace;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.AtomicFile;
 import android.util.Log;
+import android.util.SparseArray;
 import com.android.systemui.smartspace.nano.SmartspaceProto;
 import com.google.protobuf.nano.MessageNano;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 
+/**
+ * Write-behind store for Smartspace cards, backed by a single {@link SmartSpaceSnapshot} that
+ * holds every user's cards. Updates arriving within {@link #WRITE_DELAY_MS} are coalesced into a
+ * single atomic snapshot write.
+ */
 public class ProtoStore {
+    private static final String TAG = "ProtoStore";
+    static final long WRITE_DELAY_MS = 250;
+    private static final long MAX_RETRY_DELAY_MS = 60000;
+
     public final Context mContext;
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+    private final SmartSpaceSnapshot mSnapshot;
+    /** Pending serialized cards by snapshot key; a {@code null} value means delete. */
+    private final SparseArray<byte[]> mPending = new SparseArray<>();
+    /** Legacy files whose cards are in {@link #mPending}; deleted once a snapshot write succeeds. */
+    private final ArrayList<AtomicFile> mMigratedFiles = new ArrayList<>();
+    private boolean mFlushScheduled;
+    private int mConsecutiveWriteFailures;
+    private boolean mOpened;
+
+    private int mStoreRequests;
+    private int mWrites;
+    private int mWriteFailures;
+    private int mLoadFailures;
+    private int mMigratedCards;
+    private long mTotalWriteNanos;
+    private long mMaxWriteNanos;
+    private long mOpenNanos;
+
+    private final Runnable mFlushRunnable = this::flush;
 
-    public ProtoStore(Context context) {
+    public ProtoStore(Context context, Handler handler) {
         this.mContext = context.getApplicationContext();
+        this.mHandler = handler;
+        this.mSnapshot = new SmartSpaceSnapshot(
+                this.mContext.getFileStreamPath(SmartSpaceSnapshot.FILE_NAME));
     }
 
-    public void store(SmartspaceProto.CardWrapper cardWrapper, String str) {
+    /**
+     * Maps the snapshot file, migrating the legacy per-card files of {@code userId} if there is
+     * no snapshot yet. Must be called on the store's handler before cards can be loaded.
+     */
+    public void open(int userId) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        synchronized (mLock) {
+            if (!mSnapshot.open()) {
+                migrateLegacy(userId, true);
+                migrateLegacy(userId, false);
+            }
+            mOpened = true;
+            mOpenNanos = SystemClock.elapsedRealtimeNanos() - start;
+        }
+    }
+
+    private void migrateLegacy(int userId, boolean isPrimary) {
+        AtomicFile legacy = new AtomicFile(
+                this.mContext.getFileStreamPath("smartspace_" + userId + "_" + isPrimary));
         try {
-            FileOutputStream openFileOutput = this.mContext.openFileOutput(str, 0);
-            if (cardWrapper != null) {
-                openFileOutput.write(MessageNano.toByteArray(cardWrapper));
-            } else {
-                Log.d("ProtoStore", "deleting " + str);
-                this.mContext.deleteFile(str);
+            mPending.put(SmartSpaceSnapshot.key(userId, isPrimary), legacy.readFully());
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException ex) {
+            // Kept, so a later open can try again.
+            Log.e(TAG, "unable to migrate " + legacy.getBaseFile(), ex);
+            return;
+        }
+        mMigratedCards++;
+        mMigratedFiles.add(legacy);
+        scheduleFlushLocked();
+    }
+
+    public void store(SmartspaceProto.CardWrapper cardWrapper, int userId, boolean isPrimary) {
+        byte[] bytes = cardWrapper != null ? MessageNano.toByteArray(cardWrapper) : null;
+        synchronized (mLock) {
+            mStoreRequests++;
+            mPending.put(SmartSpaceSnapshot.key(userId, isPrimary), bytes);
+            scheduleFlushLocked();
+        }
+    }
+
+    private void scheduleFlushLocked() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            // Back off while writes keep failing.
+            long delayMs = Math.min(WRITE_DELAY_MS << Math.min(mConsecutiveWriteFailures, 8), MAX_RETRY_DELAY_MS);
+            mHandler.postDelayed(mFlushRunnable, delayMs);
+        }
+    }
+
+    /** Writes out all pending updates immediately. */
+    public void flush() {
+        synchronized (mLock) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+            if (mPending.size() == 0) {
+                return;
             }
-            if (openFileOutput != null) {
-                openFileOutput.close();
+            SparseArray<byte[]> entries = mSnapshot.readAll();
+            for (int i = 0; i < mPending.size(); i++) {
+                byte[] bytes = mPending.valueAt(i);
+                if (bytes != null) {
+                    entries.put(mPending.keyAt(i), bytes);
+                } else {
+                    entries.remove(mPending.keyAt(i));
+                }
             }
-        } catch (FileNotFoundException e) {
-            Log.d("ProtoStore", "file does not exist");
-        } catch (Exception ex) {
-            Log.e("ProtoStore", "unable to write file", ex);
+            long start = SystemClock.elapsedRealtimeNanos();
+            try {
+                mSnapshot.write(entries);
+            } catch (IOException ex) {
+                // Keep the updates, and any legacy files they came from, for the retry.
+                Log.e(TAG, "unable to write snapshot", ex);
+                mWriteFailures++;
+                mConsecutiveWriteFailures++;
+                scheduleFlushLocked();
+                return;
+            }
+            mConsecutiveWriteFailures = 0;
+            mPending.clear();
+            for (AtomicFile legacy : mMigratedFiles) {
+                legacy.delete();
+            }
+            mMigratedFiles.clear();
+            long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+            mWrites++;
+            mTotalWriteNanos += elapsed;
+            mMaxWriteNanos = Math.max(mMaxWriteNanos, elapsed);
         }
     }
 
-    public <T extends MessageNano> boolean load(String str, T t) {
-        File fileStreamPath = this.mContext.getFileStreamPath(str);
+    /** Looks up a card in the snapshot index and decodes it into {@code t}. */
+    public <T extends MessageNano> boolean load(int userId, boolean isPrimary, T t) {
+        int key = SmartSpaceSnapshot.key(userId, isPrimary);
+        byte[] bytes;
+        synchronized (mLock) {
+            int index = mPending.indexOfKey(key);
+            if (index >= 0) {
+                bytes = mPending.valueAt(index);
+            } else if (mOpened) {
+                bytes = mSnapshot.get(key);
+            } else {
+                bytes = null;
+            }
+        }
+        if (bytes == null) {
+            if (SmartSpaceController.DEBUG) {
+                Log.d(TAG, "no cached data");
+            }
+            return false;
+        }
         try {
-            FileInputStream fileInputStream = new FileInputStream(fileStreamPath);
-            int length = (int) fileStreamPath.length();
-            byte[] bArr = new byte[length];
-            fileInputStream.read(bArr, 0, length);
-            MessageNano.mergeFrom(t, bArr);
-            fileInputStream.close();
+            MessageNano.mergeFrom(t, bytes);
             return true;
-        } catch (FileNotFoundException e) {
-            Log.d("ProtoStore", "no cached data");
-            return false;
         } catch (Exception ex) {
-            Log.e("ProtoStore", "unable to load data", ex);
+            Log.e(TAG, "unable to parse data", ex);
+            synchronized (mLock) {
+                mLoadFailures++;
+            }
             return false;
         }
     }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println(TAG + ":");
+            pw.println("  snapshot v" + SmartSpaceSnapshot.VERSION + " entries: "
+                    + mSnapshot.size() + " open: " + (mOpenNanos / 1000) + "us"
+                    + " migrated: " + mMigratedCards);
+            pw.println("  store requests: " + mStoreRequests + " snapshot writes: " + mWrites);
+            pw.println("  write failures: " + mWriteFailures + " load failures: " + mLoadFailures);
+            pw.println("  pending: " + mPending.size());
+            long avgMicros = mWrites > 0 ? mTotalWriteNanos / mWrites / 1000 : 0;
+            pw.println("  write latency avg: " + avgMicros + "us max: "
+                    + (mMaxWriteNanos / 1000) + "us");
+        }
+    }
 }
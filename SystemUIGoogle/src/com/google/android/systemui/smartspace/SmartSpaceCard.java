@@ -20,8 +20,8 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import com.android.systemui.R;
@@ -36,6 +36,13 @@ public final class SmartSpaceCard {
     public final Intent mIntent;
     public final long mPublishTime;
     public int mRequestCode;
+    private final ArrayMap<SmartspaceProto.SmartspaceUpdate.SmartspaceCard.Message.FormattedText, TextTemplate> mTemplates = new ArrayMap<>();
+    private final int[] mDurationMinutes = new int[2];
+    private final String[] mDurationText = new String[2];
+    private String mNowText;
+    private String mPillTime;
+    private String mPillName;
+    private String mPillText;
 
     public SmartSpaceCard(Context context, SmartspaceProto.SmartspaceUpdate.SmartspaceCard smartspaceCard, Intent intent, Bitmap bitmap, long j) {
         this.mContext = context.getApplicationContext();
@@ -91,9 +98,13 @@ public final class SmartSpaceCard {
         return substitute(false);
     }
 
-    public static SmartSpaceCard fromWrapper(Context context, SmartspaceProto.CardWrapper cardWrapper, boolean z) {
+    public static SmartSpaceCard fromWrapper(Context context, SmartspaceProto.CardWrapper cardWrapper, boolean z, SmartSpaceIconCache iconCache) {
+        int dimensionPixelSize = context.getResources().getDimensionPixelSize(R.dimen.header_icon_size);
+        return fromWrapper(context, cardWrapper, z, iconCache.get(cardWrapper.icon, dimensionPixelSize));
+    }
+
+    public static SmartSpaceCard fromWrapper(Context context, SmartspaceProto.CardWrapper cardWrapper, boolean z, Bitmap cardIcon) {
         Intent intent;
-        Bitmap cardIcon;
         try {
             SmartspaceProto.SmartspaceUpdate.SmartspaceCard.TapAction tapAction = cardWrapper.card.tapAction;
             if (tapAction != null && !TextUtils.isEmpty(tapAction.intent)) {
@@ -101,16 +112,6 @@ public final class SmartSpaceCard {
             } else {
                 intent = null;
             }
-            byte[] cardIconFromWrapper = cardWrapper.icon;
-            if (cardIconFromWrapper != null) {
-                cardIcon = BitmapFactory.decodeByteArray(cardIconFromWrapper, 0, cardIconFromWrapper.length, null);
-            } else {
-                cardIcon = null;
-            }
-            int dimensionPixelSize = context.getResources().getDimensionPixelSize(R.dimen.header_icon_size);
-            if (cardIcon != null && cardIcon.getHeight() > dimensionPixelSize) {
-                cardIcon = Bitmap.createScaledBitmap(cardIcon, (dimensionPixelSize / cardIcon.getHeight()) * cardIcon.getWidth(), dimensionPixelSize, true);
-            }
             return new SmartSpaceCard(context, cardWrapper.card, intent, cardIcon, cardWrapper.publishTime);
         } catch (Exception e) {
             Log.e("SmartspaceCard", "from proto", e);
@@ -118,22 +119,34 @@ public final class SmartSpaceCard {
         }
     }
 
-    public String getDurationText(SmartspaceProto.SmartspaceUpdate.SmartspaceCard.Message.FormattedText.FormatParam formatParam) {
+    public synchronized String getDurationText(SmartspaceProto.SmartspaceUpdate.SmartspaceCard.Message.FormattedText.FormatParam formatParam) {
         long j;
+        int slot;
         if (formatParam.formatParamArgs == 2) {
             SmartspaceProto.SmartspaceUpdate.SmartspaceCard smartspaceCard = this.mCard;
             j = smartspaceCard.eventTimeMillis + smartspaceCard.eventDurationMillis;
+            slot = 1;
         } else {
             j = this.mCard.eventTimeMillis;
+            slot = 0;
         }
         int ceil = (int) Math.ceil(Math.abs(System.currentTimeMillis() - j) / 60000.0d);
+        // The text only changes once a minute, so reuse the last rendering for this slot.
+        if (this.mDurationText[slot] != null && this.mDurationMinutes[slot] == ceil) {
+            return this.mDurationText[slot];
+        }
+        String text;
         if (ceil >= 60) {
             int i = ceil / 60;
             int i2 = ceil % 60;
             String quantityString = this.mContext.getResources().getQuantityString(R.plurals.smartspace_hours, i, Integer.valueOf(i));
-            return i2 > 0 ? this.mContext.getString(R.string.smartspace_hours_mins, quantityString, this.mContext.getResources().getQuantityString(R.plurals.smartspace_minutes, i2, Integer.valueOf(i2))) : quantityString;
+            text = i2 > 0 ? this.mContext.getString(R.string.smartspace_hours_mins, quantityString, this.mContext.getResources().getQuantityString(R.plurals.smartspace_minutes, i2, Integer.valueOf(i2))) : quantityString;
+        } else {
+            text = this.mContext.getResources().getQuantityString(R.plurals.smartspace_minutes, ceil, Integer.valueOf(ceil));
         }
-        return this.mContext.getResources().getQuantityString(R.plurals.smartspace_minutes, ceil, Integer.valueOf(ceil));
+        this.mDurationMinutes[slot] = ceil;
+        this.mDurationText[slot] = text;
+        return text;
     }
 
     public long getExpiration() {
@@ -162,7 +175,7 @@ public final class SmartSpaceCard {
         return PendingIntent.getBroadcast(this.mContext, this.mRequestCode, intent, 0);
     }
 
-    public String getFormattedTitle() {
+    public synchronized String getFormattedTitle() {
         SmartspaceProto.SmartspaceUpdate.SmartspaceCard.Message.FormattedText formattedText;
         String str;
         SmartspaceProto.SmartspaceUpdate.SmartspaceCard.Message.FormattedText.FormatParam[] formatParamArr;
@@ -204,9 +217,17 @@ public final class SmartSpaceCard {
             if (message != smartspaceCard.duringEvent) {
                 return str;
             }
-            str3 = this.mContext.getString(R.string.smartspace_now);
+            if (this.mNowText == null) {
+                this.mNowText = this.mContext.getString(R.string.smartspace_now);
+            }
+            str3 = this.mNowText;
+        }
+        if (this.mPillText == null || this.mPillTime != str3 || this.mPillName != str2) {
+            this.mPillTime = str3;
+            this.mPillName = str2;
+            this.mPillText = this.mContext.getString(R.string.smartspace_pill_text_format, str3, str2);
         }
-        return this.mContext.getString(R.string.smartspace_pill_text_format, str3, str2);
+        return this.mPillText;
     }
 
     private boolean hasParams(SmartspaceProto.SmartspaceUpdate.SmartspaceCard.Message.FormattedText formattedText) {
@@ -230,9 +251,8 @@ public final class SmartSpaceCard {
         return smartspaceCard.duringEvent;
     }
 
-    public String substitute(boolean isTitle) {
+    public synchronized String substitute(boolean isTitle) {
         SmartspaceProto.SmartspaceUpdate.SmartspaceCard.Message.FormattedText formattedText;
-        String str;
         SmartspaceProto.SmartspaceUpdate.SmartspaceCard.Message message = getMessage();
         if (message != null) {
             if (isTitle) {
@@ -243,34 +263,74 @@ public final class SmartSpaceCard {
         } else {
             formattedText = null;
         }
-        if (formattedText == null || (str = formattedText.text) == null) {
+        if (formattedText == null || formattedText.text == null) {
             return "";
         }
-        SmartspaceProto.SmartspaceUpdate.SmartspaceCard.Message.FormattedText.FormatParam[] formatParamArr = formattedText.formatParam;
-        if (formatParamArr != null && formatParamArr.length > 0) {
-            SmartspaceProto.SmartspaceUpdate.SmartspaceCard.Message.FormattedText.FormatParam[] formatParamArr2 = formattedText.formatParam;
-            int length = formatParamArr.length;
-            String[] strArr = new String[length];
+        TextTemplate template = this.mTemplates.get(formattedText);
+        if (template == null) {
+            template = new TextTemplate(formattedText);
+            this.mTemplates.put(formattedText, template);
+        }
+        return template.render();
+    }
+
+    /**
+     * A {@link SmartspaceProto.SmartspaceUpdate.SmartspaceCard.Message.FormattedText} compiled
+     * into typed slots. The formatted string is only rebuilt when a slot value changes, which for
+     * duration slots happens at most once a minute.
+     */
+    private final class TextTemplate {
+        private static final int SLOT_EMPTY = 0;
+        private static final int SLOT_DURATION = 1;
+        private static final int SLOT_TEXT = 3;
+
+        private final String mFormat;
+        private final SmartspaceProto.SmartspaceUpdate.SmartspaceCard.Message.FormattedText.FormatParam[] mParams;
+        private final int[] mSlotTypes;
+        private final String[] mArgs;
+        private String mRendered;
+
+        TextTemplate(SmartspaceProto.SmartspaceUpdate.SmartspaceCard.Message.FormattedText formattedText) {
+            this.mFormat = formattedText.text;
+            SmartspaceProto.SmartspaceUpdate.SmartspaceCard.Message.FormattedText.FormatParam[] formatParamArr = formattedText.formatParam;
+            int length = formatParamArr != null ? formatParamArr.length : 0;
+            this.mParams = formatParamArr;
+            this.mSlotTypes = new int[length];
+            this.mArgs = new String[length];
             for (int i = 0; i < length; i++) {
-                SmartspaceProto.SmartspaceUpdate.SmartspaceCard.Message.FormattedText.FormatParam formatParam = formatParamArr[i];
-                int i2 = formatParam.formatParamArgs;
-                if (i2 != 1 && i2 != 2) {
-                    if (i2 != 3) {
-                        strArr[i] = "";
-                    } else {
-                        String str2 = formatParam.text;
-                        if (str2 == null) {
-                            str2 = "";
-                        }
-                        strArr[i] = str2;
-                    }
+                int i2 = formatParamArr[i].formatParamArgs;
+                if (i2 == 1 || i2 == 2) {
+                    this.mSlotTypes[i] = SLOT_DURATION;
+                } else if (i2 == 3) {
+                    this.mSlotTypes[i] = SLOT_TEXT;
+                    String str = formatParamArr[i].text;
+                    this.mArgs[i] = str != null ? str : "";
                 } else {
-                    strArr[i] = getDurationText(formatParam);
+                    this.mSlotTypes[i] = SLOT_EMPTY;
+                    this.mArgs[i] = "";
                 }
             }
-            return String.format(str, (Object[]) strArr);
+            if (length == 0) {
+                this.mRendered = this.mFormat;
+            }
+        }
+
+        String render() {
+            boolean changed = this.mRendered == null;
+            for (int i = 0; i < this.mSlotTypes.length; i++) {
+                if (this.mSlotTypes[i] == SLOT_DURATION) {
+                    String duration = getDurationText(this.mParams[i]);
+                    if (duration != this.mArgs[i]) {
+                        this.mArgs[i] = duration;
+                        changed = true;
+                    }
+                }
+            }
+            if (changed) {
+                this.mRendered = String.format(this.mFormat, (Object[]) this.mArgs);
+            }
+            return this.mRendered;
         }
-        return str;
     }
 
     @NonNull
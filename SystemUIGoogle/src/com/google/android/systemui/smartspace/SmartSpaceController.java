@@ -21,9 +21,12 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.graphics.Bitmap;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.util.KeyValueListParser;
@@ -32,12 +35,14 @@ import androidx.annotation.NonNull;
 import com.android.keyguard.KeyguardUpdateMonitor;
 import com.android.keyguard.KeyguardUpdateMonitorCallback;
 import com.android.systemui.Dumpable;
+import com.android.systemui.R;
 import com.android.systemui.broadcast.BroadcastSender;
 import com.android.systemui.dagger.SysUISingleton;
 import com.android.systemui.dagger.qualifiers.Background;
 import com.android.systemui.dump.DumpManager;
 import com.android.systemui.smartspace.nano.SmartspaceProto;
 import com.android.systemui.util.Assert;
+import com.google.android.systemui.smartspace.logging.BcSmartspaceCardLogger;
 
 import javax.inject.Inject;
 import java.io.PrintWriter;
@@ -59,7 +64,9 @@ public class SmartSpaceController implements Dumpable {
     public final SmartSpaceData mData;
     public boolean mHidePrivateData;
     public boolean mHideWorkData;
+    public volatile long mLastReloadNanos;
     public final ProtoStore mStore;
+    public final SmartSpaceIconCache mIconCache = new SmartSpaceIconCache();
     public final ArrayList<SmartSpaceUpdateListener> mListeners = new ArrayList<>();
     public final AlarmManager.OnAlarmListener mExpireAlarmAction = () -> {
         onExpire(false);
@@ -82,9 +89,9 @@ public class SmartSpaceController implements Dumpable {
     @Inject
     public SmartSpaceController(Context context, KeyguardUpdateMonitor keyguardUpdateMonitor, @Background Handler backgroundHandler, AlarmManager alarmManager, BroadcastSender broadcastSender, DumpManager dumpManager) {
         this.mContext = context;
-        this.mStore = new ProtoStore(context);
         new HandlerThread("smartspace-background").start();
         this.mBackgroundHandler = backgroundHandler;
+        this.mStore = new ProtoStore(context, backgroundHandler);
         this.mCurrentUserId = UserHandle.myUserId();
         this.mAlarmManager = alarmManager;
         this.mBroadcastSender = broadcastSender;
@@ -93,7 +100,11 @@ public class SmartSpaceController implements Dumpable {
             return;
         }
         keyguardUpdateMonitor.registerCallback(this.mKeyguardMonitorCallback);
-        reloadData();
+        final int userId = this.mCurrentUserId;
+        this.mBackgroundHandler.post(() -> {
+            this.mStore.open(userId);
+            loadDataInBackground(userId);
+        });
         onGsaChanged();
         context.registerReceiver(this.mBroadcastReceiver, GSAIntents.getGsaPackageFilter("android.intent.action.PACKAGE_ADDED", "android.intent.action.PACKAGE_CHANGED", "android.intent.action.PACKAGE_REMOVED", "android.intent.action.PACKAGE_DATA_CLEARED"), 2);
         IntentFilter intentFilter = new IntentFilter();
@@ -104,10 +115,10 @@ public class SmartSpaceController implements Dumpable {
         dumpManager.registerDumpable(SmartSpaceController.class.getName(), this);
     }
 
-    private SmartSpaceCard loadSmartSpaceData(boolean isCurrent) {
+    private SmartSpaceCard loadSmartSpaceData(int userId, boolean isCurrent) {
         SmartspaceProto.CardWrapper wrapper = new SmartspaceProto.CardWrapper();
-        if (this.mStore.load("smartspace_" + this.mCurrentUserId + "_" + isCurrent, wrapper)) {
-            return SmartSpaceCard.fromWrapper(this.mContext, wrapper, !isCurrent);
+        if (this.mStore.load(userId, isCurrent, wrapper)) {
+            return SmartSpaceCard.fromWrapper(this.mContext, wrapper, !isCurrent, this.mIconCache);
         }
         return null;
     }
@@ -136,20 +147,16 @@ public class SmartSpaceController implements Dumpable {
                 @Override
                 public final void run() {
                     final SmartspaceProto.CardWrapper wrapper = newCardInfo.toWrapper(mContext);
+                    final Bitmap icon = newCardInfo.shouldDiscard() ? null : mIconCache.get(wrapper.icon,
+                            mContext.getResources().getDimensionPixelSize(R.dimen.header_icon_size));
                     if (!mHidePrivateData) {
-                        ProtoStore protoStore = mStore;
-                        StringBuilder sb = new StringBuilder();
-                        sb.append("smartspace_");
-                        sb.append(mCurrentUserId);
-                        sb.append("_");
-                        sb.append(newCardInfo.isPrimary());
-                        protoStore.store(wrapper, sb.toString());
+                        mStore.store(wrapper, mCurrentUserId, newCardInfo.isPrimary());
                     }
                     mUiHandler.post(new Runnable() {
                         @Override
                         public final void run() {
                             SmartSpaceCard smartSpaceCard = newCardInfo.shouldDiscard() ? null :
-                                SmartSpaceCard.fromWrapper(mContext, wrapper, newCardInfo.isPrimary());
+                                SmartSpaceCard.fromWrapper(mContext, wrapper, newCardInfo.isPrimary(), icon);
                             if (newCardInfo.isPrimary()) {
                                 mData.mCurrentCard = smartSpaceCard;
                             } else {
@@ -166,8 +173,8 @@ public class SmartSpaceController implements Dumpable {
     }
 
     private void clearStore() {
-        this.mStore.store(null, "smartspace_" + this.mCurrentUserId + "_true");
-        this.mStore.store(null, "smartspace_" + this.mCurrentUserId + "_false");
+        this.mStore.store(null, this.mCurrentUserId, true);
+        this.mStore.store(null, this.mCurrentUserId, false);
     }
 
     private void update() {
@@ -239,9 +246,25 @@ public class SmartSpaceController implements Dumpable {
     }
 
     public void reloadData() {
-        this.mData.mCurrentCard = loadSmartSpaceData(true);
-        this.mData.mWeatherCard = loadSmartSpaceData(false);
-        update();
+        final int userId = this.mCurrentUserId;
+        this.mBackgroundHandler.post(() -> loadDataInBackground(userId));
+    }
+
+    private void loadDataInBackground(int userId) {
+        Trace.beginSection("SmartSpaceController.reloadData");
+        long start = SystemClock.elapsedRealtimeNanos();
+        final SmartSpaceCard currentCard = loadSmartSpaceData(userId, true);
+        final SmartSpaceCard weatherCard = loadSmartSpaceData(userId, false);
+        this.mLastReloadNanos = SystemClock.elapsedRealtimeNanos() - start;
+        Trace.endSection();
+        this.mUiHandler.post(() -> {
+            if (userId != this.mCurrentUserId) {
+                return;
+            }
+            this.mData.mCurrentCard = currentCard;
+            this.mData.mWeatherCard = weatherCard;
+            update();
+        });
     }
 
     private boolean isSmartSpaceDisabledByExperiments() {
@@ -264,8 +287,12 @@ public class SmartSpaceController implements Dumpable {
         pw.println("  weather " + this.mData.mWeatherCard);
         pw.println("  current " + this.mData.mCurrentCard);
         pw.println("serialized:");
-        pw.println("  weather " + loadSmartSpaceData(false));
-        pw.println("  current " + loadSmartSpaceData(true));
+        pw.println("  weather " + loadSmartSpaceData(this.mCurrentUserId, false));
+        pw.println("  current " + loadSmartSpaceData(this.mCurrentUserId, true));
+        this.mStore.dump(pw);
+        this.mIconCache.dump(pw);
+        BcSmartspaceCardLogger.dump(pw);
+        pw.println("last reload: " + (this.mLastReloadNanos / 1000) + "us");
         pw.println("disabled by experiment: " + isSmartSpaceDisabledByExperiments());
     }
 
@@ -297,6 +324,7 @@ public class SmartSpaceController implements Dumpable {
             if (intent.getAction().equals("android.intent.action.USER_SWITCHED")) {
                 SmartSpaceController.this.mCurrentUserId = intent.getIntExtra("android.intent.extra.user_handle", -1);
                 SmartSpaceController.this.mData.clear();
+                SmartSpaceController.this.reloadData();
                 SmartSpaceController.this.onExpire(true);
             }
             SmartSpaceController.this.onExpire(true);
@@ -0,0 +1,80 @@
+package com.google.android.systemui.smartspace;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * LRU cache of decoded and scaled Smartspace card icons, keyed by the content of
+ * {@code CardWrapper.icon} and the target height. Bounded by the bitmaps' allocation size.
+ */
+public class SmartSpaceIconCache {
+    private static final int MAX_BYTES = 2 * 1024 * 1024;
+
+    private final LruCache<Key, Bitmap> mCache = new LruCache<Key, Bitmap>(MAX_BYTES) {
+        @Override
+        protected int sizeOf(Key key, Bitmap bitmap) {
+            return bitmap.getAllocationByteCount();
+        }
+    };
+
+    /**
+     * Returns the decoded icon for {@code iconBytes} scaled down to {@code targetHeight}, decoding
+     * it on a miss. Decoding may be slow, so this should not be called on the main thread.
+     */
+    public Bitmap get(byte[] iconBytes, int targetHeight) {
+        if (iconBytes == null) {
+            return null;
+        }
+        Key key = new Key(iconBytes, targetHeight);
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        bitmap = BitmapFactory.decodeByteArray(iconBytes, 0, iconBytes.length, null);
+        if (bitmap == null) {
+            return null;
+        }
+        if (bitmap.getHeight() > targetHeight) {
+            bitmap = Bitmap.createScaledBitmap(bitmap,
+                    bitmap.getWidth() * targetHeight / bitmap.getHeight(), targetHeight, true);
+        }
+        mCache.put(key, bitmap);
+        return bitmap;
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("SmartSpaceIconCache: size=" + mCache.size() + "/" + mCache.maxSize()
+                + " hits=" + mCache.hitCount() + " misses=" + mCache.missCount()
+                + " evictions=" + mCache.evictionCount());
+    }
+
+    private static final class Key {
+        private final byte[] mBytes;
+        private final int mTargetHeight;
+        private final int mHash;
+
+        Key(byte[] bytes, int targetHeight) {
+            mBytes = bytes;
+            mTargetHeight = targetHeight;
+            mHash = 31 * Arrays.hashCode(bytes) + targetHeight;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mHash == other.mHash && mTargetHeight == other.mTargetHeight
+                    && Arrays.equals(mBytes, other.mBytes);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.google.android.systemui.smartspace;
+
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Single versioned file holding the serialized primary and weather cards of every user.
+ *
+ * <p>Layout: a header ({@code magic, version, count}), followed by {@code count} index entries
+ * ({@code key, offset, length}) and the raw {@code CardWrapper} payloads. The file is memory
+ * mapped on open and only the index is parsed, so looking up a user's card is a
+ * {@link SparseLongArray} lookup and the proto is only decoded when it is actually requested.
+ */
+final class SmartSpaceSnapshot {
+    private static final String TAG = "SmartSpaceSnapshot";
+    static final String FILE_NAME = "smartspace_snapshot";
+    private static final int MAGIC = 0x53534e50;
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int ENTRY_SIZE = 12;
+
+    private final AtomicFile mFile;
+    private ByteBuffer mBuffer;
+    /** Payload location by key, packed as {@code offset << 32 | length}. */
+    private final SparseLongArray mIndex = new SparseLongArray();
+
+    SmartSpaceSnapshot(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    static int key(int userId, boolean isPrimary) {
+        return (userId << 1) | (isPrimary ? 1 : 0);
+    }
+
+    /** Maps the snapshot and parses its index. Returns false if there is no usable snapshot. */
+    boolean open() {
+        mBuffer = null;
+        mIndex.clear();
+        ByteBuffer buffer;
+        try (FileInputStream in = mFile.openRead(); FileChannel channel = in.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException ex) {
+            Log.e(TAG, "unable to map snapshot", ex);
+            return false;
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int limit = buffer.limit();
+        if (limit < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            Log.w(TAG, "discarding corrupt snapshot");
+            return false;
+        }
+        if (buffer.getInt(4) != VERSION) {
+            Log.w(TAG, "discarding snapshot version " + buffer.getInt(4));
+            return false;
+        }
+        int count = buffer.getInt(8);
+        if (count < 0 || HEADER_SIZE + (long) count * ENTRY_SIZE > limit) {
+            Log.w(TAG, "discarding truncated snapshot");
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            int pos = HEADER_SIZE + i * ENTRY_SIZE;
+            int offset = buffer.getInt(pos + 4);
+            int length = buffer.getInt(pos + 8);
+            if (offset < 0 || length < 0 || (long) offset + length > limit) {
+                Log.w(TAG, "discarding truncated snapshot");
+                mIndex.clear();
+                return false;
+            }
+            mIndex.put(buffer.getInt(pos), ((long) offset << 32) | length);
+        }
+        mBuffer = buffer;
+        return true;
+    }
+
+    boolean contains(int key) {
+        return mIndex.indexOfKey(key) >= 0;
+    }
+
+    byte[] get(int key) {
+        int index = mIndex.indexOfKey(key);
+        if (index < 0 || mBuffer == null) {
+            return null;
+        }
+        long location = mIndex.valueAt(index);
+        ByteBuffer slice = mBuffer.duplicate();
+        slice.position((int) (location >>> 32));
+        byte[] bytes = new byte[(int) location];
+        slice.get(bytes);
+        return bytes;
+    }
+
+    SparseArray<byte[]> readAll() {
+        SparseArray<byte[]> entries = new SparseArray<>(mIndex.size());
+        for (int i = 0; i < mIndex.size(); i++) {
+            entries.put(mIndex.keyAt(i), get(mIndex.keyAt(i)));
+        }
+        return entries;
+    }
+
+    int size() {
+        return mIndex.size();
+    }
+
+    /** Atomically replaces the snapshot with {@code entries} and remaps it. */
+    void write(SparseArray<byte[]> entries) throws IOException {
+        int count = entries.size();
+        int size = HEADER_SIZE + count * ENTRY_SIZE;
+        for (int i = 0; i < count; i++) {
+            size += entries.valueAt(i).length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(count);
+        int offset = HEADER_SIZE + count * ENTRY_SIZE;
+        for (int i = 0; i < count; i++) {
+            int length = entries.valueAt(i).length;
+            buffer.putInt(entries.keyAt(i)).putInt(offset).putInt(length);
+            offset += length;
+        }
+        for (int i = 0; i < count; i++) {
+            buffer.put(entries.valueAt(i));
+        }
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(buffer.array());
+            mFile.finishWrite(out);
+        } catch (IOException ex) {
+            mFile.failWrite(out);
+            throw ex;
+        }
+        open();
+    }
+}
@@ -1,42 +1,74 @@
 package com.google.android.systemui.smartspace.logging;
 
-import android.os.Debug;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.text.TextUtils;
 import android.util.Log;
 import com.android.systemui.smartspace.nano.SmartspaceProto;
 import com.google.android.systemui.smartspace.EventEnum;
-import com.google.protobuf.nano.MessageNano;
-import java.util.ArrayList;
+import java.io.File;
+import java.io.PrintWriter;
 import java.util.List;
 
 public final class BcSmartspaceCardLogger {
     public static final String TAG = "StatsLog";
     public static final boolean IS_VERBOSE = Log.isLoggable(TAG, 2);
+    private static final String FILE_SINK_PROPERTY = "debug.sysui.smartspace_stats_file";
+
+    private static final BcSmartspaceEventPipeline sPipeline = new BcSmartspaceEventPipeline(createDefaultSink());
+
+    private static BcSmartspaceStatsSink createDefaultSink() {
+        String path = SystemProperties.get(FILE_SINK_PROPERTY);
+        if (!TextUtils.isEmpty(path)) {
+            return new BcSmartspaceFileSink(new File(path));
+        }
+        return IS_VERBOSE ? new BcSmartspaceLogcatSink() : null;
+    }
+
+    /** Replaces where logged events are written; {@code null} disables logging. */
+    public static void setSink(BcSmartspaceStatsSink sink) {
+        sPipeline.setSink(sink);
+    }
+
+    /** Whether logged events go anywhere; callers can skip building logging info if not. */
+    public static boolean isEnabled() {
+        return sPipeline.getSink() != null;
+    }
 
     public static void log(EventEnum eventEnum, BcSmartspaceCardLoggingInfo cardInfo) {
-        byte[] subcardList;
+        if (!isEnabled()) {
+            return;
+        }
+        SmartspaceProto.SmartspaceCardEvent event = new SmartspaceProto.SmartspaceCardEvent();
+        event.eventId = eventEnum.getId();
+        event.instanceId = cardInfo.mInstanceId;
+        event.cardTypeId = cardInfo.mFeatureType;
+        event.displaySurface = cardInfo.mDisplaySurface;
+        event.rank = cardInfo.mRank;
+        event.cardinality = cardInfo.mCardinality;
+        event.receivedLatencyMillis = cardInfo.mReceivedLatency;
+        event.uid = cardInfo.mUid;
+        event.timestampMillis = SystemClock.elapsedRealtime();
         BcSmartspaceSubcardLoggingInfo subcardInfo = cardInfo.mSubcardInfo;
         if (subcardInfo != null && subcardInfo.mSubcards != null && !subcardInfo.mSubcards.isEmpty()) {
             SmartspaceProto.SmartSpaceSubcards subcards = new SmartspaceProto.SmartSpaceSubcards();
             subcards.clickedSubcardIndex = subcardInfo.mClickedSubcardIndex;
             List<BcSmartspaceCardMetadataLoggingInfo> metadataLogging = subcardInfo.mSubcards;
-            ArrayList<SmartspaceProto.SmartSpaceCardMetadata> metadata = new ArrayList<>();
-            metadataLogging.forEach(metaDataLoggingList -> {
+            SmartspaceProto.SmartSpaceCardMetadata[] metadata = new SmartspaceProto.SmartSpaceCardMetadata[metadataLogging.size()];
+            for (int i = 0; i < metadata.length; i++) {
+                BcSmartspaceCardMetadataLoggingInfo metadataLoggingInfo = metadataLogging.get(i);
                 SmartspaceProto.SmartSpaceCardMetadata cardMetadata = new SmartspaceProto.SmartSpaceCardMetadata();
-                cardMetadata.instanceId = metaDataLoggingList.mInstanceId;
-                cardMetadata.cardTypeId = metaDataLoggingList.mCardTypeId;
-                metadata.add(cardMetadata);
-            });
-            subcards.subcards = (SmartspaceProto.SmartSpaceCardMetadata[]) metadata.toArray(new SmartspaceProto.SmartSpaceCardMetadata[0]);
-            subcardList = MessageNano.toByteArray(subcards);
-        } else {
-            subcardList = null;
+                cardMetadata.instanceId = metadataLoggingInfo.mInstanceId;
+                cardMetadata.cardTypeId = metadataLoggingInfo.mCardTypeId;
+                metadata[i] = cardMetadata;
+            }
+            subcards.subcards = metadata;
+            event.subcards = subcards;
         }
-        writeLog(eventEnum, cardInfo, subcardList);
+        sPipeline.offer(event);
     }
 
-    static void writeLog(EventEnum eventEnum, BcSmartspaceCardLoggingInfo cardInfo, byte[] subcards) {
-        if (IS_VERBOSE) {
-            Log.d(TAG, String.format("\nLogged Smartspace event(%s), info(%s), callers=%s", eventEnum, cardInfo.toString(), Debug.getCallers(5)));
-        }
+    public static void dump(PrintWriter pw) {
+        sPipeline.dump(pw);
     }
 }
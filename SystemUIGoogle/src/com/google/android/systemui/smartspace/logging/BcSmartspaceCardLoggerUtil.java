@@ -6,6 +6,7 @@ import android.app.smartspace.uitemplatedata.BaseTemplateData;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.text.TextUtils;
+import android.util.LruCache;
 import com.google.android.systemui.smartspace.InstanceId;
 import com.google.android.systemui.smartspace.logging.BcSmartspaceCardMetadataLoggingInfo;
 import com.google.android.systemui.smartspace.logging.BcSmartspaceSubcardLoggingInfo;
@@ -13,6 +14,12 @@ import java.util.ArrayList;
 import java.util.List;
 
 public final class BcSmartspaceCardLoggerUtil {
+    /**
+     * Package name to UID, so binding a card does not query the PackageManager every time. Only
+     * installed packages are cached, and entries are dropped when their package is added or removed.
+     */
+    private static final LruCache<String, Integer> sUidCache = new LruCache<>(32);
+
     public static BcSmartspaceSubcardLoggingInfo createSubcardLoggingInfo(SmartspaceTarget smartspaceTarget) {
         if (smartspaceTarget == null || smartspaceTarget.getBaseAction() == null || smartspaceTarget.getBaseAction().getExtras() == null || smartspaceTarget.getBaseAction().getExtras().isEmpty() || smartspaceTarget.getBaseAction().getExtras().getInt("subcardType", -1) == -1) {
             return null;
@@ -33,32 +40,33 @@ public final class BcSmartspaceCardLoggerUtil {
     }
 
     public static int getUid(PackageManager packageManager, SmartspaceTarget smartspaceTarget) {
-        int i = -1;
-        if (packageManager != null) {
-            i = -1;
-            if (smartspaceTarget != null) {
-                i = -1;
-                if (smartspaceTarget.getComponentName() != null) {
-                    i = -1;
-                    if (!TextUtils.isEmpty(smartspaceTarget.getComponentName().getPackageName())) {
-                        if ("package_name".equals(smartspaceTarget.getComponentName().getPackageName())) {
-                            i = -1;
-                        } else {
-                            try {
-                                ApplicationInfo applicationInfo = packageManager.getApplicationInfo(smartspaceTarget.getComponentName().getPackageName(), PackageManager.ApplicationInfoFlags.of(0L));
-                                i = -1;
-                                if (applicationInfo != null) {
-                                    i = applicationInfo.uid;
-                                }
-                            } catch (PackageManager.NameNotFoundException e) {
-                                i = -1;
-                            }
-                        }
-                    }
-                }
+        if (packageManager == null || smartspaceTarget == null || smartspaceTarget.getComponentName() == null) {
+            return -1;
+        }
+        String packageName = smartspaceTarget.getComponentName().getPackageName();
+        if (TextUtils.isEmpty(packageName) || "package_name".equals(packageName)) {
+            return -1;
+        }
+        Integer cachedUid = sUidCache.get(packageName);
+        if (cachedUid != null) {
+            return cachedUid;
+        }
+        try {
+            ApplicationInfo applicationInfo = packageManager.getApplicationInfo(packageName, PackageManager.ApplicationInfoFlags.of(0L));
+            if (applicationInfo == null) {
+                return -1;
             }
+            sUidCache.put(packageName, applicationInfo.uid);
+            return applicationInfo.uid;
+        } catch (PackageManager.NameNotFoundException e) {
+            return -1;
+        }
+    }
+
+    public static void invalidateUid(String packageName) {
+        if (packageName != null) {
+            sUidCache.remove(packageName);
         }
-        return i;
     }
 
     public static void createSubcardLoggingInfoHelper(ArrayList arrayList, BaseTemplateData.SubItemInfo subItemInfo) {
@@ -0,0 +1,124 @@
+package com.google.android.systemui.smartspace.logging;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import com.android.systemui.smartspace.nano.SmartspaceProto;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects Smartspace card events from any thread into a lock-free ring buffer and hands them to
+ * a {@link BcSmartspaceStatsSink} in batches on a dedicated background thread, so that logging
+ * never blocks the caller.
+ */
+public final class BcSmartspaceEventPipeline {
+    private static final String TAG = "BcSmartspaceEventPipeline";
+    private static final int CAPACITY = 256;
+    private static final int BATCH_SIZE = 32;
+    private static final long MAX_BATCH_DELAY_MS = 10000;
+
+    private final BcSmartspaceEventRingBuffer<SmartspaceProto.SmartspaceCardEvent> mBuffer = new BcSmartspaceEventRingBuffer<>(CAPACITY);
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private final AtomicInteger mDropped = new AtomicInteger();
+    private final Runnable mFlushRunnable = this::flush;
+    private volatile BcSmartspaceStatsSink mSink;
+    private Handler mHandler;
+
+    private final AtomicInteger mOfferedCount = new AtomicInteger();
+    private int mDroppedTotal;
+    private int mBatchCount;
+    private int mFlushedCount;
+    private int mSinkFailureCount;
+    private long mLastFlushMillis;
+
+    public BcSmartspaceEventPipeline(BcSmartspaceStatsSink sink) {
+        this.mSink = sink;
+    }
+
+    public BcSmartspaceStatsSink getSink() {
+        return this.mSink;
+    }
+
+    public void setSink(BcSmartspaceStatsSink sink) {
+        this.mSink = sink;
+    }
+
+    private synchronized Handler getHandler() {
+        if (this.mHandler == null) {
+            HandlerThread thread = new HandlerThread("SmartspaceStatsLogger", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            this.mHandler = new Handler(thread.getLooper());
+        }
+        return this.mHandler;
+    }
+
+    /** Queues {@code event}; never blocks. Events that do not fit are counted and dropped. */
+    public void offer(SmartspaceProto.SmartspaceCardEvent event) {
+        this.mOfferedCount.incrementAndGet();
+        if (!this.mBuffer.offer(event)) {
+            this.mDropped.incrementAndGet();
+        }
+        if (this.mBuffer.size() >= BATCH_SIZE) {
+            Handler handler = getHandler();
+            this.mFlushScheduled.set(true);
+            handler.removeCallbacks(this.mFlushRunnable);
+            handler.post(this.mFlushRunnable);
+        } else if (this.mFlushScheduled.compareAndSet(false, true)) {
+            getHandler().postDelayed(this.mFlushRunnable, MAX_BATCH_DELAY_MS);
+        }
+    }
+
+    private void flush() {
+        this.mFlushScheduled.set(false);
+        ArrayList<SmartspaceProto.SmartspaceCardEvent> events = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            SmartspaceProto.SmartspaceCardEvent event = this.mBuffer.poll();
+            if (event == null) {
+                break;
+            }
+            events.add(event);
+            if (events.size() == BATCH_SIZE) {
+                write(events);
+                events.clear();
+            }
+        }
+        if (!events.isEmpty() || this.mDropped.get() > 0) {
+            write(events);
+        }
+    }
+
+    private void write(ArrayList<SmartspaceProto.SmartspaceCardEvent> events) {
+        SmartspaceProto.SmartspaceCardEventBatch batch = new SmartspaceProto.SmartspaceCardEventBatch();
+        batch.events = events.toArray(new SmartspaceProto.SmartspaceCardEvent[0]);
+        batch.droppedEvents = this.mDropped.getAndSet(0);
+        this.mDroppedTotal += batch.droppedEvents;
+        this.mBatchCount++;
+        this.mFlushedCount += events.size();
+        this.mLastFlushMillis = SystemClock.elapsedRealtime();
+        BcSmartspaceStatsSink sink = this.mSink;
+        if (sink == null) {
+            return;
+        }
+        try {
+            sink.write(batch);
+        } catch (Exception e) {
+            this.mSinkFailureCount++;
+            Log.w(TAG, "Failed to write " + events.size() + " events to " + sink.getName(), e);
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        BcSmartspaceStatsSink sink = this.mSink;
+        pw.println("BcSmartspaceEventPipeline");
+        pw.println("  sink=" + (sink != null ? sink.getName() : "none"));
+        pw.println("  queued=" + this.mBuffer.size() + "/" + this.mBuffer.capacity());
+        pw.println("  offered=" + this.mOfferedCount.get() + " flushed=" + this.mFlushedCount + " batches=" + this.mBatchCount);
+        pw.println("  dropped=" + (this.mDroppedTotal + this.mDropped.get()) + " sinkFailures=" + this.mSinkFailureCount);
+        pw.println("  lastFlush=" + this.mLastFlushMillis);
+    }
+}
@@ -0,0 +1,63 @@
+package com.google.android.systemui.smartspace.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring buffer for many producers and a single consumer. {@link #offer} never
+ * blocks; when the buffer is full the element is rejected and the caller is expected to count
+ * the drop.
+ */
+public final class BcSmartspaceEventRingBuffer<E> {
+    private final AtomicReferenceArray<E> mSlots;
+    private final int mMask;
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    /** @param capacity must be a power of two */
+    public BcSmartspaceEventRingBuffer(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.mSlots = new AtomicReferenceArray<>(capacity);
+        this.mMask = capacity - 1;
+    }
+
+    public boolean offer(E e) {
+        while (true) {
+            long tail = this.mTail.get();
+            if (tail - this.mHead.get() > this.mMask) {
+                return false;
+            }
+            if (this.mTail.compareAndSet(tail, tail + 1)) {
+                this.mSlots.lazySet((int) (tail & this.mMask), e);
+                return true;
+            }
+        }
+    }
+
+    /** Must only be called from the consumer thread. */
+    public E poll() {
+        long head = this.mHead.get();
+        if (head >= this.mTail.get()) {
+            return null;
+        }
+        int index = (int) (head & this.mMask);
+        E e = this.mSlots.get(index);
+        if (e == null) {
+            // Claimed by a producer that has not published it yet.
+            return null;
+        }
+        this.mSlots.lazySet(index, null);
+        this.mHead.lazySet(head + 1);
+        return e;
+    }
+
+    public int size() {
+        return (int) Math.max(0, this.mTail.get() - this.mHead.get());
+    }
+
+    public int capacity() {
+        return this.mMask + 1;
+    }
+}
@@ -0,0 +1,36 @@
+package com.google.android.systemui.smartspace.logging;
+
+import com.android.systemui.smartspace.nano.SmartspaceProto;
+import com.google.protobuf.nano.CodedOutputByteBufferNano;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Appends length-delimited {@code SmartspaceCardEventBatch} protos to a file, for inspecting
+ * emitted events locally.
+ */
+public final class BcSmartspaceFileSink implements BcSmartspaceStatsSink {
+    private final File mFile;
+
+    public BcSmartspaceFileSink(File file) {
+        this.mFile = file;
+    }
+
+    @Override
+    public String getName() {
+        return "file:" + this.mFile;
+    }
+
+    @Override
+    public void write(SmartspaceProto.SmartspaceCardEventBatch batch) throws IOException {
+        int size = batch.getSerializedSize();
+        byte[] bytes = new byte[CodedOutputByteBufferNano.computeRawVarint32Size(size) + size];
+        CodedOutputByteBufferNano output = CodedOutputByteBufferNano.newInstance(bytes);
+        output.writeRawVarint32(size);
+        batch.writeTo(output);
+        try (FileOutputStream out = new FileOutputStream(this.mFile, true)) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.google.android.systemui.smartspace.logging;
+
+import android.util.Log;
+import com.android.systemui.smartspace.nano.SmartspaceProto;
+
+/** Prints every event of a batch to logcat, used when {@code StatsLog} is verbose. */
+public final class BcSmartspaceLogcatSink implements BcSmartspaceStatsSink {
+    @Override
+    public String getName() {
+        return "logcat";
+    }
+
+    @Override
+    public void write(SmartspaceProto.SmartspaceCardEventBatch batch) {
+        for (SmartspaceProto.SmartspaceCardEvent event : batch.events) {
+            Log.d(BcSmartspaceCardLogger.TAG, "Logged Smartspace event(" + event.eventId
+                    + "), instance_id = " + event.instanceId
+                    + ", feature type = " + event.cardTypeId
+                    + ", display surface = " + event.displaySurface
+                    + ", rank = " + event.rank
+                    + ", cardinality = " + event.cardinality
+                    + ", receivedLatencyMillis = " + event.receivedLatencyMillis
+                    + ", uid = " + event.uid);
+        }
+        if (batch.droppedEvents > 0) {
+            Log.d(BcSmartspaceCardLogger.TAG, "Dropped " + batch.droppedEvents + " events");
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.google.android.systemui.smartspace.logging;
+
+import com.android.systemui.smartspace.nano.SmartspaceProto;
+import java.io.IOException;
+
+/** Destination for batches of Smartspace card events. Called on the logging thread. */
+public interface BcSmartspaceStatsSink {
+    String getName();
+
+    void write(SmartspaceProto.SmartspaceCardEventBatch batch) throws IOException;
+}
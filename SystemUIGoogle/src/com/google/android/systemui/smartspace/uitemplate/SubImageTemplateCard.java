@@ -15,6 +15,7 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -126,7 +127,8 @@ public class SubImageTemplateCard extends BcSmartspaceCardSecondary {
     public SubImageTemplateCard(Context context, AttributeSet attributeSet) {
         super(context, attributeSet);
         this.mIconDrawableCache = new HashMap();
-        this.mHandler = new Handler();
+        // Cards may be inflated on the background inflater thread; image loads must land on main.
+        this.mHandler = new Handler(Looper.getMainLooper());
         this.mImageHeight = getResources().getDimensionPixelOffset(R.dimen.enhanced_smartspace_card_height);
     }
 
@@ -64,6 +64,7 @@ import com.android.systemui.util.wakelock.WakeLock;
 
 import com.google.android.systemui.googlebattery.AdaptiveChargingManager;
 
+import java.io.PrintWriter;
 import java.text.NumberFormat;
 import java.util.concurrent.TimeUnit;
 
@@ -147,6 +148,7 @@ public class KeyguardIndicationControllerGoogle extends KeyguardIndicationContro
             @Override
             public final void onReceive(Context context, Intent intent) {
                 if ("com.google.android.systemui.adaptivecharging.ADAPTIVE_CHARGING_DEADLINE_SET".equals(intent.getAction())) {
+                    mAdaptiveChargingManager.invalidateStatus();
                     triggerAdaptiveChargingStatusUpdate();
                 } else if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
                     int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
@@ -237,6 +239,13 @@ public class KeyguardIndicationControllerGoogle extends KeyguardIndicationContro
         mBroadcastDispatcher.registerReceiver(mBroadcastReceiver, intentFilter, null, UserHandle.ALL);
     }
 
+    @Override
+    public void dump(PrintWriter pw, String[] args) {
+        super.dump(pw, args);
+        pw.println("  mAdaptiveChargingActive: " + mAdaptiveChargingActive);
+        mAdaptiveChargingManager.dump(pw);
+    }
+
     public void triggerAdaptiveChargingStatusUpdate() {
         refreshAdaptiveChargingEnabled();
         if (mAdaptiveChargingEnabledInSettings) {
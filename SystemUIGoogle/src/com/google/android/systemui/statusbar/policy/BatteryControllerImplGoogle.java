@@ -18,7 +18,6 @@ package com.google.android.systemui.statusbar.policy;
 
 import android.content.ContentResolver;
 import android.content.Context;
-import android.content.Intent;
 import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Bundle;
@@ -36,6 +35,7 @@ import com.android.systemui.statusbar.policy.BatteryControllerImpl;
 import com.google.android.systemui.reversecharging.ReverseChargingController;
 import com.google.android.systemui.reversecharging.ReverseChargingChangeCallback;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 public class BatteryControllerImplGoogle extends BatteryControllerImpl implements ReverseChargingChangeCallback {
@@ -99,12 +99,6 @@ public class BatteryControllerImplGoogle extends BatteryControllerImpl implement
         batteryStateChangeCallback.onExtremeBatterySaverChanged(mExtremeSaver);
     }
 
-    @Override
-    public void onReceive(Context context, Intent intent) {
-        super.onReceive(context, intent);
-        mReverseChargingController.handleIntentForReverseCharging(intent);
-    }
-
     @Override
     public boolean isReverseSupported() {
         return mReverseChargingController.isReverseSupported();
@@ -120,6 +114,12 @@ public class BatteryControllerImplGoogle extends BatteryControllerImpl implement
         mReverseChargingController.setReverseState(z);
     }
 
+    @Override
+    public void dump(PrintWriter pw, String[] args) {
+        super.dump(pw, args);
+        mReverseChargingController.dump(pw, args);
+    }
+
     private void resetReverseInfo() {
         mReverse = false;
         mRtxLevel = -1;